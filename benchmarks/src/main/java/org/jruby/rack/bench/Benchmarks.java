@@ -0,0 +1,48 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.bench;
+
+import org.jruby.Ruby;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.rack.RackContext;
+import org.jruby.rack.ext.RackLibrary;
+import org.jruby.rack.servlet.DefaultServletRackContext;
+import org.jruby.rack.servlet.ServletRackConfig;
+import org.jruby.rack.servlet.ServletRackContext;
+import org.springframework.mock.web.MockServletContext;
+
+/**
+ * Shared benchmark (state) setup.
+ */
+final class Benchmarks {
+
+    private Benchmarks() { /* no instances */ }
+
+    /**
+     * @param initParams context init parameters (name and value pairs)
+     * @return a rack context backed by a mock servlet context
+     */
+    static ServletRackContext newRackContext(final String... initParams) {
+        final MockServletContext servletContext = new MockServletContext();
+        for ( int i = 0; i < initParams.length; i += 2 ) {
+            servletContext.addInitParameter(initParams[i], initParams[i + 1]);
+        }
+        return new DefaultServletRackContext(new ServletRackConfig(servletContext));
+    }
+
+    /**
+     * @param context the rack context
+     * @return a runtime with the (vendored) Rack and JRuby-Rack's handler loaded
+     */
+    static Ruby newRuntime(final RackContext context) {
+        final Ruby runtime = Ruby.newInstance();
+        RackLibrary.load(runtime);
+        runtime.evalScriptlet("require 'vendor/rack'; require 'jruby/rack'; require 'rack/handler/servlet'");
+        runtime.evalScriptlet("JRuby::Rack").callMethod(runtime.getCurrentContext(),
+                "context=", JavaUtil.convertJavaToRuby(runtime, context));
+        return runtime;
+    }
+
+}
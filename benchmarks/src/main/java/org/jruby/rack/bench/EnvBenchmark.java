@@ -0,0 +1,111 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.Ruby;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.rack.servlet.ServletRackContext;
+import org.jruby.rack.servlet.ServletRackEnvironment;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Rack env construction, (lazy) key lookups and full population using the
+ * Ruby (<code>DefaultEnv</code>) or the Java (<code>JavaEnv</code>)
+ * implementation as selected using <code>jruby.rack.handler.env</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EnvBenchmark {
+
+    @Param({ "default", "java" })
+    public String env;
+
+    private Ruby runtime;
+    private IRubyObject envClass, servletEnv;
+    private IRubyObject[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final ServletRackContext rackContext = Benchmarks.newRackContext("jruby.rack.handler.env", env);
+        runtime = Benchmarks.newRuntime(rackContext);
+        envClass = runtime.evalScriptlet("Rack::Handler::Servlet.env = :" + env + "; Rack::Handler::Servlet.env");
+
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/app/items");
+        request.setContextPath("/app"); request.setServletPath("/items");
+        request.setQueryString("page=2&sort=name");
+        request.setServerName("example.com"); request.setServerPort(8080);
+        request.addHeader("Host", "example.com:8080");
+        request.addHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:130.0) Gecko/20100101 Firefox/130.0");
+        request.addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        request.addHeader("Accept-Language", "en-US,en;q=0.5");
+        request.addHeader("Accept-Encoding", "gzip, deflate, br");
+        request.addHeader("Cookie", "_session_id=6f3b1c2d9e8a7f60; locale=en");
+        request.addHeader("Connection", "keep-alive");
+        request.addHeader("X-Requested-With", "XMLHttpRequest");
+        servletEnv = JavaUtil.convertJavaToRuby(runtime,
+                new ServletRackEnvironment(request, new MockHttpServletResponse(), rackContext));
+
+        keys = new IRubyObject[] {
+            runtime.newString("REQUEST_METHOD"), runtime.newString("PATH_INFO"),
+            runtime.newString("QUERY_STRING"), runtime.newString("HTTP_ACCEPT"),
+            runtime.newString("HTTP_COOKIE"), runtime.newString("rack.input")
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runtime.tearDown(false);
+    }
+
+    @Benchmark
+    public IRubyObject create() {
+        return envClass.callMethod(runtime.getCurrentContext(), "create", servletEnv);
+    }
+
+    /**
+     * Creates the env and looks up keys the way a (typical) Rack app would.
+     */
+    @Benchmark
+    public IRubyObject lookup() {
+        final ThreadContext context = runtime.getCurrentContext();
+        final IRubyObject env = envClass.callMethod(context, "create", servletEnv);
+        IRubyObject value = null;
+        for ( IRubyObject key : keys ) value = env.callMethod(context, "[]", key);
+        return value;
+    }
+
+    /**
+     * Creates the env and (fully) populates it, as on <code>env.keys</code>.
+     */
+    @Benchmark
+    public IRubyObject populate() {
+        final ThreadContext context = runtime.getCurrentContext();
+        final IRubyObject env = envClass.callMethod(context, "create", servletEnv);
+        return env.callMethod(context, "keys");
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.rack.servlet.ServletRackContext;
+import org.jruby.rack.servlet.ServletRackEnvironment;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Parameter parsing throughput, the (Java) <code>Parameters</code> compared
+ * to Rack's <code>Rack::Utils.parse_nested_query</code> as well as building
+ * the query and form hashes from a servlet request's parameters.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParamsBenchmark {
+
+    static final String FLAT_QUERY =
+            "page=2&sort=name&q=jruby+rack&per_page=50&utf8=%E2%9C%93";
+    static final String NESTED_QUERY =
+            "user[name]=Jane+Doe&user[email]=jane%40example.com" +
+            "&user[roles][]=admin&user[roles][]=editor" +
+            "&user[address][street]=Main+St+1&user[address][city]=Springfield" +
+            "&items[][id]=1&items[][qty]=2&items[][id]=3&items[][qty]=4";
+
+    @State(Scope.Benchmark)
+    public static class Queries {
+
+        @Param({ "java", "rack" })
+        public String parser;
+
+        @Param({ "flat", "nested" })
+        public String query;
+
+        Ruby runtime;
+        IRubyObject module, queryString;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            runtime = Benchmarks.newRuntime(Benchmarks.newRackContext());
+            module = runtime.evalScriptlet("java".equals(parser) ?
+                    "Rack::Handler::Servlet::Parameters" : "Rack::Utils");
+            queryString = runtime.newString("flat".equals(query) ? FLAT_QUERY : NESTED_QUERY);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            runtime.tearDown(false);
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class Requests {
+
+        Ruby runtime;
+        IRubyObject parameters, servletEnv;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            final ServletRackContext rackContext = Benchmarks.newRackContext();
+            runtime = Benchmarks.newRuntime(rackContext);
+            parameters = runtime.evalScriptlet("Rack::Handler::Servlet::Parameters");
+
+            final MockHttpServletRequest request = new MockHttpServletRequest("POST", "/app/users");
+            request.setContentType("application/x-www-form-urlencoded");
+            request.setQueryString("page=2&sort=name");
+            request.addParameter("page", "2"); request.addParameter("sort", "name");
+            // (form) parameters as parsed by the servlet container :
+            request.addParameter("user[name]", "Jane Doe");
+            request.addParameter("user[email]", "jane@example.com");
+            request.addParameter("user[roles][]", "admin", "editor");
+            request.addParameter("user[address][street]", "Main St 1");
+            request.addParameter("user[address][city]", "Springfield");
+            request.addParameter("items[][id]", "1", "3");
+            request.addParameter("items[][qty]", "2", "4");
+            servletEnv = JavaUtil.convertJavaToRuby(runtime,
+                    new ServletRackEnvironment(request, new MockHttpServletResponse(), rackContext));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            runtime.tearDown(false);
+        }
+
+    }
+
+    @Benchmark
+    public IRubyObject parse(final Queries state) {
+        return state.module.callMethod(state.runtime.getCurrentContext(), "parse_nested_query", state.queryString);
+    }
+
+    /**
+     * Builds <code>rack.request.query_hash</code> and <code>rack.request.form_hash</code>
+     * as the servlet env does (on <code>load_parameters</code>).
+     */
+    @Benchmark
+    public IRubyObject load(final Requests state) {
+        final ThreadContext context = state.runtime.getCurrentContext();
+        final RubyHash env = RubyHash.newHash(state.runtime);
+        state.parameters.callMethod(context, "load", new IRubyObject[] { state.servletEnv, env });
+        return env;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.Ruby;
+import org.jruby.rack.PoolingRackApplicationFactory;
+import org.jruby.rack.RackApplication;
+import org.jruby.rack.RackApplicationFactory;
+import org.jruby.rack.RackContext;
+import org.jruby.rack.RackEnvironment;
+import org.jruby.rack.RackResponse;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request latency (acquiring a runtime from the pool, calling into it and
+ * returning it) with and without thread affinity
+ * (<code>jruby.runtime.pool.affinity</code>).
+ * <p>
+ * Each pooled application owns a (real) JRuby runtime, a request calls a
+ * Ruby lambda on the current thread's context of the runtime.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PoolBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean affinity;
+
+    @Param({ "fifo", "lifo" })
+    public String order;
+
+    @Param({ "8" })
+    public int runtimes;
+
+    private PoolingRackApplicationFactory pool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final String size = Integer.toString(runtimes);
+        final RackContext context = Benchmarks.newRackContext(
+                "jruby.min.runtimes", size, "jruby.max.runtimes", size,
+                "jruby.runtime.pool.affinity", Boolean.toString(affinity),
+                "jruby.runtime.pool.order", order);
+        pool = new PoolingRackApplicationFactory(new ApplicationFactory());
+        pool.init(context);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.destroy();
+    }
+
+    @Benchmark
+    public RackResponse request() {
+        final RackApplication app = pool.getApplication();
+        try {
+            return app.call(null);
+        }
+        finally {
+            pool.finishedWithApplication(app);
+        }
+    }
+
+    private static final class ApplicationFactory implements RackApplicationFactory {
+
+        @Override
+        public void init(RackContext rackContext) { /* noop */ }
+
+        @Override
+        public RackApplication newApplication() {
+            return new Application();
+        }
+
+        @Override
+        public RackApplication getApplication() {
+            final RackApplication app = newApplication();
+            app.init();
+            return app;
+        }
+
+        @Override
+        public void finishedWithApplication(RackApplication app) {
+            app.destroy();
+        }
+
+        @Override
+        public RackApplication getErrorApplication() {
+            return null;
+        }
+
+        @Override
+        public void destroy() { /* noop */ }
+
+    }
+
+    private static final class Application implements RackApplication {
+
+        private Ruby runtime;
+        private IRubyObject app;
+
+        @Override
+        public void init() {
+            runtime = Ruby.newInstance();
+            app = runtime.evalScriptlet("lambda { |env| [ 200, { 'content-type' => 'text/plain' }, [ 'OK' ] ] }");
+        }
+
+        @Override
+        public void destroy() {
+            runtime.tearDown(false);
+        }
+
+        @Override
+        public RackResponse call(final RackEnvironment env) {
+            app.callMethod(runtime.getCurrentContext(), "call", runtime.getNil());
+            return null;
+        }
+
+        @Override
+        public Ruby getRuntime() {
+            return runtime;
+        }
+
+    }
+
+}
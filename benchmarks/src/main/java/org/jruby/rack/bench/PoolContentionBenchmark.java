@@ -0,0 +1,211 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.bench;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.Ruby;
+import org.jruby.rack.PoolingRackApplicationFactory;
+import org.jruby.rack.RackApplication;
+import org.jruby.rack.RackApplicationFactory;
+import org.jruby.rack.RackContext;
+import org.jruby.rack.RackEnvironment;
+import org.jruby.rack.RackResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Acquire/release throughput of the runtime pool under contention (8, 32
+ * and 128 threads) compared to the previous implementation, a (synchronized)
+ * <code>LinkedList</code> guarded by the pool monitor plus a permit semaphore.
+ * <p>
+ * Pooled applications are stubs (no runtimes) thus only the pool is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PoolContentionBenchmark {
+
+    @Param({ "lock-free", "synchronized" })
+    public String pool;
+
+    @Param({ "16" })
+    public int runtimes;
+
+    private Pool applicationPool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if ( "synchronized".equals(pool) ) {
+            applicationPool = new SynchronizedPool(runtimes);
+        }
+        else {
+            final String size = Integer.toString(runtimes);
+            final PoolingRackApplicationFactory factory = new PoolingRackApplicationFactory(new ApplicationFactory());
+            factory.init(Benchmarks.newRackContext("jruby.min.runtimes", size, "jruby.max.runtimes", size));
+            applicationPool = new Pool() {
+                public RackApplication acquire() { return factory.getApplication(); }
+                public void release(RackApplication app) { factory.finishedWithApplication(app); }
+                public void destroy() { factory.destroy(); }
+            };
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        applicationPool.destroy();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public RackApplication threads8() {
+        return acquireAndRelease();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public RackApplication threads32() {
+        return acquireAndRelease();
+    }
+
+    @Benchmark
+    @Threads(128)
+    public RackApplication threads128() {
+        return acquireAndRelease();
+    }
+
+    private RackApplication acquireAndRelease() {
+        final RackApplication app = applicationPool.acquire();
+        applicationPool.release(app);
+        return app;
+    }
+
+    private interface Pool {
+
+        RackApplication acquire();
+
+        void release(RackApplication app);
+
+        void destroy();
+
+    }
+
+    /**
+     * The previous (1.2) pool acquire and release path.
+     */
+    private static final class SynchronizedPool implements Pool {
+
+        private final Queue<RackApplication> applicationPool = new LinkedList<>();
+        private final Semaphore permits;
+        private final int maximumSize;
+
+        SynchronizedPool(final int size) {
+            for ( int i = 0; i < size; i++ ) applicationPool.add(new Application());
+            this.permits = new Semaphore(size, true);
+            this.maximumSize = size;
+        }
+
+        @Override
+        public RackApplication acquire() {
+            try {
+                if ( ! permits.tryAcquire(10, TimeUnit.SECONDS) ) {
+                    throw new IllegalStateException("could not acquire application permit");
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            synchronized (applicationPool) {
+                return applicationPool.remove();
+            }
+        }
+
+        @Override
+        public void release(final RackApplication app) {
+            synchronized (applicationPool) {
+                if ( applicationPool.size() >= maximumSize ) return;
+                if ( applicationPool.contains(app) ) return;
+                applicationPool.add(app);
+                permits.release();
+            }
+        }
+
+        @Override
+        public void destroy() {
+            synchronized (applicationPool) {
+                applicationPool.clear();
+            }
+        }
+
+    }
+
+    private static final class ApplicationFactory implements RackApplicationFactory {
+
+        @Override
+        public void init(RackContext rackContext) { /* noop */ }
+
+        @Override
+        public RackApplication newApplication() {
+            return new Application();
+        }
+
+        @Override
+        public RackApplication getApplication() {
+            return newApplication();
+        }
+
+        @Override
+        public void finishedWithApplication(RackApplication app) { /* noop */ }
+
+        @Override
+        public RackApplication getErrorApplication() {
+            return null;
+        }
+
+        @Override
+        public void destroy() { /* noop */ }
+
+    }
+
+    private static final class Application implements RackApplication {
+
+        @Override
+        public void init() { /* noop */ }
+
+        @Override
+        public void destroy() { /* noop */ }
+
+        @Override
+        public RackResponse call(final RackEnvironment env) {
+            return null;
+        }
+
+        @Override
+        public Ruby getRuntime() {
+            return null;
+        }
+
+    }
+
+}
@@ -32,7 +32,7 @@ public abstract class AbstractRackDispatcher implements RackDispatcher {
 
         RackApplication app = null;
         try {
-            app = getApplication();
+            app = getApplication(request);
             app.call(request).respond(response);
         } 
         catch (Exception e) {
@@ -59,6 +59,15 @@ public abstract class AbstractRackDispatcher implements RackDispatcher {
     }
 
     protected abstract RackApplication getApplication() throws RackException;
+
+    /**
+     * @param request the request being processed
+     * @return an application to process the request
+     * @throws RackException if an application can not be retrieved
+     */
+    protected RackApplication getApplication(RackEnvironment request) throws RackException {
+        return getApplication();
+    }
     
     protected abstract void afterProcess(RackApplication app);
     
@@ -0,0 +1,157 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.jruby.rack.RackLogger.Level.*;
+
+/**
+ * Admission control (early load shedding) based on the time requests spend
+ * waiting for a runtime (CoDel alike). Once the minimum waiting (sojourn) time
+ * over a whole interval is above a target requests are rejected with a (cheap)
+ * 503 response with a <code>Retry-After</code> header, without ever reaching
+ * a runtime (or the error application). While shedding load, a single probe
+ * request is admitted per interval. Rejecting stops once the minimum waiting
+ * time over an interval is back below the target.
+ * <p>
+ * Configured using :
+ * <ul>
+ * <li><code>jruby.rack.admission.target</code>: Target wait time (in
+ *  milliseconds), enables admission control. Default is none (disabled).
+ * <li><code>jruby.rack.admission.interval</code>: Interval (in milliseconds)
+ *  the (minimum) wait time is measured over (default 100).
+ * <li><code>jruby.rack.admission.retry_after</code>: The <code>Retry-After</code>
+ *  value (in seconds) sent with rejected requests (default 1).
+ * <li><code>jruby.rack.admission.exempt</code>: Comma separated paths (prefixes)
+ *  that are never rejected e.g. health-checks (default none).
+ * </ul>
+ *
+ * @see DefaultRackDispatcher
+ */
+public class AdmissionController {
+
+    private final RackContext context;
+    private final long target; // nanos
+    private final long interval; // nanos
+    private final int retryAfter; // seconds
+    private final String[] exemptPaths;
+
+    // (nano) time the current interval ends at
+    private final AtomicLong intervalEnd;
+    // minimum sojourn seen during the current interval
+    private final AtomicLong minSojourn = new AtomicLong(Long.MAX_VALUE);
+    private volatile boolean dropping;
+    // (nano) time the next probe request is admitted at (while dropping)
+    private final AtomicLong nextProbeTime = new AtomicLong(0);
+
+    public AdmissionController(RackContext context,
+        long targetMillis, long intervalMillis, int retryAfter, String... exemptPaths) {
+        this.context = context;
+        this.target = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.retryAfter = retryAfter;
+        this.exemptPaths = exemptPaths == null ? new String[0] : exemptPaths;
+        this.intervalEnd = new AtomicLong(System.nanoTime() + interval);
+    }
+
+    /**
+     * @param context the context
+     * @return a new admission controller or null if not configured
+     */
+    public static AdmissionController newInstance(final RackContext context) {
+        final RackConfig config = context.getConfig();
+        if ( config == null ) return null;
+        final Number target = DefaultRackConfig.toNumber(config.getProperty("jruby.rack.admission.target"), null);
+        if ( target == null || target.longValue() <= 0 ) return null;
+        final Number interval = DefaultRackConfig.toNumber(config.getProperty("jruby.rack.admission.interval"), 100);
+        final Number retryAfter = DefaultRackConfig.toNumber(config.getProperty("jruby.rack.admission.retry_after"), 1);
+        final List<String> exempt = new ArrayList<>();
+        final String paths = config.getProperty("jruby.rack.admission.exempt");
+        if ( paths != null ) {
+            for ( String path : paths.split(",") ) {
+                if ( ! (path = path.trim()).isEmpty() ) exempt.add(path);
+            }
+        }
+        context.log(INFO, "admission control enabled with a target wait of " + target + "ms" +
+                ( exempt.isEmpty() ? "" : " (exempt paths: " + exempt + ")" ));
+        return new AdmissionController(context,
+                target.longValue(), interval.longValue(), retryAfter.intValue(),
+                exempt.toArray(new String[0]));
+    }
+
+    /**
+     * @param request the request
+     * @return whether the request should be processed
+     */
+    public boolean admit(final RackEnvironment request) {
+        if ( ! dropping || isExempt(request) ) return true;
+        // admit a single probe request per interval :
+        final long now = System.nanoTime();
+        final long probeTime = nextProbeTime.get();
+        return now - probeTime >= 0 && nextProbeTime.compareAndSet(probeTime, now + interval);
+    }
+
+    /**
+     * Responds with a (empty) 503 without touching any runtime, not using
+     * <code>sendError</code> as an error page might get dispatched back to
+     * the application.
+     * @param response the response
+     * @throws IOException if sending the response fails
+     */
+    public void reject(final RackResponseEnvironment response) throws IOException {
+        response.setStatus(503);
+        response.setHeader("Retry-After", Integer.toString(retryAfter));
+        response.setContentLength(0);
+        response.getOutputStream().flush();
+    }
+
+    /**
+     * Records the time a request has been waiting for a runtime.
+     * @param sojourn wait time (in nanoseconds)
+     */
+    public void recordSojourn(final long sojourn) {
+        final long now = System.nanoTime();
+        final long end = intervalEnd.get();
+        if ( now - end >= 0 && intervalEnd.compareAndSet(end, now + interval) ) {
+            final long min = minSojourn.getAndSet(Long.MAX_VALUE);
+            if ( min < target ) {
+                if ( dropping ) {
+                    dropping = false;
+                    context.log(INFO, "runtime wait time back below target - stopped rejecting requests");
+                }
+            }
+            else if ( ! dropping && min != Long.MAX_VALUE ) {
+                nextProbeTime.set(now + interval);
+                dropping = true;
+                context.log(WARN, "runtime wait time above target for " +
+                        TimeUnit.NANOSECONDS.toMillis(interval) + "ms - rejecting requests");
+            }
+        }
+        minSojourn.accumulateAndGet(sojourn, Math::min);
+    }
+
+    /**
+     * @return whether requests are currently being rejected
+     */
+    public boolean isDropping() {
+        return dropping;
+    }
+
+    private boolean isExempt(final RackEnvironment request) {
+        if ( exemptPaths.length == 0 ) return false;
+        final String path = request.getPathInfo();
+        if ( path == null ) return false;
+        for ( final String exempt : exemptPaths ) {
+            if ( path.startsWith(exempt) ) return true;
+        }
+        return false;
+    }
+
+}
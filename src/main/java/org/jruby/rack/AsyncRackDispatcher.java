@@ -0,0 +1,180 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jruby.rack.servlet.ServletRackEnvironment;
+
+import static org.jruby.rack.RackLogger.Level.*;
+
+/**
+ * Dispatches requests asynchronously (using Servlet 3.0 async support).
+ * The container thread only starts an {@link AsyncContext} and queues the
+ * request, acquiring a runtime and processing the request happens on a
+ * (bounded) dispatch executor. Container threads are thus not parked while
+ * waiting for a (pooled) runtime to become available.
+ * <p>
+ * Requests that do not support async processing (the servlet or filter has
+ * not been declared with <code>async-supported</code>) are processed in the
+ * calling thread as usual.
+ * <p>
+ * Configured using :
+ * <ul>
+ * <li><code>jruby.rack.dispatch.async</code>: Enables async dispatching
+ *  (default false).
+ * <li><code>jruby.rack.dispatch.async.threads</code>: The number of dispatch
+ *  threads, defaults to 4 times the number of available processors (sized
+ *  independently of the runtime pool, a shared runtime handles many requests).
+ *  Setting <code>virtual</code> runs each request on its own virtual thread
+ *  (there's no queue limit then).
+ * <li><code>jruby.rack.dispatch.async.queue</code>: Maximum number of queued
+ *  (waiting) requests, requests over the limit get a 503 response.
+ *  Defaults to 16 times the number of dispatch threads, a negative value
+ *  removes the limit.
+ * </ul>
+ */
+public class AsyncRackDispatcher implements RackDispatcher {
+
+    private final RackDispatcher delegate;
+    private final RackContext context;
+    private final ExecutorService executor;
+
+    public AsyncRackDispatcher(RackDispatcher delegate, RackContext context) {
+        this(delegate, context, newExecutor(context.getConfig()));
+    }
+
+    public AsyncRackDispatcher(RackDispatcher delegate, RackContext context, ExecutorService executor) {
+        if ( delegate == null ) throw new IllegalArgumentException("null delegate");
+        if ( context == null ) throw new IllegalArgumentException("null context");
+        this.delegate = delegate;
+        this.context = context;
+        this.executor = executor;
+    }
+
+    /**
+     * @param context the context
+     * @return whether async dispatching has been configured
+     */
+    public static boolean isEnabled(final RackContext context) {
+        final RackConfig config = context == null ? null : context.getConfig();
+        if ( config == null ) return false;
+        return DefaultRackConfig.toBoolean(config.getProperty("jruby.rack.dispatch.async"), false);
+    }
+
+    /**
+     * @param dispatcher the dispatcher to decorate
+     * @param context the context
+     * @return an async dispatcher if enabled, the given dispatcher otherwise
+     */
+    public static RackDispatcher decorateIfEnabled(final RackDispatcher dispatcher, final RackContext context) {
+        return isEnabled(context) ? new AsyncRackDispatcher(dispatcher, context) : dispatcher;
+    }
+
+    public RackDispatcher getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void process(final RackEnvironment request, final RackResponseEnvironment response)
+        throws IOException {
+        if ( ! ( request instanceof ServletRackEnvironment ) ||
+             ! ((ServletRackEnvironment) request).isAsyncSupported() ||
+             ((ServletRackEnvironment) request).isAsyncStarted() ) {
+            delegate.process(request, response);
+            return;
+        }
+
+        final AsyncContext async = ((ServletRackEnvironment) request).startAsync();
+        async.setTimeout(0); // same as with sync processing - no timeout
+        try {
+            executor.execute(() -> dispatch(async, request, response));
+        }
+        catch (RejectedExecutionException e) {
+            context.log(WARN, "async dispatch queue full - rejecting request");
+            try {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+            finally {
+                async.complete();
+            }
+        }
+    }
+
+    private void dispatch(final AsyncContext async,
+        final RackEnvironment request, final RackResponseEnvironment response) {
+        try {
+            delegate.process(request, response);
+        }
+        catch (IOException|RuntimeException e) {
+            context.log(ERROR, "async dispatch failed", e);
+            try {
+                if ( ! response.isCommitted() ) {
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            }
+            catch (IOException|RuntimeException ex) {
+                context.log(DEBUG, "failed to send error response", ex);
+            }
+        }
+        finally {
+            async.complete();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdown();
+        try {
+            if ( ! executor.awaitTermination(5, TimeUnit.SECONDS) ) executor.shutdownNow();
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        delegate.destroy();
+    }
+
+    static final int QUEUE_SIZE_PER_THREAD = 16;
+
+    /**
+     * @param config the configuration
+     * @return a (new) dispatch executor, rejecting tasks once the queue is full
+     */
+    public static ExecutorService newExecutor(final RackConfig config) {
+        if ( "virtual".equalsIgnoreCase(config.getProperty("jruby.rack.dispatch.async.threads")) ) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("JRuby-Rack-Dispatch-", 1).factory());
+        }
+        Number threads = DefaultRackConfig.toNumber(config.getProperty("jruby.rack.dispatch.async.threads"), null);
+        if ( threads == null || threads.intValue() <= 0 ) {
+            threads = Runtime.getRuntime().availableProcessors() * 4;
+        }
+        Number queueSize = DefaultRackConfig.toNumber(config.getProperty("jruby.rack.dispatch.async.queue"), null);
+        if ( queueSize == null || queueSize.intValue() == 0 ) {
+            queueSize = threads.intValue() * QUEUE_SIZE_PER_THREAD;
+        }
+        final BlockingQueue<Runnable> queue = queueSize.intValue() < 0 ?
+                new LinkedBlockingQueue<>() : new LinkedBlockingQueue<>(queueSize.intValue());
+
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        return new ThreadPoolExecutor(threads.intValue(), threads.intValue(), 0, TimeUnit.MILLISECONDS, queue, task -> {
+            Thread thread = new Thread(task, "JRuby-Rack-Dispatch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy()); // rejected requests get a 503 (see #process)
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.jruby.rack.RackLogger.Level.*;
+
+/**
+ * Limits the number of requests concurrently executing in a (shared) runtime,
+ * requests over the limit are queued (in arrival order) until a slot frees up.
+ * <p>
+ * The limit adapts to the observed request latency (AIMD) when a target latency
+ * is configured : each request completing within the target, while the limit is
+ * fully used, grows the limit by <code>1/limit</code> (about +1 per "round" of
+ * requests) and a request completing above the target shrinks it by 10% (at
+ * most once per target latency period). The limit thus converges to the
+ * concurrency the runtime (and its back-ends) handle without latency degrading.
+ * Without a target latency the limit is static.
+ * <p>
+ * Configured using :
+ * <ul>
+ * <li><code>jruby.runtime.shared.limit</code>: The (initial) concurrency limit,
+ *  enables limiting. Default is none (disabled).
+ * <li><code>jruby.runtime.shared.limit.min</code>: Minimum limit (default 1).
+ * <li><code>jruby.runtime.shared.limit.max</code>: Maximum limit, defaults to
+ *  4 times the number of available processors (or the initial limit if larger).
+ * <li><code>jruby.runtime.shared.latency</code>: Target latency (in milliseconds)
+ *  enables adapting the limit. Default is none (a static limit).
+ * <li><code>jruby.runtime.shared.queue</code>: Maximum number of queued requests,
+ *  requests over the limit are rejected right away. Default is no limit.
+ * </ul>
+ * Queued requests wait at most <code>jruby.runtime.acquire.timeout</code>
+ * seconds (default 10) for a slot.
+ *
+ * @see SharedRackApplicationFactory
+ */
+public class ConcurrencyLimiter implements ConcurrencyLimiterMXBean {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final RackContext context;
+    private final int minLimit, maxLimit;
+    private final int maxQueued; // < 0 - unbounded
+    private final long targetLatency; // nanos, 0 - static limit
+    private final long timeout; // nanos
+
+    // FIFO waiters (a newcomer never barges in while others are queued)
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private int limit, active, queued;
+    private double increase; // fractional (additive) increase
+    private long lastDecrease; // nanos
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder latencyTotal = new LongAdder();
+    private volatile long maxLatency;
+
+    public ConcurrencyLimiter(RackContext context,
+        int limit, int minLimit, int maxLimit, long targetLatencyMillis,
+        int maxQueued, long timeoutMillis) {
+        if ( minLimit < 1 ) minLimit = 1;
+        if ( maxLimit < minLimit ) maxLimit = minLimit;
+        this.context = context;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, limit));
+        this.targetLatency = TimeUnit.MILLISECONDS.toNanos(Math.max(0, targetLatencyMillis));
+        this.maxQueued = maxQueued;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+        this.lastDecrease = System.nanoTime();
+    }
+
+    /**
+     * @param context the context
+     * @return a new concurrency limiter or null if not configured
+     */
+    public static ConcurrencyLimiter newInstance(final RackContext context) {
+        final RackConfig config = context.getConfig();
+        if ( config == null ) return null;
+        final Number limit = config.getNumberProperty("jruby.runtime.shared.limit");
+        if ( limit == null || limit.intValue() <= 0 ) return null;
+        final Number min = config.getNumberProperty("jruby.runtime.shared.limit.min", 1);
+        Number max = config.getNumberProperty("jruby.runtime.shared.limit.max");
+        if ( max == null || max.intValue() <= 0 ) {
+            max = Math.max(limit.intValue(), Runtime.getRuntime().availableProcessors() * 4);
+        }
+        final Number latency = config.getNumberProperty("jruby.runtime.shared.latency", 0);
+        final Number queue = config.getNumberProperty("jruby.runtime.shared.queue", -1);
+        final Integer timeout = config.getRuntimeAcquireTimeout();
+        final long timeoutMillis = timeout == null ? 10_000 : timeout * 1000L;
+
+        context.log(INFO, "limiting shared runtime concurrency to " + limit +
+                ( latency.longValue() > 0 ? " (adapting between " + min + " and " + max +
+                        " with a target latency of " + latency + "ms)" : "" ));
+        return new ConcurrencyLimiter(context,
+                limit.intValue(), min.intValue(), max.intValue(), latency.longValue(),
+                queue.intValue(), timeoutMillis);
+    }
+
+    /**
+     * Acquires a slot, waits (queued) if the limit has been reached.
+     * @throws AcquireTimeoutException if the queue is full or the wait timed out
+     */
+    public void acquire() throws AcquireTimeoutException {
+        lock.lock();
+        try {
+            if ( active < limit && queued == 0 ) {
+                active++; return;
+            }
+            if ( maxQueued >= 0 && queued >= maxQueued ) {
+                rejected.increment();
+                throw new AcquireTimeoutException("concurrency limit (" + limit + ") reached and " +
+                        queued + " requests already queued");
+            }
+            queued++;
+            try {
+                long remaining = timeout;
+                while ( active >= limit ) {
+                    if ( remaining <= 0 ) {
+                        timeouts.increment();
+                        throw new AcquireTimeoutException("timeout: " + TimeUnit.NANOSECONDS.toMillis(timeout) +
+                                "ms waiting below the concurrency limit (" + limit + ")");
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+                active++;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AcquireTimeoutException("interrupted while waiting below the concurrency limit", e);
+            }
+            finally {
+                queued--;
+                // a slot might have been freed while we timed out (or got interrupted) :
+                if ( active < limit && queued > 0 ) available.signal();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a previously acquired slot.
+     * @param latency the time the slot has been held (in nanoseconds)
+     */
+    public void release(final long latency) {
+        completed.increment();
+        latencyTotal.add(latency);
+        if ( latency > maxLatency ) maxLatency = latency;
+
+        lock.lock();
+        try {
+            final int previous = limit;
+            if ( targetLatency > 0 ) adjustLimit(latency, active >= limit);
+            active--;
+            if ( limit > previous ) available.signalAll();
+            else available.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void adjustLimit(final long latency, final boolean saturated) {
+        if ( latency > targetLatency ) {
+            final long now = System.nanoTime();
+            if ( now - lastDecrease < targetLatency ) return; // backed off recently
+            lastDecrease = now; increase = 0;
+            final int previous = limit;
+            limit = Math.max(minLimit, Math.min(limit - 1, (int) (limit * BACKOFF_RATIO)));
+            if ( limit < previous && context != null ) {
+                context.log(DEBUG, "latency " + TimeUnit.NANOSECONDS.toMillis(latency) +
+                        "ms above target - decreased concurrency limit to " + limit);
+            }
+        }
+        else if ( saturated && limit < maxLimit ) {
+            increase += 1.0 / limit;
+            if ( increase >= 1 ) {
+                increase = 0; limit++;
+            }
+        }
+    }
+
+    @Override
+    public int getLimit() {
+        lock.lock();
+        try { return limit; } finally { lock.unlock(); }
+    }
+
+    @Override
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    @Override
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    @Override
+    public long getTargetLatency() {
+        return TimeUnit.NANOSECONDS.toMillis(targetLatency);
+    }
+
+    @Override
+    public int getActiveRequests() {
+        lock.lock();
+        try { return active; } finally { lock.unlock(); }
+    }
+
+    @Override
+    public int getQueuedRequests() {
+        lock.lock();
+        try { return queued; } finally { lock.unlock(); }
+    }
+
+    @Override
+    public long getCompletedRequests() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getTimedOutRequests() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public double getAverageLatency() {
+        final long count = completed.sum();
+        return count == 0 ? 0 : latencyTotal.sum() / (double) count / 1_000_000;
+    }
+
+    @Override
+    public double getMaxLatency() {
+        return maxLatency / 1_000_000.0;
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+/**
+ * Management interface of the (shared runtime) concurrency limiter.
+ * Registered (with the platform MBean server) unless JRuby management has
+ * been disabled using <code>jruby.management.enabled=false</code>.
+ *
+ * @see ConcurrencyLimiter
+ */
+public interface ConcurrencyLimiterMXBean {
+
+    /**
+     * @return the current concurrency limit
+     */
+    int getLimit();
+
+    /**
+     * @return the minimum concurrency limit
+     */
+    int getMinLimit();
+
+    /**
+     * @return the maximum concurrency limit
+     */
+    int getMaxLimit();
+
+    /**
+     * @return the target latency (in milliseconds), 0 if the limit is static
+     */
+    long getTargetLatency();
+
+    /**
+     * @return number of requests currently executing
+     */
+    int getActiveRequests();
+
+    /**
+     * @return number of requests currently waiting (over the limit)
+     */
+    int getQueuedRequests();
+
+    /**
+     * @return total number of requests completed
+     */
+    long getCompletedRequests();
+
+    /**
+     * @return total number of requests rejected due a full queue
+     */
+    long getRejectedRequests();
+
+    /**
+     * @return total number of requests that timed out waiting in the queue
+     */
+    long getTimedOutRequests();
+
+    /**
+     * @return average request latency (in milliseconds)
+     */
+    double getAverageLatency();
+
+    /**
+     * @return maximum request latency (in milliseconds)
+     */
+    double getMaxLatency();
+
+}
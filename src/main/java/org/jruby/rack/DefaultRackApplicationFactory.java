@@ -15,6 +15,7 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.jruby.Ruby;
 import org.jruby.RubyInstanceConfig;
@@ -46,6 +47,10 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
     private ServletRackContext rackContext;
     private RubyInstanceConfig runtimeConfig;
     private volatile RackApplication errorApplication;
+    // NOTE: not a monitor - error application (runtime) boot must not pin virtual threads
+    private final ReentrantLock errorApplicationLock = new ReentrantLock();
+    // methods JIT-ed in (previous) runtimes, null unless pre-compiling
+    private volatile JITProfile jitProfile;
 
     /**
      * Convenience helper for unwrapping a {@link RackApplicationFactoryDecorator}.
@@ -72,6 +77,15 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
         this.rackupLocation = null;
     }
 
+    /**
+     * Re-reads the rackup script (e.g. before reloading the runtime pool),
+     * applications created from now on will use the (possibly) updated script.
+     * @throws RackInitializationException if reading the rackup fails
+     */
+    public void reloadRackupScript() throws RackInitializationException {
+        resolveRackupScript();
+    }
+
     /**
      * Initialize this factory using the given context.
      *
@@ -90,6 +104,22 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
         configureDefaults();
     }
 
+    /**
+     * @return the JIT profile (null unless set by a pooling factory)
+     */
+    public JITProfile getJITProfile() {
+        return jitProfile;
+    }
+
+    /**
+     * @param jitProfile the JIT profile applied to (and recorded from)
+     * runtimes created by this factory
+     * @see PoolingRackApplicationFactory
+     */
+    public void setJITProfile(JITProfile jitProfile) {
+        this.jitProfile = jitProfile;
+    }
+
     /**
      * Creates a new application instance (without initializing it).
      *
@@ -131,11 +161,15 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
     @Override
     public RackApplication getErrorApplication() {
         if (errorApplication == null) {
-            synchronized(this) {
+            errorApplicationLock.lock();
+            try {
                 if (errorApplication == null) {
                     errorApplication = newErrorApplication();
                 }
             }
+            finally {
+                errorApplicationLock.unlock();
+            }
         }
         return errorApplication;
     }
@@ -144,19 +178,29 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
      * Set the (default) error application to be used.
      * @param errorApplication the error application
      */
-    public synchronized void setErrorApplication(RackApplication errorApplication) {
-        this.errorApplication = errorApplication;
+    public void setErrorApplication(RackApplication errorApplication) {
+        errorApplicationLock.lock();
+        try {
+            this.errorApplication = errorApplication;
+        }
+        finally {
+            errorApplicationLock.unlock();
+        }
     }
 
     @Override
     public void destroy() {
         if (errorApplication != null) {
-            synchronized(this) {
+            errorApplicationLock.lock();
+            try {
                 if (errorApplication != null) {
                     errorApplication.destroy();
                     errorApplication = null;
                 }
             }
+            finally {
+                errorApplicationLock.unlock();
+            }
         }
     }
 
@@ -426,10 +470,14 @@ public class DefaultRackApplicationFactory implements RackApplicationFactory {
                 captureMessage(e);
                 throw e;
             }
+            final JITProfile profile = jitProfile;
+            if ( profile != null ) profile.apply(runtime);
         }
 
         @Override
         public void destroy() {
+            final JITProfile profile = jitProfile;
+            if ( profile != null && ! ( this instanceof ErrorApplication ) ) profile.forget(runtime);
             runtime.tearDown(false);
         }
 
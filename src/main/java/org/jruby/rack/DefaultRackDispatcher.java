@@ -20,10 +20,20 @@ import static org.jruby.rack.RackLogger.Level.ERROR;
  */
 public class DefaultRackDispatcher extends AbstractRackDispatcher {
 
+    // the limiter a slot is held from while processing (in the current thread)
+    private static final ThreadLocal<ConcurrencyLimiter> limiterSlot = new ThreadLocal<>();
+
     private Integer errorApplicationFailureStatusCode = 500;
 
+    private AdmissionController admissionController;
+
+    private final String readyPath;
+
     public DefaultRackDispatcher(RackContext context) {
         super(context);
+        this.admissionController = AdmissionController.newInstance(context);
+        final RackConfig config = context.getConfig();
+        this.readyPath = config == null ? null : config.getProperty("jruby.rack.ready.path");
     }
 
     public Integer getErrorApplicationFailureStatusCode() {
@@ -34,11 +44,111 @@ public class DefaultRackDispatcher extends AbstractRackDispatcher {
         this.errorApplicationFailureStatusCode = code;
     }
 
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    @Override
+    public void process(RackEnvironment request, RackResponseEnvironment response)
+        throws IOException {
+        if ( readyPath != null && readyPath.equals(request.getPathInfo()) ) {
+            respondReadiness(response); // without touching any runtime
+            return;
+        }
+        final AdmissionController admission = admissionController;
+        if ( admission != null && ! admission.admit(request) ) {
+            admission.reject(response); // shedding load
+            return;
+        }
+        final ConcurrencyLimiter limiter = getConcurrencyLimiter(request);
+        if ( limiter == null || limiterSlot.get() != null ) { // nested (e.g. include) holds a slot
+            super.process(request, response);
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            limiter.acquire();
+        }
+        catch (AcquireTimeoutException e) {
+            recordSojourn(System.nanoTime() - start);
+            handleException(e, request, response);
+            return;
+        }
+        final long acquired = System.nanoTime();
+        recordSojourn(acquired - start);
+        limiterSlot.set(limiter);
+        try {
+            super.process(request, response);
+        }
+        finally {
+            limiterSlot.remove();
+            limiter.release(System.nanoTime() - acquired);
+        }
+    }
+
+    /**
+     * @param request the request
+     * @return the (shared runtime) concurrency limiter or null if not limited
+     * @see SharedRackApplicationFactory#getConcurrencyLimiter(RackEnvironment)
+     */
+    protected ConcurrencyLimiter getConcurrencyLimiter(final RackEnvironment request) {
+        if ( ! ( context instanceof ServletRackContext ) ) return null;
+        final RackApplicationFactory factory = ((ServletRackContext) context).getRackFactory();
+        if ( factory instanceof SharedRackApplicationFactory ) {
+            return ((SharedRackApplicationFactory) factory).getConcurrencyLimiter(request);
+        }
+        return null;
+    }
+
+    private void recordSojourn(final long time) {
+        final AdmissionController admission = admissionController;
+        if ( admission != null ) admission.recordSojourn(time);
+    }
+
+    /**
+     * @return whether the application (factory) is ready to serve requests
+     * @see RackApplicationFactory#READY
+     */
+    protected boolean isReady() {
+        if ( context instanceof ServletRackContext ) {
+            final Object ready = ((ServletRackContext) context).getAttribute(RackApplicationFactory.READY);
+            return ready == null || Boolean.TRUE.equals(ready);
+        }
+        return true;
+    }
+
+    private void respondReadiness(final RackResponseEnvironment response) throws IOException {
+        final boolean ready = isReady();
+        response.setStatus(ready ? 200 : 503);
+        response.setContentType("text/plain");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(ready ? "ready" : "not ready");
+    }
+
     @Override
     protected RackApplication getApplication() throws RackException {
         return getRackFactory().getApplication();
     }
 
+    @Override
+    protected RackApplication getApplication(RackEnvironment request) throws RackException {
+        final AdmissionController admission = admissionController;
+        // while holding a limiter slot the (shared) application is handed out right away
+        if ( admission == null || limiterSlot.get() != null ) return getRackFactory().getApplication(request);
+
+        final long start = System.nanoTime();
+        try {
+            return getRackFactory().getApplication(request);
+        }
+        finally { // (also) accounts for acquire timeouts
+            admission.recordSojourn(System.nanoTime() - start);
+        }
+    }
+
     @Override
     protected void afterException(
             final RackEnvironment request,
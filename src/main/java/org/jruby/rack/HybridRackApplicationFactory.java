@@ -0,0 +1,158 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import static org.jruby.rack.RackLogger.Level.*;
+
+/**
+ * Serves most requests from a single shared (thread-safe) runtime, while
+ * requests for (non thread-safe) parts of the application matching a path are
+ * served from a (small) pool of isolated runtimes. Extra runtimes (and heap)
+ * are only paid for the parts that actually need them.
+ * <p>
+ * Used instead of the {@link SharedRackApplicationFactory} when isolated paths
+ * are configured using the <code>isolated</code> runtime (sub-)pool options :
+ * <ul>
+ * <li><code>jruby.runtime.pool.isolated.path</code>: A path prefix.
+ * <li><code>jruby.runtime.pool.isolated.pattern</code>: A regular expression
+ *  matching the (whole) path.
+ * <li><code>jruby.runtime.pool.isolated.min</code> /
+ *  <code>jruby.runtime.pool.isolated.max</code>: The pool size.
+ * <li><code>jruby.runtime.pool.isolated.acquire.timeout</code>: The acquire
+ *  timeout (defaults to <code>jruby.runtime.acquire.timeout</code>).
+ * </ul>
+ *
+ * @see PoolingRackApplicationFactory
+ */
+public class HybridRackApplicationFactory extends SharedRackApplicationFactory {
+
+    public static final String POOL_NAME = "isolated";
+
+    private static final String POOL_PREFIX = "jruby.runtime.pool." + POOL_NAME + '.';
+
+    private volatile PoolingRackApplicationFactory isolatedPool;
+    private String isolatedPath;
+    private Pattern isolatedPattern;
+
+    public HybridRackApplicationFactory(RackApplicationFactory delegate) {
+        super(delegate);
+    }
+
+    /**
+     * @param config the configuration
+     * @return whether (isolated) paths for a hybrid setup have been configured
+     */
+    public static boolean isConfigured(final RackConfig config) {
+        return config.getProperty(POOL_PREFIX + "path") != null ||
+               config.getProperty(POOL_PREFIX + "pattern") != null;
+    }
+
+    @Override
+    protected void doInit() throws Exception {
+        super.doInit(); // initializes the delegate and boots the shared runtime
+        final RackConfig config = getConfig();
+        isolatedPath = config.getProperty(POOL_PREFIX + "path");
+        final String pattern = config.getProperty(POOL_PREFIX + "pattern");
+        isolatedPattern = pattern == null ? null : Pattern.compile(pattern);
+        if ( isolatedPath == null && isolatedPattern == null ) {
+            log(WARN, "no isolated path (nor pattern) configured - using only the shared runtime");
+            return;
+        }
+        log(INFO, "serving requests from isolated runtimes for" +
+                ( isolatedPath != null ? " path: '" + isolatedPath + "'" : "" ) +
+                ( isolatedPattern != null ? " pattern: '" + isolatedPattern + "'" : "" ));
+        final PoolingRackApplicationFactory pool = newIsolatedPool(config);
+        pool.init(getContext());
+        isolatedPool = pool;
+    }
+
+    /**
+     * @param config the configuration
+     * @return a new (not yet initialized) pool for isolated requests
+     */
+    protected PoolingRackApplicationFactory newIsolatedPool(final RackConfig config) {
+        return config.isSerialInitialization() ?
+                new SerialPoolingRackApplicationFactory(getDelegate(), POOL_NAME) :
+                    new PoolingRackApplicationFactory(getDelegate(), POOL_NAME);
+    }
+
+    /**
+     * @return the pool serving isolated requests (null if not configured)
+     */
+    public PoolingRackApplicationFactory getIsolatedPool() {
+        return isolatedPool;
+    }
+
+    /**
+     * Returns an application from the isolated pool for matching requests,
+     * the shared application otherwise.
+     * @see RackApplicationFactory#getApplication(RackEnvironment)
+     */
+    @Override
+    public RackApplication getApplication(final RackEnvironment request) throws RackException {
+        final PoolingRackApplicationFactory pool = isolatedPool;
+        if ( pool != null && request != null && isIsolated(request.getPathInfo()) ) {
+            return pool.getApplication(request);
+        }
+        return getApplication();
+    }
+
+    /**
+     * Isolated requests are not limited (by the shared runtime's limiter).
+     * @see SharedRackApplicationFactory#getConcurrencyLimiter(RackEnvironment)
+     */
+    @Override
+    public ConcurrencyLimiter getConcurrencyLimiter(final RackEnvironment request) {
+        if ( isolatedPool != null && request != null && isIsolated(request.getPathInfo()) ) {
+            return null;
+        }
+        return super.getConcurrencyLimiter(request);
+    }
+
+    /**
+     * @param path the request path
+     * @return whether the path should be served by an isolated runtime
+     */
+    protected boolean isIsolated(final String path) {
+        if ( path == null ) return false;
+        if ( isolatedPath != null && path.startsWith(isolatedPath) ) return true;
+        return isolatedPattern != null && isolatedPattern.matcher(path).matches();
+    }
+
+    @Override
+    public void finishedWithApplication(RackApplication app) {
+        final PoolingRackApplicationFactory pool = isolatedPool;
+        if ( pool != null && app != null && app != getSharedApplication() ) {
+            pool.finishedWithApplication(app); return;
+        }
+        super.finishedWithApplication(app);
+    }
+
+    @Override
+    public void destroy() {
+        final PoolingRackApplicationFactory pool = isolatedPool;
+        // NOTE: keep the pool around, (draining) busy runtimes get returned
+        if ( pool != null ) pool.destroy(); // does not destroy the (shared) delegate
+        super.destroy();
+    }
+
+    @Override
+    public Collection<RackApplication> getManagedApplications() {
+        final Collection<RackApplication> shared = super.getManagedApplications();
+        final PoolingRackApplicationFactory pool = isolatedPool;
+        if ( shared == null || pool == null ) return shared;
+        final Collection<RackApplication> isolated = pool.getManagedApplications();
+        if ( isolated == null || isolated.isEmpty() ) return shared;
+        final Collection<RackApplication> apps = new ArrayList<>(shared);
+        apps.addAll(isolated);
+        return Collections.unmodifiableCollection(apps);
+    }
+
+}
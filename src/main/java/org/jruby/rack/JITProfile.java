@@ -0,0 +1,219 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jruby.MetaClass;
+import org.jruby.Ruby;
+import org.jruby.RubyBasicObject;
+import org.jruby.RubyClass;
+import org.jruby.RubyModule;
+import org.jruby.internal.runtime.methods.DynamicMethod;
+import org.jruby.internal.runtime.methods.MixedModeIRMethod;
+import org.jruby.runtime.ThreadContext;
+
+import static org.jruby.rack.RackLogger.Level.*;
+
+/**
+ * Remembers which (Ruby) methods got JIT-compiled in the runtimes created
+ * so far and compiles them eagerly in newly created runtimes, instead of each
+ * runtime profiling the same (hot) methods until the JIT threshold is reached.
+ * <p>
+ * Methods are recorded by name (<code>Module#method</code> for instance and
+ * <code>Module.method</code> for singleton methods), only modules reachable
+ * through constants are walked (anonymous modules are skipped). Compiled methods
+ * are collected from a runtime once it's warmed up (by the thread warming it up,
+ * before it serves requests) and from runtimes being destroyed - a runtime is
+ * never walked while it might be serving a request. Only (pooled) application
+ * runtimes are tracked, the error application's runtime is not.
+ * <p>
+ * Enabled using <code>jruby.runtime.jit.precompile</code> (default false),
+ * applies to pooled runtimes only.
+ *
+ * @see PoolingRackApplicationFactory
+ */
+public class JITProfile {
+
+    private final RackContext context;
+    private final Set<String> compiledMethods = ConcurrentHashMap.newKeySet();
+    // (live) runtimes profiled - removed when destroyed
+    private final Map<Ruby, Boolean> runtimes = new WeakHashMap<>();
+    private final ReentrantLock runtimesLock = new ReentrantLock();
+
+    public JITProfile(RackContext context) {
+        this.context = context;
+    }
+
+    /**
+     * @param context the context
+     * @return a new profile or null if pre-compilation is not enabled
+     */
+    public static JITProfile newInstance(final RackContext context) {
+        final RackConfig config = context.getConfig();
+        if ( config == null ) return null;
+        if ( ! DefaultRackConfig.toBoolean(config.getProperty("jruby.runtime.jit.precompile"), false) ) {
+            return null;
+        }
+        context.log(INFO, "pre-compiling (previously) JIT-ed methods in new runtimes");
+        return new JITProfile(context);
+    }
+
+    /**
+     * @return names of the methods recorded as compiled
+     */
+    public Set<String> getCompiledMethods() {
+        return Collections.unmodifiableSet(compiledMethods);
+    }
+
+    /**
+     * Eagerly compiles (previously recorded) methods in a new (booted) runtime
+     * and starts tracking the runtime.
+     * @param runtime the runtime
+     * @return number of methods compiled
+     */
+    public int apply(final Ruby runtime) {
+        runtimesLock.lock();
+        try {
+            runtimes.put(runtime, Boolean.TRUE);
+        }
+        finally {
+            runtimesLock.unlock();
+        }
+
+        if ( compiledMethods.isEmpty() || ! runtime.getInstanceConfig().getCompileMode().shouldJIT() ) {
+            return 0;
+        }
+        final long start = System.currentTimeMillis();
+        final ThreadContext threadContext = runtime.getCurrentContext();
+        int compiled = 0;
+        for ( final String name : compiledMethods ) {
+            final MixedModeIRMethod method = resolveMethod(runtime, name);
+            if ( method != null && method.getActualMethod() == null ) {
+                try {
+                    method.forceBuild(threadContext); compiled++;
+                }
+                catch (RuntimeException e) { // a JIT failure only costs us performance
+                    context.log(DEBUG, "failed to pre-compile " + name, e);
+                }
+            }
+        }
+        context.log(INFO, "pre-compiled " + compiled + " (out of " + compiledMethods.size() +
+                ") methods in " + (System.currentTimeMillis() - start) + "ms");
+        return compiled;
+    }
+
+    /**
+     * Records the methods JIT-compiled in the given runtime.
+     * <p>
+     * NOTE: to be called by the thread owning the runtime (e.g. once warmed up)
+     * while it's not serving requests, its modules are walked.
+     * @param runtime the runtime
+     */
+    public void record(final Ruby runtime) {
+        final ThreadContext threadContext = runtime.getCurrentContext();
+        // walk (named) modules reachable from Object - without triggering autoloads
+        final Set<RubyModule> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<RubyModule> modules = new ArrayDeque<>();
+        modules.add(runtime.getObject());
+        try {
+            RubyModule module;
+            while ( (module = modules.poll()) != null ) {
+                if ( ! visited.add(module) ) continue;
+                recordModule(threadContext, module);
+                final RubyClass metaClass = module.getMetaClass();
+                if ( metaClass != null && metaClass.isSingleton() ) recordModule(threadContext, metaClass);
+                for ( final RubyModule.ConstantEntry entry : module.getConstantMap().values() ) {
+                    if ( entry.value instanceof RubyModule ) modules.add((RubyModule) entry.value);
+                }
+            }
+        }
+        catch (RuntimeException e) { // modules changing while we iterate
+            context.log(DEBUG, "failed to record compiled methods", e);
+        }
+    }
+
+    /**
+     * @return number of (live) runtimes tracked
+     */
+    public int getRuntimeCount() {
+        runtimesLock.lock();
+        try {
+            return runtimes.size();
+        }
+        finally {
+            runtimesLock.unlock();
+        }
+    }
+
+    /**
+     * Records the methods JIT-compiled in the given runtime and stops tracking it.
+     * @param runtime the (to be destroyed) runtime
+     */
+    public void forget(final Ruby runtime) {
+        record(runtime);
+        runtimesLock.lock();
+        try {
+            runtimes.remove(runtime);
+        }
+        finally {
+            runtimesLock.unlock();
+        }
+    }
+
+    private void recordModule(final ThreadContext context, final RubyModule module) {
+        final String prefix = methodPrefix(context, module);
+        if ( prefix == null ) return;
+        for ( final Map.Entry<String, DynamicMethod> entry : module.getMethods().entrySet() ) {
+            final DynamicMethod method = entry.getValue();
+            if ( method instanceof MixedModeIRMethod && ((MixedModeIRMethod) method).getActualMethod() != null ) {
+                compiledMethods.add(prefix + entry.getKey());
+            }
+        }
+    }
+
+    private static String methodPrefix(final ThreadContext context, final RubyModule module) {
+        if ( module.isSingleton() ) {
+            final RubyBasicObject attached = ((MetaClass) module).getAttached();
+            if ( ! ( attached instanceof RubyModule ) ) return null;
+            final String name = moduleName(context, (RubyModule) attached);
+            return name == null ? null : name + '.';
+        }
+        final String name = moduleName(context, module);
+        return name == null ? null : name + '#';
+    }
+
+    private static String moduleName(final ThreadContext context, final RubyModule module) {
+        final String name = module.getName(context);
+        return name == null || name.startsWith("#<") ? null : name; // anonymous
+    }
+
+    private static MixedModeIRMethod resolveMethod(final Ruby runtime, final String name) {
+        int sep = name.lastIndexOf('#');
+        final boolean singleton = sep == -1;
+        if ( singleton ) sep = name.lastIndexOf('.');
+        if ( sep <= 0 ) return null;
+        RubyModule module;
+        try {
+            module = runtime.getClassFromPath(name.substring(0, sep));
+        }
+        catch (RuntimeException e) { // not (yet) loaded in this runtime
+            return null;
+        }
+        if ( module == null ) return null;
+        if ( singleton ) module = module.getSingletonClass();
+        final DynamicMethod method = module.getMethods().get(name.substring(sep + 1));
+        return method instanceof MixedModeIRMethod ? (MixedModeIRMethod) method : null;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.jruby.rack.servlet.ServletRackContext;
+
+import static org.jruby.rack.RackLogger.Level.*;
+
+/**
+ * (Un-)registers MBeans with the platform MBean server, named as
+ * <code>org.jruby.rack:type=[type],context=[context path]</code>.
+ */
+final class ManagedBeans {
+
+    private ManagedBeans() { /* no instances */ }
+
+    /**
+     * @return false if disabled using <code>-Djruby.management.enabled=false</code>
+     */
+    static boolean isEnabled() {
+        return ! "false".equalsIgnoreCase( System.getProperty("jruby.management.enabled") );
+    }
+
+    /**
+     * Registers an (MX) bean, an <code>id</code> key gets appended to the name
+     * if the name is already registered (e.g. multiple pools per context).
+     * @param context the (rack) context
+     * @param type the type (name) key
+     * @param keys additional (name) keys e.g. <code>pool="reports"</code> or null
+     * @param bean the bean
+     * @param mxbeanInterface the management interface
+     * @return the registered name, null if registration failed
+     */
+    static <T> ObjectName register(final RackContext context, final String type, final String keys,
+        final T bean, final Class<T> mxbeanInterface) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String name = "org.jruby.rack:type=" + type;
+        if ( context instanceof ServletRackContext ) {
+            final String contextPath = ((ServletRackContext) context).getContextPath();
+            if ( contextPath != null ) name += ",context=" + ObjectName.quote(contextPath);
+        }
+        if ( keys != null ) name += ',' + keys;
+        try {
+            final StandardMBean mbean = new StandardMBean(bean, mxbeanInterface, true);
+            try {
+                return server.registerMBean(mbean, new ObjectName(name)).getObjectName();
+            }
+            catch (InstanceAlreadyExistsException e) {
+                name += ",id=" + Integer.toHexString(System.identityHashCode(bean));
+                return server.registerMBean(mbean, new ObjectName(name)).getObjectName();
+            }
+        }
+        catch (JMException|RuntimeException e) {
+            context.log(WARN, "failed to register MBean '" + name + "'", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param context the (rack) context
+     * @param name the registered name (might be null)
+     */
+    static void unregister(final RackContext context, final ObjectName name) {
+        if ( name == null ) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (JMException e) {
+            context.log(DEBUG, "failed to unregister MBean '" + name + "'", e);
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.jruby.rack.RackLogger.Level.*;
+
+/**
+ * Periodically probes idle applications of a pool, unhealthy ones get
+ * destroyed and replaced (in the background).
+ *
+ * @see PoolingRackApplicationFactory#isHealthy(RackApplication)
+ */
+final class PoolHealthCheck {
+
+    // probes run one at a time, threads stuck in (hung) probes count as well
+    private static final int MAX_PROBE_THREADS = 4;
+
+    private final PoolingRackApplicationFactory pool;
+
+    private volatile String check;
+    private volatile long interval = 60 * 1000; // in millis
+    private volatile long timeout = 5 * 1000; // in millis
+    private volatile ThreadPoolExecutor executor; // runs probes
+    private volatile ScheduledExecutorService scheduler;
+    private final LongAdder evictions = new LongAdder();
+    private final Set<Probe> unfinished = ConcurrentHashMap.newKeySet(); // timed out (probes)
+
+    PoolHealthCheck(final PoolingRackApplicationFactory pool) {
+        this.pool = pool;
+    }
+
+    String getCheck() {
+        return check;
+    }
+
+    void setCheck(final String check) {
+        this.check = check;
+    }
+
+    long getInterval() {
+        return interval;
+    }
+
+    void setInterval(final long interval) {
+        this.interval = interval;
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+
+    void setTimeout(final long timeout) {
+        this.timeout = timeout;
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Schedules checks (unless no health check is configured).
+     */
+    void start() {
+        if ( check == null ) return;
+        pool.log(INFO, "checking idle runtimes every " + (interval / 1000.0f) + " seconds using: " + check);
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(0, MAX_PROBE_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), task -> {
+            Thread thread = new Thread(task, "JRuby-Rack-Pool-Health-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // NOTE: not using the maintenance thread - waiting for probes would block it
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "JRuby-Rack-Pool-Health-Check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkPool, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        final ScheduledExecutorService scheduler = this.scheduler;
+        if ( scheduler != null ) scheduler.shutdownNow();
+        final ThreadPoolExecutor executor = this.executor;
+        if ( executor != null ) executor.shutdownNow();
+        // no grace period left, destroy applications of (interrupted) probes
+        for ( final Probe probe : unfinished ) probe.finished(false);
+    }
+
+    /**
+     * Probes all idle applications, unhealthy ones get destroyed and replaced.
+     */
+    private void checkPool() {
+        int evicted = 0;
+        for ( final RackApplication app : new ArrayList<>(pool.getApplicationPool()) ) {
+            if ( pool.isDestroyed() ) return;
+            // NOTE: probe holding a permit so acquirers never find the pool empty
+            if ( ! pool.tryAcquirePermit() ) break; // all busy
+            final Long idleSince = pool.removeFromPool(app);
+            if ( idleSince == null ) { // acquired meanwhile
+                pool.releasePermit();
+                continue;
+            }
+
+            final Probe probe = probe(app);
+            final Boolean healthy = probe == null ? Boolean.TRUE : await(probe);
+            if ( healthy == null && pool.isDestroyed() ) { // interrupted
+                pool.forgetApplication(app);
+                destroyWhenDone(probe);
+            }
+            else if ( healthy == null || ! healthy ) {
+                evict(app, probe);
+                evicted++;
+            }
+            else if ( pool.isDestroyed() || ! pool.offerApplication(app) ) {
+                pool.destroyApplication(app);
+            }
+            else { // probing does not count as use
+                pool.setIdleSince(app, idleSince);
+            }
+            pool.releasePermit();
+            pool.signalWaiters();
+            if ( probe == null ) break; // skip this round
+        }
+        for ( int i = 0; i < evicted; i++ ) pool.replenish();
+    }
+
+    /**
+     * @return the running probe, null if it could not be started
+     */
+    private Probe probe(final RackApplication app) {
+        final ThreadPoolExecutor executor = this.executor;
+        final Probe probe = new Probe(app);
+        try {
+            probe.future = executor.submit(probe);
+            return probe;
+        }
+        catch (RejectedExecutionException e) {
+            if ( ! executor.isShutdown() ) { // otherwise destroyed
+                pool.log(WARN, "skipping health check, " + executor.getActiveCount() + " probe(s) still running");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return whether healthy, null if the probe did not complete (in time)
+     */
+    private Boolean await(final Probe probe) {
+        try {
+            if ( probe.future.get(timeout, TimeUnit.MILLISECONDS) ) return true;
+            pool.log(WARN, "health check failed: " + check);
+            return false;
+        }
+        catch (TimeoutException e) {
+            pool.log(WARN, "health check did not complete within " + (timeout / 1000.0f) + " seconds");
+            return null;
+        }
+        catch (ExecutionException e) {
+            pool.log(WARN, "health check failed: " + check, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            return false;
+        }
+        catch (InterruptedException e) { // destroyed
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void evict(final RackApplication app, final Probe probe) {
+        evictions.increment();
+        pool.forgetApplication(app);
+        pool.log(WARN, "evicting unhealthy application, pool size now = " + pool.getIdleApplications());
+        destroyWhenDone(probe);
+    }
+
+    /**
+     * Destroys a probed application, a (timed out) probe might still be using
+     * the runtime - destroying it is deferred until the probe completes, or
+     * for a grace period (the probe timeout) after which the probe gets
+     * interrupted and the application is destroyed regardless.
+     */
+    private void destroyWhenDone(final Probe probe) {
+        probe.done.whenComplete((completed, error) -> {
+            unfinished.remove(probe);
+            if ( ! completed ) {
+                pool.log(WARN, "health check did not complete within the grace period, destroying application anyway");
+                probe.future.cancel(true); // interrupt (a hung) probe
+            }
+            try {
+                pool.getDelegate().finishedWithApplication(probe.app);
+            }
+            catch (RuntimeException e) {
+                pool.log(WARN, "failed to destroy unhealthy application", e);
+            }
+        });
+        if ( probe.done.isDone() ) return;
+
+        unfinished.add(probe);
+        try {
+            scheduler.schedule(() -> probe.finished(false), timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) { // destroyed
+            probe.finished(false);
+        }
+    }
+
+    /**
+     * A probe, done once it no longer uses the (probed) runtime.
+     */
+    private final class Probe implements Callable<Boolean> {
+
+        final RackApplication app;
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        volatile Future<Boolean> future;
+
+        Probe(final RackApplication app) {
+            this.app = app;
+        }
+
+        @Override
+        public Boolean call() {
+            try {
+                return pool.isHealthy(app);
+            }
+            finally {
+                finished(true);
+            }
+        }
+
+        /**
+         * @param completed whether the probe completed (or the grace period elapsed)
+         */
+        void finished(final boolean completed) {
+            done.complete(completed);
+        }
+
+    }
+
+}
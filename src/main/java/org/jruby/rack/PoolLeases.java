@@ -0,0 +1,167 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.jruby.rack.RackLogger.Level.*;
+
+/**
+ * Busy runtimes (handed out from a pool till returned) tracked along with
+ * the thread, request and time - used for leak detection and lease dumps.
+ */
+final class PoolLeases {
+
+    private final PoolingRackApplicationFactory pool;
+    private final PoolRecycler recycler; // for runtime ids
+    private final Map<RackApplication, Lease> leases = new ConcurrentHashMap<>();
+    private volatile long leakThreshold; // in millis (0 - no leak detection)
+    private volatile boolean trace;
+    private final AtomicLong lastDump = new AtomicLong(0);
+    private final LongAdder leaks = new LongAdder();
+
+    PoolLeases(final PoolingRackApplicationFactory pool, final PoolRecycler recycler) {
+        this.pool = pool; this.recycler = recycler;
+    }
+
+    long getLeakThreshold() {
+        return leakThreshold;
+    }
+
+    void setLeakThreshold(final long leakThreshold) {
+        this.leakThreshold = leakThreshold;
+    }
+
+    boolean isTrace() {
+        return trace;
+    }
+
+    void setTrace(final boolean trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * @param app the application handed out (by the current thread)
+     */
+    void lease(final RackApplication app) {
+        leases.put(app, new Lease(trace));
+    }
+
+    /**
+     * @param app the (leased) application
+     * @param request the request the application got handed out for
+     */
+    void leasedFor(final RackApplication app, final RackEnvironment request) {
+        final Lease lease = leases.get(app);
+        if ( lease != null ) lease.request = request.getMethod() + ' ' + request.getRequestURI();
+    }
+
+    /**
+     * @param app the application returned to the pool
+     */
+    void release(final RackApplication app) {
+        final Lease lease = leases.remove(app);
+        if ( lease != null && lease.leaked ) {
+            pool.log(INFO, "(leaked) runtime returned after " + (System.currentTimeMillis() - lease.start) + "ms");
+        }
+    }
+
+    boolean isEmpty() {
+        return leases.isEmpty();
+    }
+
+    int size() {
+        return leases.size();
+    }
+
+    long getLeaks() {
+        return leaks.sum();
+    }
+
+    String[] getActiveLeases() {
+        final long now = System.currentTimeMillis();
+        final List<String> active = new ArrayList<>(leases.size());
+        for ( Map.Entry<RackApplication, Lease> entry : leases.entrySet() ) {
+            active.add( describe(entry.getKey(), entry.getValue(), now) );
+        }
+        return active.toArray(new String[0]);
+    }
+
+    /**
+     * Logs current lease holders (at most once per period).
+     * @param period the minimum time (in millis) between dumps
+     */
+    void dump(final long period) {
+        final long now = System.currentTimeMillis();
+        final long last = lastDump.get();
+        if ( now - last < period || ! lastDump.compareAndSet(last, now) ) return;
+
+        final StringBuilder dump = new StringBuilder();
+        dump.append(leases.size()).append(" runtime(s) held on acquire timeout :");
+        for ( Map.Entry<RackApplication, Lease> entry : leases.entrySet() ) {
+            final Lease lease = entry.getValue();
+            dump.append("\n  ").append( describe(entry.getKey(), lease, now) );
+            appendStack(dump, lease.thread.getStackTrace());
+        }
+        pool.log(WARN, dump.toString());
+    }
+
+    /**
+     * Reports runtimes held longer than the leak threshold (once per lease).
+     */
+    void detectLeaks() {
+        final long now = System.currentTimeMillis();
+        for ( Map.Entry<RackApplication, Lease> entry : leases.entrySet() ) {
+            final Lease lease = entry.getValue();
+            if ( lease.leaked || now - lease.start < leakThreshold ) continue;
+            lease.leaked = true;
+            leaks.increment();
+            final StringBuilder message = new StringBuilder("possible runtime leak: ");
+            message.append( describe(entry.getKey(), lease, now) );
+            if ( lease.trace != null ) {
+                message.append("\n  acquired at :");
+                appendStack(message, lease.trace.getStackTrace());
+            }
+            else if ( lease.thread.isAlive() ) {
+                appendStack(message, lease.thread.getStackTrace());
+            }
+            pool.log(WARN, message.toString());
+        }
+    }
+
+    private String describe(final RackApplication app, final Lease lease, final long now) {
+        return recycler.describe(app) +
+                " held for " + (now - lease.start) + "ms by thread '" + lease.thread.getName() + "'" +
+                ( lease.request == null ? "" : " (" + lease.request + ")" ) +
+                ( lease.thread.isAlive() ? "" : " - thread no longer alive" );
+    }
+
+    private static void appendStack(final StringBuilder out, final StackTraceElement[] stack) {
+        for ( StackTraceElement element : stack ) out.append("\n    at ").append(element);
+    }
+
+    /**
+     * A runtime handed out from the pool (till returned).
+     */
+    private static final class Lease {
+
+        final Thread thread = Thread.currentThread();
+        final long start = System.currentTimeMillis();
+        final Exception trace; // where acquired (if captured)
+        volatile String request;
+        volatile boolean leaked;
+
+        Lease(final boolean trace) {
+            this.trace = trace ? new Exception("runtime acquired") : null;
+        }
+
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Acquire metrics of a runtime pool (exposed using JMX).
+ *
+ * @see PoolingRackApplicationFactoryMXBean
+ */
+final class PoolMetrics {
+
+    static final long[] ACQUIRE_WAIT_BOUNDS = { 1, 5, 10, 50, 100, 500, 1000, 5000 };
+
+    private final LongAdder[] acquireWaitHistogram = new LongAdder[ACQUIRE_WAIT_BOUNDS.length + 1];
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final LongAdder onDemandCreations = new LongAdder();
+    private final LongAdder affinityHits = new LongAdder();
+    private final LongAdder affinityMisses = new LongAdder();
+
+    PoolMetrics() {
+        for ( int i = 0; i < acquireWaitHistogram.length; i++ ) {
+            acquireWaitHistogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param start the (nano) time the acquire started at
+     */
+    void recordAcquireWait(final long start) {
+        final long wait = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int i = 0;
+        while ( i < ACQUIRE_WAIT_BOUNDS.length && wait >= ACQUIRE_WAIT_BOUNDS[i] ) i++;
+        acquireWaitHistogram[i].increment();
+    }
+
+    void recordAcquireTimeout() {
+        acquireTimeouts.increment();
+    }
+
+    void recordOnDemandCreation() {
+        onDemandCreations.increment();
+    }
+
+    void recordAffinity(final boolean hit) {
+        if ( hit ) affinityHits.increment();
+        else affinityMisses.increment();
+    }
+
+    long getAcquireCount() {
+        long count = 0;
+        for ( LongAdder bucket : acquireWaitHistogram ) count += bucket.sum();
+        return count;
+    }
+
+    long getAcquireTimeouts() {
+        return acquireTimeouts.sum();
+    }
+
+    long getOnDemandCreations() {
+        return onDemandCreations.sum();
+    }
+
+    long getAffinityHits() {
+        return affinityHits.sum();
+    }
+
+    long getAffinityMisses() {
+        return affinityMisses.sum();
+    }
+
+    long[] getAcquireWaitHistogram() {
+        final long[] histogram = new long[acquireWaitHistogram.length];
+        for ( int i = 0; i < histogram.length; i++ ) {
+            histogram[i] = acquireWaitHistogram[i].sum();
+        }
+        return histogram;
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.jruby.rack.RackLogger.Level.*;
+
+/**
+ * Tracks the lifecycle (id, generation, request count and age) of every
+ * application created by a pool, whether recycling is enabled or not - the
+ * lifecycle also tells which (sub-)pool an application belongs to.
+ * <p>
+ * Expired (or stale) applications get retired, expired ones are replaced in
+ * the background and keep serving requests until their replacement is booted.
+ */
+final class PoolRecycler {
+
+    private final PoolingRackApplicationFactory pool;
+    private final Map<RackApplication, Lifecycle> lifecycles = new ConcurrentHashMap<>();
+    private final AtomicInteger sequence = new AtomicInteger(0);
+
+    private volatile Integer maxRequests;
+    private volatile long maxAge; // in millis (0 - unlimited)
+    // applications from a previous generation are retired once idle (reload)
+    private volatile int generation;
+
+    PoolRecycler(final PoolingRackApplicationFactory pool) {
+        this.pool = pool;
+    }
+
+    Integer getMaxRequests() {
+        return maxRequests;
+    }
+
+    void setMaxRequests(final Integer maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    long getMaxAge() {
+        return maxAge;
+    }
+
+    void setMaxAge(final long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    void setGeneration(final int generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * @param app a newly created application (of the current generation)
+     */
+    void track(final RackApplication app) {
+        track(app, generation);
+    }
+
+    void track(final RackApplication app, final int generation) {
+        lifecycles.put(app, new Lifecycle(sequence.incrementAndGet(), generation));
+    }
+
+    void untrack(final RackApplication app) {
+        lifecycles.remove(app);
+    }
+
+    Lifecycle get(final RackApplication app) {
+        return lifecycles.get(app);
+    }
+
+    /**
+     * @return whether the application has been created by the pool (and not destroyed)
+     */
+    boolean isTracked(final RackApplication app) {
+        return lifecycles.containsKey(app);
+    }
+
+    /**
+     * @return the runtime id e.g. <code>runtime-2</code>
+     */
+    String describe(final RackApplication app) {
+        final Lifecycle lifecycle = lifecycles.get(app);
+        return lifecycle == null ? "runtime" : "runtime-" + lifecycle.id;
+    }
+
+    Map<String, Integer> getRequestCounts() {
+        final Map<String, Integer> counts = new TreeMap<>();
+        for ( Lifecycle lifecycle : lifecycles.values() ) {
+            counts.put("runtime-" + lifecycle.id, lifecycle.requests.get());
+        }
+        return counts;
+    }
+
+    /**
+     * @return whether the application should be replaced (max requests or age reached)
+     */
+    boolean isExpired(final Lifecycle lifecycle) {
+        final Integer maxRequests = this.maxRequests;
+        if ( maxRequests != null && lifecycle.requests.get() >= maxRequests ) return true;
+        final long maxAge = this.maxAge;
+        return maxAge > 0 && System.currentTimeMillis() - lifecycle.created >= maxAge;
+    }
+
+    /**
+     * Boots a replacement for an (expired) application in the background.
+     * The expired application stays usable until the replacement is pooled.
+     */
+    void replaceInBackground(final RackApplication app, final Lifecycle lifecycle) {
+        if ( ! lifecycle.retiring.compareAndSet(false, true) ) return;
+        try {
+            pool.getMaintenanceExecutor().execute(() -> replace(app, lifecycle));
+        }
+        catch (RejectedExecutionException e) { // destroyed
+            lifecycle.retiring.set(false);
+        }
+    }
+
+    private void replace(final RackApplication app, final Lifecycle lifecycle) {
+        final RackApplication replacement;
+        pool.addCreatedApplications(1); // NOTE: temporarily above maximum
+        try {
+            replacement = pool.createApplication(false);
+        }
+        catch (RuntimeException e) {
+            pool.addCreatedApplications(-1);
+            lifecycle.retiring.set(false); // try again later
+            pool.log(ERROR, "unable to create replacement application", e);
+            return;
+        }
+        try {
+            replacement.init();
+            pool.warmUpApplication(replacement);
+        }
+        catch (RuntimeException e) {
+            pool.addCreatedApplications(-1);
+            lifecycles.remove(replacement);
+            lifecycle.retiring.set(false); // try again later
+            pool.log(ERROR, "unable to initialize replacement application", e);
+            return;
+        }
+        // NOTE: the replacement only ever takes the place of the retired one
+        // (thus the pool never shrinks nor overflows) - if it's busy serving a
+        // request the swap happens once it's finished with (returned)
+        lifecycle.replacement = replacement;
+        if ( ! lifecycles.containsKey(app) ) { // retired meanwhile (resize/reload)
+            discardReplacement(lifecycle);
+        }
+        else if ( pool.removeFromPool(app) != null ) { // idle - swap now
+            retire(app, lifecycle);
+            pool.putApplicationToPool(replacement);
+        }
+        else if ( ! lifecycles.containsKey(app) ) { // retired while checking
+            discardReplacement(lifecycle);
+        }
+    }
+
+    /**
+     * Destroys an application (no longer pooled) that is being swapped for
+     * its replacement.
+     * @see #discard(RackApplication, Lifecycle)
+     */
+    void retire(final RackApplication app, final Lifecycle lifecycle) {
+        lifecycles.remove(app);
+        pool.addCreatedApplications(-1);
+        pool.log(INFO, "retiring application after " + lifecycle.requests.get() + " requests");
+        try {
+            pool.getDelegate().finishedWithApplication(app);
+        }
+        catch (RuntimeException e) {
+            pool.log(WARN, "failed to destroy retired application", e);
+        }
+    }
+
+    /**
+     * Stops tracking a (destroyed) application, destroying its replacement.
+     */
+    void discardReplacement(final RackApplication app) {
+        final Lifecycle lifecycle = lifecycles.remove(app);
+        if ( lifecycle != null ) discardReplacement(lifecycle);
+    }
+
+    private void discardReplacement(final Lifecycle lifecycle) {
+        final RackApplication replacement = lifecycle.replacement;
+        // NOTE: removing its lifecycle "claims" the replacement (discarded once)
+        if ( replacement != null && lifecycles.remove(replacement) != null ) {
+            pool.addCreatedApplications(-1);
+            pool.getDelegate().finishedWithApplication(replacement);
+        }
+    }
+
+    /**
+     * Destroys an application (no longer pooled) along with its replacement,
+     * a replacement booted concurrently is discarded once it's done booting.
+     */
+    void discard(final RackApplication app, final Lifecycle lifecycle) {
+        retire(app, lifecycle);
+        discardReplacement(lifecycle);
+    }
+
+    boolean isStale(final RackApplication app) {
+        final Lifecycle lifecycle = lifecycles.get(app);
+        return lifecycle != null && lifecycle.generation != generation;
+    }
+
+    /**
+     * Retires the application if it's stale and idle (in the pool).
+     */
+    void removeStale(final RackApplication app) {
+        final Lifecycle lifecycle = lifecycles.get(app);
+        if ( lifecycle != null && lifecycle.generation != generation && pool.removeFromPool(app) != null ) {
+            discard(app, lifecycle);
+        }
+    }
+
+    /**
+     * Id, generation, request count and age of an application.
+     */
+    static final class Lifecycle {
+
+        final long created = System.currentTimeMillis();
+        final AtomicInteger requests = new AtomicInteger(0);
+        final AtomicBoolean retiring = new AtomicBoolean(false);
+        volatile RackApplication replacement;
+
+        final int id;
+        final int generation;
+
+        Lifecycle(final int id, final int generation) {
+            this.id = id; this.generation = generation;
+        }
+
+    }
+
+}
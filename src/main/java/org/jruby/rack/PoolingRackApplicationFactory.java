@@ -7,14 +7,37 @@
  */
 package org.jruby.rack;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ObjectName;
+
+import org.jruby.rack.servlet.ServletRackContext;
 
 import static org.jruby.rack.RackLogger.Level.*;
 
@@ -35,38 +58,205 @@ import static org.jruby.rack.RackLogger.Level.*;
  *  {@link AcquireTimeoutException} is thrown if such a condition occurs.
  * <li><code>jruby.runtime.init.threads</code>:
  *  Number of threads to use at startup to fill the pool. Default is 4.
+ * <li><code>jruby.runtime.create.concurrency</code>:
+ *  Maximum number of runtimes created (booted) in parallel on demand (or in
+ *  the background). Defaults to the number of init threads.
  * <li><code>jruby.runtime.init.wait</code>:
  *  Whether to wait for initialization to complete before the factory is usable.
  *  In case it's a integer value it waits for until given number of application
  *  instances are in the pool. Default is true (waits till at least min runtimes
  *  are initialized).
+ * <li><code>jruby.runtime.pool.ready</code>:
+ *  Number of (initialized and warmed up) runtimes in the pool for it to be
+ *  considered ready, see {@link #isReady()}. Defaults to the number of
+ *  runtimes initialization waits for (<code>jruby.runtime.init.wait</code>)
+ *  or the initial size if not waiting.
+ * <li><code>jruby.runtime.pool.order</code>:
+ *  Order in which pooled runtimes are handed out, either <code>fifo</code>
+ *  (default) or <code>lifo</code>. With LIFO the most recently used (JIT-warm)
+ *  runtimes serve most requests while the least recently used stay idle.
+ * <li><code>jruby.runtime.pool.affinity</code>: Whether a thread is handed
+ *  the runtime it used last (if idle) before falling back to the pool order.
+ *  Saves re-creating per-thread runtime state and keeps CPU caches warm.
+ *  Default is false.
+ * <li><code>jruby.runtime.pool.idle.timeout</code>: Value (in seconds) after
+ *  which an idle runtime gets destroyed (the pool shrinks down to the minimum
+ *  size). Default is none, runtimes are kept forever. Works best with LIFO.
+ * <li><code>jruby.runtime.pool.grow.threshold</code>:
+ *  Enables elastic growth, once the number of idle runtimes in the pool drops
+ *  to (or below) this value a new runtime is created in the background.
+ *  Requests finding the pool empty wait for a runtime to be returned or created
+ *  (instead of booting one themselves). Default is none (not elastic).
+ * <li><code>jruby.runtime.max_requests</code>: Number of requests after which
+ *  a runtime gets retired (recycled). Default is none (unlimited).
+ * <li><code>jruby.runtime.max_age</code>: Time (in seconds) after which a
+ *  runtime gets retired (recycled). Default is none (unlimited).
+ * <li><code>jruby.runtime.warmup</code>: Path to a file with (synthetic) requests
+ *  replayed against each runtime before it's put into the pool, see
+ *  {@link WarmupRackEnvironment} for the format.
+ * <li><code>jruby.runtime.warmup.iterations</code>: How many times the warm-up
+ *  requests are replayed (default 1).
+ * <li><code>jruby.runtime.health.check</code>: Periodically probes idle runtimes,
+ *  either a path (starting with a <code>/</code>) requested from the runtime
+ *  (expecting a 2xx or 3xx response) or a Ruby expression evaluated in the
+ *  runtime (expecting a truthy value). Unhealthy runtimes are destroyed and
+ *  replaced (in the background). Default is none (no checks).
+ * <li><code>jruby.runtime.health.interval</code>: Time (in seconds) between
+ *  health checks (default 60).
+ * <li><code>jruby.runtime.health.timeout</code>: Time (in seconds) a probe
+ *  might take, runtimes not responding in time are deemed unhealthy
+ *  (default 5). These get replaced right away, but are only destroyed once
+ *  their (late) probe completes, or (interrupting the probe) once the timeout
+ *  elapses again.
+ * <li><code>jruby.runtime.pool.drain.timeout</code>: Time (in seconds) to wait
+ *  on {@link #destroy()} for busy runtimes to finish their (in-flight) requests.
+ *  Default is 0 (do not wait).
+ * <li><code>jruby.runtime.lease.leak.threshold</code>: Time (in seconds) after
+ *  which a runtime not returned to the pool is reported as a (possible) leak.
+ *  Default is none (no leak detection).
+ * <li><code>jruby.runtime.lease.trace</code>: Whether to capture the stack
+ *  (including Ruby frames when acquired from Ruby code) at the time a runtime
+ *  gets acquired, reported with leaks and lease dumps (default false).
+ * </ul>
+ * <p>
+ * Runtimes handed out (leases) are tracked along with the thread, request
+ * URI and time, on an {@link AcquireTimeoutException} current lease holders
+ * (and their stacks) are logged.
+ * <p>
+ * Once destroyed the pool stops handing out runtimes, after (optionally)
+ * draining busy ones all runtimes are torn down in parallel (using up to
+ * <code>jruby.runtime.init.threads</code> threads).
+ * <p>
+ * Retired runtimes keep serving requests until a replacement has been booted
+ * (in the background), only then they are removed from the pool and destroyed.
+ * <p>
+ * Pool metrics (and resize and reload operations) are exposed using JMX, see
+ * {@link PoolingRackApplicationFactoryMXBean}.
+ * <p>
+ * A {@link #reload()} boots a complete new generation of runtimes (from the
+ * current rackup) in the background while the current ones keep serving.
+ * Once all new runtimes are initialized (and warmed up) the pool switches
+ * over to them, old runtimes are destroyed as soon as they are idle.
+ * <p>
+ * Runtimes might be partitioned into (named) sub-pools (bulkheads) so that
+ * slow requests can not occupy all runtimes :
+ * <ul>
+ * <li><code>jruby.runtime.pool.names</code>: Comma separated sub-pool names.
+ * <li><code>jruby.runtime.pool.[name].path</code>: A path prefix of requests
+ *  served by the sub-pool.
+ * <li><code>jruby.runtime.pool.[name].pattern</code>: A regular expression
+ *  matching (the path of) requests served by the sub-pool.
+ * <li><code>jruby.runtime.pool.[name].min</code>,
+ *  <code>jruby.runtime.pool.[name].max</code> and
+ *  <code>jruby.runtime.pool.[name].acquire.timeout</code>: Sub-pool sizing.
  * </ul>
+ * Requests not matching any sub-pool are served by this (default) pool.
+ * <p>
+ * The pool itself is lock-free, acquiring and releasing an application does
+ * not synchronize on a (global) monitor. Threads only block when waiting for
+ * a permit (while a maximum is set) or for the initial pool to fill up.
+ * Blocking only ever happens using (explicit) locks thus virtual threads are
+ * never pinned to their carrier while waiting.
  *
  * @author nicksieger
  */
-public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorator {
+public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorator
+    implements PoolingRackApplicationFactoryMXBean {
 
     // 10 seconds seems still too much for a default, has been 30 previously :
     private static final float ACQUIRE_DEFAULT = 10.0f;
 
-    protected final Queue<RackApplication> applicationPool = new LinkedList<>();
-    private Integer initialSize, maximumSize;
+    // idle applications in pool order, entries of applications taken out of
+    // the pool without polling (e.g. affine acquires) get skipped once polled
+    private final Deque<PooledApplication> applicationPool = new ConcurrentLinkedDeque<>();
+    // the (queued) entry of applications currently sitting in the pool, an
+    // application is taken out in O(1) by removing its entry (wherever queued)
+    private final Map<RackApplication, PooledApplication> pooledApplications = new ConcurrentHashMap<>();
+    private final AtomicInteger pooledCount = new AtomicInteger(0);
+    // entries removed (but still queued) since the queue was last purged
+    private final AtomicInteger removedEntries = new AtomicInteger(0);
+    // only used to signal applications being put into the pool (while waiting)
+    private final ReentrantLock poolLock = new ReentrantLock();
+    private final Condition applicationPut = poolLock.newCondition();
+    // guards lazy state initialization (and resizing)
+    private final ReentrantLock lock = new ReentrantLock();
+    // bounds the number of applications being created in parallel
+    private volatile Semaphore creationPermits = new Semaphore(4, true);
+    private int creationConcurrency = 4;
+    private final AtomicInteger applicationWaiters = new AtomicInteger(0);
+    // released once enough (initial) applications are pooled (or failed to init)
+    private volatile CountDownLatch initLatch = new CountDownLatch(0);
+    // released once enough applications have been pooled for serving traffic
+    private volatile CountDownLatch readyLatch = new CountDownLatch(0);
+    private final AtomicBoolean ready = new AtomicBoolean(false);
+
+    private volatile Integer initialSize, maximumSize;
+    // number of (busy) applications to destroy once returned (after a resize)
+    private final AtomicInteger excessApplications = new AtomicInteger(0);
 
     private final AtomicInteger initedApplications = new AtomicInteger(0);
     private final AtomicInteger createdApplications = new AtomicInteger(0);
 
     private float acquireTimeout = ACQUIRE_DEFAULT; // in seconds
-    private Semaphore permits;
+    private PoolPermits permits;
+
+    private volatile boolean lastInFirstOut;
+    private volatile boolean affinity;
+    // the application a thread acquired last (with affinity)
+    private final ThreadLocal<WeakReference<RackApplication>> lastApplication = new ThreadLocal<>();
+
+    private volatile long idleTimeout; // in millis (0 - never shrink)
+    private volatile Integer growThreshold;
+    private final AtomicBoolean growing = new AtomicBoolean(false);
+    private volatile ScheduledExecutorService maintenanceExecutor;
+
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+    private volatile boolean destroyed, drained;
+    private volatile long drainTimeout; // in millis (0 - do not wait)
+
+    private volatile List<WarmupRackEnvironment> warmupRequests;
+    private int warmupIterations = 1;
 
+    private final PoolRecycler recycler = new PoolRecycler(this);
+    // busy applications (handed out from the pool)
+    private final PoolLeases leases = new PoolLeases(this, recycler);
+    private final PoolHealthCheck healthCheck = new PoolHealthCheck(this);
+    private final PoolMetrics metrics = new PoolMetrics();
+    private volatile ObjectName objectName;
+
+    // null for the (default) pool, otherwise the sub-pool name
+    private final String poolName;
+    private final SubPools subPools = new SubPools(this);
+
+    @SuppressWarnings("this-escape") // collaborators only keep a reference
     public PoolingRackApplicationFactory(RackApplicationFactory delegate) {
+        this(delegate, null);
+    }
+
+    /**
+     * Creates a (named) sub-pool, sharing the (initialized) delegate.
+     * @param delegate the delegate factory
+     * @param poolName the sub-pool name
+     */
+    @SuppressWarnings("this-escape")
+    protected PoolingRackApplicationFactory(RackApplicationFactory delegate, String poolName) {
         super(delegate);
+        this.poolName = poolName;
     }
 
     /**
-     * @return the (unmodifiable) pool snapshot
+     * @return an (unmodifiable) snapshot of the idle applications in the pool
      */
     public Collection<RackApplication> getApplicationPool() {
-        return applicationPool;
+        return Collections.unmodifiableList(idleApplications());
+    }
+
+    private List<RackApplication> idleApplications() {
+        final List<RackApplication> apps = new ArrayList<>(pooledCount.get());
+        for ( PooledApplication entry : applicationPool ) {
+            if ( entry.isPooled() ) apps.add(entry.app);
+        }
+        return apps;
     }
 
     /**
@@ -109,23 +299,287 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
             ACQUIRE_DEFAULT : acquireTimeout.floatValue();
     }
 
+    /**
+     * @return whether the most recently returned application is handed out first
+     */
+    public boolean isLastInFirstOut() {
+        return lastInFirstOut;
+    }
+
+    public void setLastInFirstOut(boolean lastInFirstOut) {
+        this.lastInFirstOut = lastInFirstOut;
+    }
+
+    /**
+     * @return whether threads prefer the application they acquired last
+     */
+    public boolean isAffinity() {
+        return affinity;
+    }
+
+    public void setAffinity(boolean affinity) {
+        this.affinity = affinity;
+    }
+
+    /**
+     * @return maximum number of applications created in parallel
+     */
+    public int getCreationConcurrency() {
+        return creationConcurrency;
+    }
+
+    public void setCreationConcurrency(int concurrency) {
+        this.creationConcurrency = Math.max(1, concurrency);
+        this.creationPermits = new Semaphore(creationConcurrency, true);
+    }
+
+    /**
+     * @return the time (in seconds) after which idle runtimes are destroyed
+     */
+    public Number getIdleTimeout() {
+        return idleTimeout / 1000.0f;
+    }
+
+    public void setIdleTimeout(Number idleTimeout) {
+        this.idleTimeout = idleTimeout == null || idleTimeout.floatValue() <= 0 ?
+            0 : (long) (idleTimeout.floatValue() * 1000);
+    }
+
+    /**
+     * @return the number of idle runtimes at which the pool starts growing
+     */
+    public Integer getGrowThreshold() {
+        return growThreshold;
+    }
+
+    public void setGrowThreshold(Integer growThreshold) {
+        this.growThreshold = growThreshold == null || growThreshold < 0 ? null : growThreshold;
+    }
+
+    /**
+     * @return the number of requests after which an application gets recycled
+     */
+    public Integer getMaxRequests() {
+        return recycler.getMaxRequests();
+    }
+
+    public void setMaxRequests(Integer maxRequests) {
+        recycler.setMaxRequests( maxRequests == null || maxRequests <= 0 ? null : maxRequests );
+    }
+
+    /**
+     * @return the time (in seconds) after which an application gets recycled
+     */
+    public Number getMaxAge() {
+        return recycler.getMaxAge() / 1000.0f;
+    }
+
+    public void setMaxAge(Number maxAge) {
+        recycler.setMaxAge( maxAge == null || maxAge.floatValue() <= 0 ?
+            0 : (long) (maxAge.floatValue() * 1000) );
+    }
+
+    /**
+     * @return (synthetic) requests replayed before an application gets pooled
+     */
+    public List<WarmupRackEnvironment> getWarmupRequests() {
+        return warmupRequests;
+    }
+
+    public void setWarmupRequests(List<WarmupRackEnvironment> warmupRequests) {
+        this.warmupRequests = warmupRequests;
+    }
+
+    public int getWarmupIterations() {
+        return warmupIterations;
+    }
+
+    public void setWarmupIterations(Number warmupIterations) {
+        this.warmupIterations = warmupIterations == null ? 1 : warmupIterations.intValue();
+    }
+
+    /**
+     * @return the health check (a path or a Ruby expression)
+     */
+    public String getHealthCheck() {
+        return healthCheck.getCheck();
+    }
+
+    public void setHealthCheck(String healthCheck) {
+        this.healthCheck.setCheck( healthCheck == null || healthCheck.trim().isEmpty() ? null : healthCheck.trim() );
+    }
+
+    /**
+     * @return the time (in seconds) between health checks
+     */
+    public Number getHealthCheckInterval() {
+        return healthCheck.getInterval() / 1000.0f;
+    }
+
+    public void setHealthCheckInterval(Number interval) {
+        healthCheck.setInterval( interval == null || interval.floatValue() <= 0 ?
+            60 * 1000 : (long) (interval.floatValue() * 1000) );
+    }
+
+    /**
+     * @return the time (in seconds) a health check probe might take
+     */
+    public Number getHealthCheckTimeout() {
+        return healthCheck.getTimeout() / 1000.0f;
+    }
+
+    public void setHealthCheckTimeout(Number timeout) {
+        healthCheck.setTimeout( timeout == null || timeout.floatValue() <= 0 ?
+            5 * 1000 : (long) (timeout.floatValue() * 1000) );
+    }
+
+    /**
+     * @return the time (in seconds) to wait for busy runtimes on destroy
+     */
+    public Number getDrainTimeout() {
+        return drainTimeout / 1000.0f;
+    }
+
+    public void setDrainTimeout(Number drainTimeout) {
+        this.drainTimeout = drainTimeout == null || drainTimeout.floatValue() <= 0 ?
+            0 : (long) (drainTimeout.floatValue() * 1000);
+    }
+
+    /**
+     * @return the time (in seconds) after which a busy runtime is reported as leaked
+     */
+    public Number getLeakThreshold() {
+        return leases.getLeakThreshold() / 1000.0f;
+    }
+
+    public void setLeakThreshold(Number leakThreshold) {
+        leases.setLeakThreshold( leakThreshold == null || leakThreshold.floatValue() <= 0 ?
+            0 : (long) (leakThreshold.floatValue() * 1000) );
+    }
+
+    /**
+     * @return whether the stack is captured when a runtime gets acquired
+     */
+    public boolean isLeaseTrace() {
+        return leases.isTrace();
+    }
+
+    public void setLeaseTrace(boolean leaseTrace) {
+        leases.setTrace(leaseTrace);
+    }
+
+    /**
+     * @return the name of this sub-pool (null for the default pool)
+     */
+    public String getPoolName() {
+        return poolName;
+    }
+
+    /**
+     * @return the (named) sub-pools (of the default pool)
+     */
+    public Collection<PoolingRackApplicationFactory> getSubPools() {
+        return subPools.getFactories();
+    }
+
     @Override
     protected void doInit() throws Exception {
-        super.doInit();
         final RackConfig config = getConfig();
-        setAcquireTimeout( config.getRuntimeAcquireTimeout() );
-        setInitialSize( config.getInitialRuntimes() );
-        setMaximumSize( config.getMaximumRuntimes() );
+        if ( poolName == null ) {
+            super.doInit();
+            if ( getDelegate() instanceof DefaultRackApplicationFactory ) { // only pooled runtimes are profiled
+                ((DefaultRackApplicationFactory) getDelegate()).setJITProfile( JITProfile.newInstance(getContext()) );
+            }
+            setAcquireTimeout( config.getRuntimeAcquireTimeout() );
+            setInitialSize( config.getInitialRuntimes() );
+            setMaximumSize( config.getMaximumRuntimes() );
+        }
+        else { // sub-pool - delegate already initialized
+            final String prefix = "jruby.runtime.pool." + poolName + '.';
+            final Number timeout = config.getNumberProperty(prefix + "acquire.timeout");
+            setAcquireTimeout( timeout != null ? timeout : config.getRuntimeAcquireTimeout() );
+            final Number min = config.getNumberProperty(prefix + "min");
+            setInitialSize( min == null ? null : min.intValue() );
+            final Number max = config.getNumberProperty(prefix + "max");
+            setMaximumSize( max == null ? null : max.intValue() );
+        }
+        setLastInFirstOut( isLastInFirstOut(config) );
+        setAffinity( DefaultRackConfig.toBoolean(config.getProperty("jruby.runtime.pool.affinity"), false) );
+        Number concurrency = config.getNumberProperty("jruby.runtime.create.concurrency");
+        if ( concurrency == null ) concurrency = config.getRuntimeInitThreads();
+        setCreationConcurrency( concurrency == null ? 4 : concurrency.intValue() );
+        setIdleTimeout( config.getNumberProperty("jruby.runtime.pool.idle.timeout") );
+        Number threshold = config.getNumberProperty("jruby.runtime.pool.grow.threshold");
+        setGrowThreshold( threshold == null ? null : threshold.intValue() );
+        Number requests = config.getNumberProperty("jruby.runtime.max_requests");
+        setMaxRequests( requests == null ? null : requests.intValue() );
+        setMaxAge( config.getNumberProperty("jruby.runtime.max_age") );
+        setWarmupRequests( loadWarmupRequests(config.getProperty("jruby.runtime.warmup")) );
+        setWarmupIterations( config.getNumberProperty("jruby.runtime.warmup.iterations") );
+        setHealthCheck( config.getProperty("jruby.runtime.health.check") );
+        setHealthCheckInterval( config.getNumberProperty("jruby.runtime.health.interval") );
+        setHealthCheckTimeout( config.getNumberProperty("jruby.runtime.health.timeout") );
+        setDrainTimeout( config.getNumberProperty("jruby.runtime.pool.drain.timeout") );
+        setLeakThreshold( config.getNumberProperty("jruby.runtime.lease.leak.threshold") );
+        setLeaseTrace( DefaultRackConfig.toBoolean(config.getProperty("jruby.runtime.lease.trace"), false) );
 
         log( INFO, "using "+ // using 4:8 runtime pool
                 ( initialSize == null ? "" : initialSize ) + ":" +
                 ( maximumSize == null ? "" : maximumSize ) +
-                " runtime pool with acquire timeout of " +
+                ( lastInFirstOut ? " (lifo)" : "" ) +
+                ( affinity ? " (thread affine)" : "" ) +
+                " runtime pool" + ( poolName == null ? "" : " '" + poolName + "'" ) +
+                " with acquire timeout of " +
                 acquireTimeout + " seconds" );
 
         fillInitialPool();
         RuntimeException error = getInitError();
         if ( error != null ) throw error; // an init thread failed
+
+        if ( idleTimeout > 0 ) {
+            log(INFO, "idle runtimes will be destroyed after " + getIdleTimeout() + " seconds");
+            final long period = Math.max(1000, idleTimeout / 2);
+            getMaintenanceExecutor().scheduleWithFixedDelay(
+                    this::shrinkPool, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        final long leakThreshold = leases.getLeakThreshold();
+        if ( leakThreshold > 0 ) {
+            final long period = Math.max(1000, leakThreshold / 2);
+            getMaintenanceExecutor().scheduleWithFixedDelay(
+                    leases::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        healthCheck.start();
+
+        if ( ManagedBeans.isEnabled() ) registerMBean();
+
+        if ( poolName == null ) subPools.init(config);
+    }
+
+    /**
+     * @param name the sub-pool name
+     * @return a new (not yet initialized) sub-pool
+     */
+    protected PoolingRackApplicationFactory newSubPool(final String name) {
+        return new PoolingRackApplicationFactory(getDelegate(), name);
+    }
+
+    /**
+     * Returns an application from the sub-pool matching the request, or from
+     * this (default) pool if no sub-pool matches.
+     * @see RackApplicationFactory#getApplication(RackEnvironment)
+     */
+    @Override
+    public RackApplication getApplication(final RackEnvironment request) throws RackException {
+        final PoolingRackApplicationFactory pool = request == null ? null : subPools.route(request);
+        if ( pool != null ) return pool.leasedFor(pool.getApplication(), request);
+        return leasedFor(getApplication(), request);
+    }
+
+    private RackApplication leasedFor(final RackApplication app, final RackEnvironment request) {
+        if ( app != null && request != null ) leases.leasedFor(app, request);
+        return app;
     }
 
     /**
@@ -149,33 +603,60 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
     protected RackApplication getApplicationImpl()
         throws RackInitializationException, AcquireTimeoutException {
 
-        RackApplication app = null;
+        final long start = System.nanoTime();
+        if ( destroyed ) throw new AcquireTimeoutException("runtime pool has been destroyed");
         final boolean permit = acquireApplicationPermit();
+        if ( destroyed ) { // while waiting for a permit
+            if ( permit ) releasePermit();
+            throw new AcquireTimeoutException("runtime pool has been destroyed");
+        }
         // if a permit is gained we can retrieve an app from the pool
-        synchronized (applicationPool) {
-            if ( ! applicationPool.isEmpty() ) {
-                app = applicationPool.remove();
-            }
-            else if ( permit && ( initialSize != null &&
-                    initialSize > initedApplications.get() ) ) {
-                // pool is empty but we still gained a permit for an app !
-                // could only happen if the initialization threads are still
-                // running (and we've been configured to not wait till all
-                // 'initial' applications are put to the pool on #init())
-                do { // thus we'll wait for another pool put ...
-                    waitForApplication();
-                } while (applicationPool.isEmpty());
-                app = applicationPool.remove();
-            }
+        RackApplication app = affinity ? pollAffineApplication() : pollApplication();
+        if ( app == null && permit && isInitializing() ) {
+            // pool is empty but we still gained a permit for an app !
+            // could only happen if the initialization threads are still
+            // running (and we've been configured to not wait till all
+            // 'initial' applications are put to the pool on #init())
+            app = waitForApplication(); // thus we'll wait for another pool put
+        }
+        if ( app == null && growThreshold != null ) {
+            // elastic - let the pool grow in the background (not on this thread)
+            app = awaitApplication(permit);
         }
 
-        if ( app != null ) return app;
+        if ( app != null ) {
+            if ( growThreshold != null && pooledCount.get() <= growThreshold ) {
+                growInBackground();
+            }
+            leases.lease(app);
+            if ( affinity ) rememberApplication(app);
+            metrics.recordAcquireWait(start);
+            return app;
+        }
         // NOTE: for apps that take a long time to boot simply set values
         // initial == maximum to avoid creating an application on demand
-        if ( ! permit || ( maximumSize == null || maximumSize > createdApplications.get() ) ) {
+        // (reserving first so parallel creations never exceed the maximum)
+        final boolean reserved;
+        if ( permit ) reserved = reserveApplication();
+        else {
+            createdApplications.incrementAndGet(); reserved = true;
+        }
+        if ( reserved ) {
             log(INFO, "pool was empty - getting new application instance");
+            metrics.recordOnDemandCreation();
             // we'll try to put it "back" to pool from finishedWithApplication(app)
-            return createApplication(true);
+            try {
+                app = createApplication(true);
+            }
+            catch (RuntimeException e) {
+                createdApplications.decrementAndGet();
+                if ( permit ) releasePermit();
+                throw e;
+            }
+            leases.lease(app);
+            if ( affinity ) rememberApplication(app);
+            metrics.recordAcquireWait(start);
+            return app;
         }
 
         // NOTE: getting here means something is wrong (app == null) :
@@ -198,13 +679,16 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
             }
             catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+                metrics.recordAcquireTimeout();
                 throw new AcquireTimeoutException("could not acquire application permit", e);
             }
 
             if ( ! acquired ) {
+                metrics.recordAcquireTimeout();
                 String message = "could not acquire application permit" +
                         " within " + acquireTimeout + " seconds";
                 log(INFO, message + " (try increasing the pool size)");
+                dumpLeases();
                 throw new AcquireTimeoutException(message);
             }
             return true; // acquired permit
@@ -212,30 +696,70 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
         return false; // no maximum limit - no permit needed
     }
 
+    boolean tryAcquirePermit() {
+        final PoolPermits permits = this.permits;
+        return permits == null || permits.tryAcquire();
+    }
+
+    void releasePermit() {
+        final PoolPermits permits = this.permits;
+        if ( permits != null ) permits.release();
+    }
+
     /**
      * @see RackApplicationFactory#finishedWithApplication(RackApplication)
      */
     @Override
-    public void finishedWithApplication(final RackApplication app) {
+    public void finishedWithApplication(RackApplication app) {
         if (app == null) {
             // seems to sometimes happen when an error occurs during boot
             // and thus on destroy app.destroy(); will fail with a NPE !
             log(WARN, "ignoring null application");
             return;
         }
-        synchronized (applicationPool) {
-            if (maximumSize != null && applicationPool.size() >= maximumSize) {
+        final PoolingRackApplicationFactory pool = subPools.ownerOf(app);
+        if ( pool != null ) {
+            pool.finishedWithApplication(app); return;
+        }
+        leases.release(app);
+        if ( destroyed ) { // draining - keep it pooled (unless drained already)
+            if ( drained || ! offerApplication(app) ) destroyApplication(app);
+            else if ( drained && removeFromPool(app) != null ) destroyApplication(app);
+            releasePermit();
+            signalApplicationPut();
+            return;
+        }
+        final int generation = recycler.getGeneration();
+        final PoolRecycler.Lifecycle lifecycle = recycler.get(app);
+        if ( lifecycle != null ) {
+            lifecycle.requests.incrementAndGet();
+            if ( lifecycle.generation != generation ) { // pool reloaded meanwhile
+                recycler.discard(app, lifecycle);
+                releasePermit();
                 return;
             }
-            if (applicationPool.contains(app)) {
+            final RackApplication replacement = lifecycle.replacement;
+            if ( replacement != null ) { // booted meanwhile - swap it in
+                recycler.retire(app, lifecycle);
+                app = replacement;
+            }
+            else if ( excessApplications.get() > 0 && excessApplications.getAndDecrement() > 0 ) {
+                // pool has been resized (shrunk) meanwhile
+                recycler.discard(app, lifecycle);
+                releasePermit();
                 return;
             }
-            // return app to pool and signal it's usable to acquire :
-            applicationPool.add(app);
-            if (permits != null) {
-                permits.release();
+            else if ( recycler.isExpired(lifecycle) ) {
+                recycler.replaceInBackground(app, lifecycle);
             }
         }
+        // return app to pool and signal it's usable to acquire :
+        if ( offerApplication(app) ) {
+            releasePermit();
+            // reloaded while returning - might have missed the (stale) app
+            if ( generation != recycler.getGeneration() ) recycler.removeStale(app);
+            signalWaiters(); // only (elastic) waiters need a signal
+        }
     }
 
     /**
@@ -243,13 +767,139 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
      */
     @Override
     public void destroy() {
-        synchronized (applicationPool) {
-            for (RackApplication app : applicationPool) {
-                getDelegate().finishedWithApplication(app);
+        stopPool(); // stop handing out applications (in all pools)
+        updateReadiness();
+        subPools.stop();
+
+        // busy applications (of all pools) are drained up to the same deadline
+        final long deadline = System.currentTimeMillis() + drainTimeout;
+        drainPool(deadline);
+        subPools.drain(deadline);
+
+        destroyPool();
+        subPools.destroy();
+        // NOTE: the delegate is shared (and destroyed) by the default pool
+        if ( poolName == null ) super.destroy();
+    }
+
+    boolean isDestroyed() {
+        return destroyed;
+    }
+
+    /**
+     * Stops handing out applications and any background work (before the
+     * pool gets drained and destroyed).
+     */
+    void stopPool() {
+        destroyed = true;
+        unregisterMBean();
+        final ScheduledExecutorService executor = maintenanceExecutor;
+        if ( executor != null ) executor.shutdownNow();
+        healthCheck.stop();
+    }
+
+    /**
+     * Destroys the pooled (idle) applications, busy ones get destroyed once
+     * returned (they are still tracked thus returned to the owning pool).
+     */
+    void destroyPool() {
+        drained = true;
+        final List<RackApplication> apps = new ArrayList<>(pooledCount.get());
+        RackApplication app;
+        while ( (app = pollApplication()) != null ) apps.add(app);
+        destroyApplications(apps);
+    }
+
+    /**
+     * @return whether the application has been created by this pool (and not destroyed)
+     */
+    boolean isPooling(final RackApplication app) {
+        return recycler.isTracked(app);
+    }
+
+    int addCreatedApplications(final int delta) {
+        return createdApplications.addAndGet(delta);
+    }
+
+    /**
+     * Waits (up to the drain deadline) for busy applications to be returned.
+     * @param deadline the time (in millis) to stop waiting at
+     */
+    void drainPool(final long deadline) {
+        if ( drainTimeout <= 0 || leases.isEmpty() ) return;
+
+        long remaining = deadline - System.currentTimeMillis();
+        if ( remaining > 0 ) { // otherwise (another pool) waited till the deadline
+            log(INFO, "waiting for " + leases.size() + " busy application(s) to finish");
+            poolLock.lock();
+            try {
+                while ( ! leases.isEmpty() && remaining > 0 ) {
+                    applicationPut.await(remaining, TimeUnit.MILLISECONDS);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            applicationPool.clear();
+            finally {
+                poolLock.unlock();
+            }
+        }
+        final int busy = leases.size();
+        if ( busy > 0 ) {
+            log(WARN, busy + " application(s) still busy after " + getDrainTimeout() +
+                    " seconds (will be destroyed once finished)");
+        }
+    }
+
+    /**
+     * Destroys the applications in parallel (using the init threads).
+     * @param apps the applications to destroy
+     */
+    private void destroyApplications(final List<RackApplication> apps) {
+        Integer threads = getConfig().getRuntimeInitThreads();
+        if ( threads == null ) threads = 4;
+        threads = Math.min(threads, apps.size());
+        if ( threads <= 1 ) {
+            for ( RackApplication app : apps ) destroyApplication(app);
+            return;
+        }
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                task -> new Thread(task, "JRuby-Rack-App-Destroy-" + threadCount.getAndIncrement()));
+        for ( final RackApplication app : apps ) {
+            executor.execute(() -> destroyApplication(app));
+        }
+        executor.shutdown();
+        try {
+            while ( ! executor.awaitTermination(5, TimeUnit.SECONDS) ) {
+                log(DEBUG, "waiting for applications to be destroyed");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Destroys an application (no longer pooled).
+     */
+    void destroyApplication(final RackApplication app) {
+        forgetApplication(app);
+        try {
+            getDelegate().finishedWithApplication(app);
+        }
+        catch (RuntimeException e) {
+            log(WARN, "failed to destroy application", e);
         }
-        super.destroy();
+    }
+
+    /**
+     * No longer count an application (about to be destroyed) as created.
+     */
+    void forgetApplication(final RackApplication app) {
+        createdApplications.decrementAndGet();
+        recycler.discardReplacement(app);
     }
 
     /**
@@ -259,8 +909,11 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
      * leakage when the web application is undeployed from the server.
      */
     public void fillInitialPool() throws RackInitializationException {
-        permits = maximumSize != null ? new Semaphore(maximumSize, true) : null;
+        permits = maximumSize != null ? new PoolPermits(maximumSize) : null;
+        readyLatch = new CountDownLatch( getReadySize() );
+        updateReadiness();
         if (initialSize != null) { // otherwise pool filled on demand
+            initLatch = new CountDownLatch( Math.max(0, getInitialPoolSizeWait()) );
             Queue<RackApplication> apps = createApplications();
             launchInitialization(apps);
             waitTillPoolReady();
@@ -294,7 +947,8 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
             app.init();
         }
         catch (final RuntimeException e) {
-            synchronized(this) {
+            lock.lock();
+            try {
                 RuntimeException initError = getInitError();
                 setInitError(e);
 
@@ -304,77 +958,533 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
                     log(ERROR, "unable to initialize application", e);
                 }
             }
-            // we're put a null to make sure we get notified :
-            return putApplicationToPool(null);
+            finally {
+                lock.unlock();
+            }
+            // make sure (initial pool) waiters get notified :
+            initedApplications.incrementAndGet();
+            if ( ! isInitializing() ) release(initLatch);
+            signalApplicationPut();
+            return true;
         }
+        warmUpApplication(app);
         return putApplicationToPool(app);
     }
 
-    protected Queue<RackApplication> createApplications() throws RackInitializationException {
-        Queue<RackApplication> apps = new LinkedList<>();
-        for (int i = 0; i < initialSize; i++) {
-            apps.add( createApplication(false) );
+    private List<WarmupRackEnvironment> loadWarmupRequests(final String path) {
+        if ( path == null || path.isEmpty() ) return null;
+        try {
+            InputStream input = null;
+            if ( getContext() instanceof ServletRackContext ) {
+                input = ((ServletRackContext) getContext()).getResourceAsStream(path);
+            }
+            if ( input == null ) input = new FileInputStream(path);
+            final List<WarmupRackEnvironment> requests = WarmupRackEnvironment.parse(getContext(), input);
+            log(INFO, "loaded " + requests.size() + " warm-up request(s) from '" + path + "'");
+            return requests;
+        }
+        catch (IOException|IllegalArgumentException e) {
+            log(WARN, "failed to load warm-up requests from '" + path + "' (warm-up disabled)", e);
+            return null;
         }
-        return apps;
     }
 
-    private synchronized RackApplication createApplication(final boolean init)
-        throws RackInitializationException {
-        createdApplications.incrementAndGet();
-        if ( init ) initedApplications.incrementAndGet();
-        return init ? getDelegate().getApplication() : getDelegate().newApplication();
-    }
+    /**
+     * Replays the warm-up requests (if any) against the application.
+     * A failing request is logged but does not prevent pooling the application.
+     * @param app the (initialized) application
+     */
+    protected void warmUpApplication(final RackApplication app) {
+        final List<WarmupRackEnvironment> requests = warmupRequests;
+        if ( requests == null || requests.isEmpty() ) return;
 
-    /** Called when a thread initialized an application. */
-    private boolean putApplicationToPool(final RackApplication app) {
-        synchronized (applicationPool) {
-            if (maximumSize != null && applicationPool.size() >= maximumSize) {
-                return false;
+        final long start = System.currentTimeMillis();
+        int count = 0, failed = 0;
+        for ( int i = 0; i < warmupIterations; i++ ) {
+            for ( final WarmupRackEnvironment request : requests ) {
+                count++;
+                try {
+                    final RackResponse response = app.call(new WarmupRackEnvironment(request));
+                    if ( response != null ) response.getBody(); // consumes (and closes) the body
+                }
+                catch (RuntimeException e) {
+                    if ( failed++ == 0 ) log(WARN, "warm-up request " + request + " failed", e);
+                }
             }
-            applicationPool.add(app);
-            log(INFO, "added application to pool, size now = " + applicationPool.size());
-            initedApplications.incrementAndGet();
-            // in case we're waiting from waitForNextAvailable() :
-            applicationPool.notifyAll();
         }
-        return true;
+        log(INFO, "warmed up application in " + (System.currentTimeMillis() - start) + "ms" +
+                " (" + count + " requests" + ( failed > 0 ? ", " + failed + " failed)" : ")" ));
+
+        // methods compiled while warming up (not yet pooled thus not serving)
+        final JITProfile profile = getJITProfile();
+        if ( profile != null && app.getRuntime() != null ) profile.record(app.getRuntime());
     }
 
-    /** Wait till the pool has enough (initialized) applications. */
-    protected void waitTillPoolReady() {
-        final int waitFor = getInitialPoolSizeWait();
-        while (true) {
-            synchronized (applicationPool) {
-                if ( applicationPool.size() >= waitFor ) break;
-                waitForApplication();
-            }
+    private JITProfile getJITProfile() {
+        final RackApplicationFactory delegate = getDelegate();
+        if ( delegate instanceof DefaultRackApplicationFactory ) {
+            return ((DefaultRackApplicationFactory) delegate).getJITProfile();
         }
+        return null;
     }
 
-    private void waitForApplication() {
-        synchronized (applicationPool) {
-            try {
-                // although applicationPool is "locked" here
-                // calling wait() releases the target lock !
-                applicationPool.wait(5 * 1000);
-            }
-            catch (InterruptedException ignore) {
-            }
+    protected Queue<RackApplication> createApplications() throws RackInitializationException {
+        Queue<RackApplication> apps = new LinkedList<>();
+        for (int i = 0; i < initialSize; i++) {
+            createdApplications.incrementAndGet();
+            apps.add( createApplication(false) );
         }
+        return apps;
     }
 
     /**
-     * How many (initial) application instances to wait for becoming available
-     * in the pool (less or equal than zero means not to wait at all).
+     * Reserves a slot for a new application (counted as created).
+     * @return false if the maximum has been reached
      */
-    private int getInitialPoolSizeWait() {
-        Number waitNum = getConfig().getNumberProperty("jruby.runtime.init.wait");
-        if ( waitNum != null ) {
-            int wait = waitNum.intValue();
-            if (maximumSize != null && wait > maximumSize) {
-                wait = maximumSize;
-            }
-            return wait;
+    private boolean reserveApplication() {
+        final Integer maxSize = maximumSize;
+        int created;
+        do {
+            created = createdApplications.get();
+            if ( maxSize != null && created >= maxSize ) return false;
+        }
+        while ( ! createdApplications.compareAndSet(created, created + 1) );
+        return true;
+    }
+
+    /**
+     * Creates a new application, the caller is expected to have it counted
+     * (reserved) as created. Up to the creation concurrency applications are
+     * created in parallel.
+     */
+    RackApplication createApplication(final boolean init)
+        throws RackInitializationException {
+        final Semaphore creationPermits = this.creationPermits;
+        creationPermits.acquireUninterruptibly();
+        try {
+            if ( init ) initedApplications.incrementAndGet();
+            final RackApplication app = init ? getDelegate().getApplication() : getDelegate().newApplication();
+            recycler.track(app);
+            return app;
+        }
+        finally {
+            creationPermits.release();
+        }
+    }
+
+    /**
+     * Called when a thread initialized an application.
+     * @param app the (initialized) application
+     * @return false if the application could not be put (the pool is full)
+     */
+    protected boolean putApplicationToPool(final RackApplication app) {
+        if ( ! offerApplication(app) ) return false;
+        log(INFO, "added application to pool, size now = " + pooledCount.get());
+        initedApplications.incrementAndGet();
+        initLatch.countDown();
+        if ( ! isInitializing() ) release(initLatch);
+        readyLatch.countDown();
+        updateReadiness();
+        // in case we're waiting from waitForApplication() :
+        signalApplicationPut();
+        return true;
+    }
+
+    /**
+     * Puts an application into the pool (unless it's already there).
+     * @param app the application
+     * @return true if added, false if already pooled or the pool is full
+     */
+    boolean offerApplication(final RackApplication app) {
+        final Integer maxSize = maximumSize;
+        int size; // reserve a slot first so concurrent puts do not overflow
+        do {
+            size = pooledCount.get();
+            if ( maxSize != null && size >= maxSize ) return false;
+        }
+        while ( ! pooledCount.compareAndSet(size, size + 1) );
+
+        final PooledApplication entry = new PooledApplication(app);
+        if ( pooledApplications.putIfAbsent(app, entry) != null ) {
+            pooledCount.decrementAndGet(); // already in the pool
+            return false;
+        }
+        // LIFO: the least recently used applications end up at the tail
+        if ( lastInFirstOut ) applicationPool.offerFirst(entry);
+        else applicationPool.offerLast(entry);
+        return true;
+    }
+
+    /**
+     * @return an application from the pool or null if the pool is empty
+     */
+    private RackApplication pollApplication() {
+        PooledApplication entry;
+        while ( (entry = applicationPool.pollFirst()) != null ) {
+            // skip entries of applications taken out of the pool meanwhile
+            if ( pooledApplications.remove(entry.app, entry) ) {
+                pooledCount.decrementAndGet();
+                return entry.app;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the application the current thread acquired last if it's idle
+     * (removed from the pool), otherwise the next application from the pool
+     */
+    private RackApplication pollAffineApplication() {
+        final WeakReference<RackApplication> last = lastApplication.get();
+        final RackApplication app = last == null ? null : last.get();
+        final boolean hit = app != null && removeFromPool(app) != null;
+        metrics.recordAffinity(hit);
+        return hit ? app : pollApplication();
+    }
+
+    /**
+     * Removes an (idle) application from the pool.
+     * @param app the application
+     * @return the (nano) time since the application is idle, null if it was
+     * not in the pool (e.g. acquired meanwhile)
+     */
+    Long removeFromPool(final RackApplication app) {
+        final PooledApplication entry = pooledApplications.remove(app);
+        if ( entry == null ) return null;
+        pooledCount.decrementAndGet();
+        // the entry stays queued (till polled), purge once there's more of
+        // those than idle ones thus the queue stays bounded (amortized O(1))
+        if ( removedEntries.incrementAndGet() > Math.max(pooledCount.get(), 16) ) {
+            removedEntries.set(0);
+            applicationPool.removeIf(queued -> ! queued.isPooled());
+        }
+        return entry.idleSince;
+    }
+
+    void setIdleSince(final RackApplication app, final long idleSince) {
+        final PooledApplication entry = pooledApplications.get(app);
+        if ( entry != null ) entry.idleSince = idleSince;
+    }
+
+    private void rememberApplication(final RackApplication app) {
+        final WeakReference<RackApplication> last = lastApplication.get();
+        // weakly referenced - thread locals must not keep (destroyed) runtimes alive
+        if ( last == null || last.get() != app ) lastApplication.set(new WeakReference<>(app));
+    }
+
+    /**
+     * Wait (up to the acquire timeout) for an application to get returned to
+     * the pool or created in the background.
+     * @param permit whether a permit was acquired (released on timeout)
+     * @return an application or null (no permit needed and none became available)
+     * @throws AcquireTimeoutException if a permit was acquired but no application
+     */
+    private RackApplication awaitApplication(final boolean permit) throws AcquireTimeoutException {
+        growInBackground();
+
+        RackApplication app = null;
+        final long timeout = (long) (acquireTimeout * 1000);
+        final long deadline = System.currentTimeMillis() + timeout;
+        applicationWaiters.incrementAndGet();
+        poolLock.lock();
+        try {
+            long remaining = timeout;
+            while ( (app = pollApplication()) == null && remaining > 0 ) {
+                applicationPut.await(remaining, TimeUnit.MILLISECONDS);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            poolLock.unlock();
+            applicationWaiters.decrementAndGet();
+        }
+
+        if ( app == null && permit ) {
+            releasePermit(); // we're not going to use it
+            metrics.recordAcquireTimeout();
+            String message = "could not acquire application" +
+                    " within " + acquireTimeout + " seconds";
+            log(INFO, message + " (try increasing the pool size)");
+            dumpLeases();
+            throw new AcquireTimeoutException(message);
+        }
+        return app;
+    }
+
+    private boolean canGrow() {
+        final Integer maxSize = maximumSize;
+        return maxSize == null || maxSize > createdApplications.get();
+    }
+
+    /**
+     * Creates (and initializes) a new application in the background, unless
+     * one is already being created or the pool can not grow any further.
+     */
+    private void growInBackground() {
+        if ( ! canGrow() || ! growing.compareAndSet(false, true) ) return;
+        try {
+            getMaintenanceExecutor().execute(this::growPool);
+        }
+        catch (RejectedExecutionException e) { // destroyed
+            growing.set(false);
+        }
+    }
+
+    private void growPool() {
+        boolean grown = false;
+        try {
+            if ( ! canGrow() ) return;
+            grown = createAndPutApplicationToPool();
+        }
+        finally {
+            growing.set(false);
+        }
+        // the new application might have been taken already (while others
+        // skipped growing as we were busy) - thus re-check whether to continue :
+        final Integer threshold = growThreshold;
+        if ( grown && threshold != null &&
+            ( pooledCount.get() <= threshold || applicationWaiters.get() > 0 ) ) {
+            growInBackground();
+        }
+    }
+
+    /**
+     * Creates, initializes (and warms up) a new application on the current
+     * thread and puts it into the pool.
+     * @return whether the application got pooled
+     */
+    private boolean createAndPutApplicationToPool() {
+        if ( ! reserveApplication() ) return false; // maximum reached meanwhile
+        RackApplication app = null;
+        try {
+            app = createApplication(false);
+            app.init();
+            warmUpApplication(app);
+        }
+        catch (RuntimeException e) {
+            createdApplications.decrementAndGet();
+            if ( app != null ) recycler.untrack(app);
+            log(ERROR, "unable to initialize application (in background)", e);
+            return false;
+        }
+        if ( putApplicationToPool(app) ) return true;
+        createdApplications.decrementAndGet(); // pool full
+        recycler.untrack(app);
+        getDelegate().finishedWithApplication(app);
+        return false;
+    }
+
+    /**
+     * Destroys applications idle for longer than the idle timeout, while
+     * keeping at least the initial (minimum) number of applications around.
+     */
+    private void shrinkPool() {
+        final long now = System.nanoTime();
+        final long timeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        final int minSize = initialSize == null ? 0 : initialSize;
+        for ( Map.Entry<RackApplication, PooledApplication> entry : pooledApplications.entrySet() ) {
+            if ( createdApplications.get() <= minSize ) break;
+            if ( now - entry.getValue().idleSince < timeout ) continue;
+
+            final RackApplication app = entry.getKey();
+            // might have been acquired meanwhile :
+            if ( removeFromPool(app) == null ) continue;
+            forgetApplication(app);
+            log(INFO, "destroying idle application, pool size now = " + pooledCount.get());
+            try {
+                getDelegate().finishedWithApplication(app);
+            }
+            catch (RuntimeException e) {
+                log(WARN, "failed to destroy idle application", e);
+            }
+        }
+    }
+
+    /**
+     * Probes an (idle) application, the health check is either a path that
+     * gets requested (a 2xx or 3xx response is healthy) or a Ruby expression
+     * evaluated in the application's runtime (healthy if truthy).
+     * @param app the application
+     * @return whether the application is healthy
+     */
+    protected boolean isHealthy(final RackApplication app) {
+        final String check = healthCheck.getCheck();
+        if ( check.startsWith("/") ) {
+            final RackResponse response = app.call(new WarmupRackEnvironment(getContext(), "GET", check, null));
+            if ( response == null ) return false;
+            response.getBody(); // consumes (and closes) the body
+            final int status = response.getStatus();
+            return status >= 200 && status < 400;
+        }
+        return app.getRuntime().evalScriptlet(check).isTrue();
+    }
+
+    /**
+     * Creates (and pools) an application in the background, unless the
+     * maximum has been reached meanwhile (e.g. in place of an evicted one).
+     */
+    void replenish() {
+        getMaintenanceExecutor().execute(() -> {
+            if ( canGrow() ) createAndPutApplicationToPool();
+        });
+    }
+
+    protected ScheduledExecutorService getMaintenanceExecutor() {
+        ScheduledExecutorService executor = maintenanceExecutor;
+        if ( executor == null ) {
+            lock.lock();
+            try {
+                executor = maintenanceExecutor;
+                if ( executor == null ) {
+                    maintenanceExecutor = executor = Executors.newSingleThreadScheduledExecutor(task -> {
+                        Thread thread = new Thread(task, "JRuby-Rack-Pool-Maintenance");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        return executor;
+    }
+
+    private boolean isInitializing() {
+        return initialSize != null && initialSize > initedApplications.get();
+    }
+
+    /**
+     * Signals waiters (for an application to be returned or created) if any.
+     */
+    void signalWaiters() {
+        if ( applicationWaiters.get() > 0 ) signalApplicationPut();
+    }
+
+    private void signalApplicationPut() {
+        poolLock.lock();
+        try {
+            applicationPut.signalAll();
+        }
+        finally {
+            poolLock.unlock();
+        }
+    }
+
+    /**
+     * Wait till the pool has enough (initialized) applications or till the
+     * initialization finished (some applications might have failed to init).
+     */
+    protected void waitTillPoolReady() {
+        try {
+            initLatch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Whether the pool is ready to serve traffic, the configured number of
+     * (initialized and warmed up) applications have been put into the pool.
+     * Also published as a {@link RackApplicationFactory#READY} context attribute.
+     * @return true if ready (and not destroyed)
+     */
+    @Override
+    public boolean isReady() {
+        return readyLatch.getCount() == 0 && ! destroyed;
+    }
+
+    /**
+     * Waits for the pool to become ready.
+     * @param timeout the maximum time to wait
+     * @param unit the time unit
+     * @return whether the pool is ready
+     * @throws InterruptedException if interrupted while waiting
+     * @see #isReady()
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return readyLatch.await(timeout, unit) && ! destroyed;
+    }
+
+    private int getReadySize() {
+        final Number size = getConfig().getNumberProperty("jruby.runtime.pool.ready");
+        int ready;
+        if ( size != null ) ready = size.intValue();
+        else if ( initialSize == null ) ready = 0; // filled on demand
+        else { // not waiting on init still means ready once initial runtimes are
+            final int waitFor = getInitialPoolSizeWait();
+            ready = waitFor > 0 ? waitFor : initialSize;
+        }
+        if ( maximumSize != null && ready > maximumSize ) ready = maximumSize;
+        return Math.max(0, ready);
+    }
+
+    private void updateReadiness() {
+        final boolean ready = isReady();
+        if ( this.ready.getAndSet(ready) == ready && ready ) return;
+        if ( ready ) log(INFO, "runtime pool ready, size = " + pooledCount.get());
+        // NOTE: only the default pool publishes readiness
+        if ( poolName == null && getContext() instanceof ServletRackContext ) {
+            ((ServletRackContext) getContext()).setAttribute(RackApplicationFactory.READY, ready);
+        }
+    }
+
+    private static void release(final CountDownLatch latch) {
+        while ( latch.getCount() > 0 ) latch.countDown();
+    }
+
+    /**
+     * Wait for an application to be put into the pool, while initializing.
+     * @return the pooled application or null if initialization finished
+     */
+    private RackApplication waitForApplication() {
+        poolLock.lock();
+        try {
+            RackApplication app;
+            while ( (app = pollApplication()) == null && isInitializing() ) {
+                waitForSignal();
+            }
+            return app;
+        }
+        finally {
+            poolLock.unlock();
+        }
+    }
+
+    private void waitForSignal() {
+        try {
+            // although poolLock is "locked" here
+            // calling await() releases the lock !
+            applicationPut.await();
+        }
+        catch (InterruptedException ignore) {
+        }
+    }
+
+    private boolean isLastInFirstOut(final RackConfig config) {
+        final String order = config.getProperty("jruby.runtime.pool.order");
+        if ( order == null || "fifo".equalsIgnoreCase(order) ) return false;
+        if ( "lifo".equalsIgnoreCase(order) ) return true;
+        log(WARN, "unsupported jruby.runtime.pool.order = '" + order + "' (using fifo)");
+        return false;
+    }
+
+    /**
+     * How many (initial) application instances to wait for becoming available
+     * in the pool (less or equal than zero means not to wait at all).
+     */
+    private int getInitialPoolSizeWait() {
+        Number waitNum = getConfig().getNumberProperty("jruby.runtime.init.wait");
+        if ( waitNum != null ) {
+            int wait = waitNum.intValue();
+            if (maximumSize != null && wait > maximumSize) {
+                wait = maximumSize;
+            }
+            return wait;
         }
         // otherwise we assume it to be a boolean true/false flag :
         Boolean waitFlag = getConfig().getBooleanProperty("jruby.runtime.init.wait");
@@ -386,18 +1496,337 @@ public class PoolingRackApplicationFactory extends RackApplicationFactoryDecorat
         // apps are ready to be used, or 1 (previous behavior) if initial null
     }
 
+    /**
+     * @return idle applications of this pool and all sub-pools, null if
+     * initial applications are expected but none (including sub-pools) are idle
+     */
     @Override
     public Collection<RackApplication> getManagedApplications() {
-        int initSize = initialSize != null ? initialSize : -1;
-        synchronized (applicationPool) {
-            if ( applicationPool.isEmpty() ) {
-                if ( initSize > 0 ) return null; // ~ init error
-                return Collections.emptySet();
+        final Collection<RackApplication> snapshot = idleApplications();
+        final boolean empty = snapshot.isEmpty();
+        snapshot.addAll( subPools.getManagedApplications() );
+        if ( snapshot.isEmpty() ) {
+            if ( empty && initialSize != null && initialSize > 0 ) return null; // ~ init error
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableCollection(snapshot);
+    }
+
+    // management :
+
+    @Override
+    public int getIdleApplications() {
+        return pooledCount.get();
+    }
+
+    @Override
+    public int getBusyApplications() {
+        return leases.size();
+    }
+
+    @Override
+    public int getCreatedApplications() {
+        return createdApplications.get();
+    }
+
+    @Override
+    public long getAcquireCount() {
+        return metrics.getAcquireCount();
+    }
+
+    @Override
+    public long getAcquireTimeouts() {
+        return metrics.getAcquireTimeouts();
+    }
+
+    @Override
+    public long getAffinityHits() {
+        return metrics.getAffinityHits();
+    }
+
+    @Override
+    public long getAffinityMisses() {
+        return metrics.getAffinityMisses();
+    }
+
+    @Override
+    public long getOnDemandCreations() {
+        return metrics.getOnDemandCreations();
+    }
+
+    @Override
+    public long[] getAcquireWaitHistogramBounds() {
+        return PoolMetrics.ACQUIRE_WAIT_BOUNDS.clone();
+    }
+
+    @Override
+    public long[] getAcquireWaitHistogram() {
+        return metrics.getAcquireWaitHistogram();
+    }
+
+    @Override
+    public Map<String, Integer> getApplicationRequestCounts() {
+        return recycler.getRequestCounts();
+    }
+
+    @Override
+    public void resize(final int initialSize, final int maximumSize) {
+        lock.lock();
+        try {
+            doResize(initialSize, maximumSize);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void doResize(final int initialSize, final int maximumSize) {
+        if ( initialSize < 0 || maximumSize <= 0 || initialSize > maximumSize ) {
+            throw new IllegalArgumentException("invalid pool size " + initialSize + ":" + maximumSize);
+        }
+        final Integer previousMax = this.maximumSize;
+        if ( permits == null || previousMax == null ) {
+            throw new IllegalStateException("can not resize a pool without a (configured) maximum");
+        }
+        log(INFO, "resizing runtime pool " + this.initialSize + ":" + previousMax +
+                " to " + initialSize + ":" + maximumSize);
+
+        this.initialSize = initialSize;
+        this.maximumSize = maximumSize;
+        if ( maximumSize > previousMax ) {
+            permits.release(maximumSize - previousMax);
+        }
+        else if ( maximumSize < previousMax ) {
+            permits.reducePermits(previousMax - maximumSize);
+            // destroy idle ones, busy ones once returned (finishedWithApplication)
+            RackApplication app;
+            while ( createdApplications.get() > maximumSize && (app = pollApplication()) != null ) {
+                final PoolRecycler.Lifecycle lifecycle = recycler.get(app);
+                if ( lifecycle != null ) recycler.discard(app, lifecycle);
+                else {
+                    createdApplications.decrementAndGet();
+                    getDelegate().finishedWithApplication(app);
+                }
             }
-            Collection<RackApplication> snapshot =
-                    new ArrayList<>(applicationPool);
-            return Collections.unmodifiableCollection(snapshot);
+            excessApplications.set( Math.max(0, createdApplications.get() - maximumSize) );
+        }
+        if ( createdApplications.get() < initialSize ) {
+            getMaintenanceExecutor().execute(() -> {
+                while ( createdApplications.get() < this.initialSize && canGrow() ) {
+                    if ( ! createAndPutApplicationToPool() ) break;
+                }
+            });
         }
     }
 
+    @Override
+    public long getHealthCheckEvictions() {
+        return healthCheck.getEvictions();
+    }
+
+    @Override
+    public int getGeneration() {
+        return recycler.getGeneration();
+    }
+
+    /**
+     * Reloads the pool (and all sub-pools) in the background, re-reading the
+     * rackup script first. Requests are served by the current applications
+     * until all new ones have been booted.
+     * @throws IllegalStateException if a reload is already in progress
+     */
+    @Override
+    public void reload() {
+        if ( ! reloading.compareAndSet(false, true) ) {
+            throw new IllegalStateException("pool reload already in progress");
+        }
+        new Thread(() -> {
+            try {
+                if ( poolName == null && ! reloadRackupScript() ) return;
+                if ( ! reloadPool() ) return;
+                subPools.reload();
+            }
+            finally {
+                reloading.set(false);
+            }
+        }, "JRuby-Rack-Pool-Reload").start();
+    }
+
+    private boolean reloadRackupScript() {
+        final RackApplicationFactory factory = DefaultRackApplicationFactory.getRealFactory(getDelegate());
+        if ( ! ( factory instanceof DefaultRackApplicationFactory ) ) return true;
+        try {
+            ((DefaultRackApplicationFactory) factory).reloadRackupScript();
+            return true;
+        }
+        catch (RuntimeException e) {
+            log(ERROR, "unable to read rackup (pool reload aborted)", e);
+            return false;
+        }
+    }
+
+    /**
+     * Boots a new generation of applications and switches the pool over to
+     * them. Idle applications of the previous generation are destroyed right
+     * away, busy ones once they are returned to the pool.
+     * @return true if switched, false if booting the applications failed
+     */
+    protected boolean reloadPool() {
+        final Integer maxSize = maximumSize;
+        int size = Math.max(initialSize == null ? 0 : initialSize, createdApplications.get());
+        if ( maxSize != null ) size = Math.min(size, maxSize);
+        size = Math.max(size, 1);
+        log(INFO, "reloading runtime pool, booting " + size + " new application(s)");
+
+        final long start = System.currentTimeMillis();
+        final List<RackApplication> apps = bootApplications(size);
+        if ( apps == null ) return false;
+        if ( destroyed ) {
+            for ( RackApplication app : apps ) getDelegate().finishedWithApplication(app);
+            return false;
+        }
+
+        final int next = recycler.getGeneration() + 1;
+        for ( RackApplication app : apps ) recycler.track(app, next);
+        createdApplications.addAndGet(apps.size());
+        recycler.setGeneration(next);
+        // switch over - take out the idle (stale) ones first to make room :
+        final List<RackApplication> stale = new ArrayList<>();
+        for ( RackApplication app : idleApplications() ) {
+            if ( recycler.isStale(app) && removeFromPool(app) != null ) stale.add(app);
+        }
+        for ( RackApplication app : apps ) {
+            if ( ! putApplicationToPool(app) ) { // pool full (should not happen)
+                final PoolRecycler.Lifecycle lifecycle = recycler.get(app);
+                if ( lifecycle != null ) recycler.discard(app, lifecycle);
+            }
+        }
+        for ( RackApplication app : stale ) {
+            final PoolRecycler.Lifecycle lifecycle = recycler.get(app);
+            if ( lifecycle != null ) recycler.discard(app, lifecycle);
+        }
+        log(INFO, "reloaded runtime pool in " + (System.currentTimeMillis() - start) + "ms" +
+                " (generation " + next + ")");
+        return true;
+    }
+
+    /**
+     * Boots (initializes and warms up) applications using the init threads.
+     * @return the applications or null if (any) failed to boot
+     */
+    private List<RackApplication> bootApplications(final int count) {
+        Integer initThreads = getConfig().getRuntimeInitThreads();
+        if ( initThreads == null ) initThreads = 4;
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(initThreads, count),
+                task -> new Thread(task, "JRuby-Rack-App-Reload-" + threadCount.getAndIncrement()));
+        final List<Future<RackApplication>> futures = new ArrayList<>(count);
+        try {
+            for ( int i = 0; i < count; i++ ) {
+                futures.add( executor.submit(() -> {
+                    final RackApplication app = getDelegate().getApplication();
+                    warmUpApplication(app);
+                    return app;
+                }) );
+            }
+            final List<RackApplication> apps = new ArrayList<>(count);
+            Exception failure = null;
+            for ( Future<RackApplication> future : futures ) {
+                try {
+                    apps.add( future.get() );
+                }
+                catch (ExecutionException e) {
+                    if ( failure == null ) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if ( failure == null ) failure = e;
+                }
+            }
+            if ( failure == null ) return apps;
+
+            log(ERROR, "unable to initialize application (pool reload aborted)", failure);
+            for ( RackApplication app : apps ) {
+                try {
+                    getDelegate().finishedWithApplication(app);
+                }
+                catch (RuntimeException e) {
+                    log(WARN, "failed to destroy application", e);
+                }
+            }
+            return null;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public long getLeaseLeaks() {
+        return leases.getLeaks();
+    }
+
+    @Override
+    public String[] getActiveLeases() {
+        return leases.getActiveLeases();
+    }
+
+    /**
+     * Logs current lease holders (at most once per acquire timeout period).
+     */
+    private void dumpLeases() {
+        leases.dump( Math.max(1000, (long) (acquireTimeout * 1000)) );
+    }
+
+    private void registerMBean() {
+        final String keys = poolName == null ? null : "pool=" + ObjectName.quote(poolName);
+        objectName = ManagedBeans.register(getContext(), "PoolingRackApplicationFactory", keys,
+                this, PoolingRackApplicationFactoryMXBean.class);
+    }
+
+    private void unregisterMBean() {
+        final ObjectName name = objectName;
+        objectName = null;
+        ManagedBeans.unregister(getContext(), name);
+    }
+
+    /**
+     * Permits (with a configurable number of available permits).
+     */
+    @SuppressWarnings("serial")
+    /**
+     * A (queued) pool entry of an idle application.
+     */
+    private final class PooledApplication {
+
+        final RackApplication app;
+        volatile long idleSince = System.nanoTime();
+
+        PooledApplication(final RackApplication app) {
+            this.app = app;
+        }
+
+        /**
+         * @return whether still in the pool (not polled nor removed)
+         */
+        boolean isPooled() {
+            return pooledApplications.get(app) == this;
+        }
+
+    }
+
+    @SuppressWarnings("serial")
+    private static final class PoolPermits extends Semaphore {
+
+        PoolPermits(final int permits) { super(permits, true); }
+
+        @Override // make it accessible
+        protected void reducePermits(final int reduction) {
+            super.reducePermits(reduction);
+        }
+
+    }
+
 }
@@ -0,0 +1,126 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.Map;
+
+/**
+ * Management interface of the runtime (application) pool.
+ * Registered (with the platform MBean server) unless JRuby management has
+ * been disabled using <code>jruby.management.enabled=false</code>.
+ *
+ * @see PoolingRackApplicationFactory
+ */
+public interface PoolingRackApplicationFactoryMXBean {
+
+    /**
+     * @return <code>jruby.min.runtimes</code> (might have been resized)
+     */
+    Integer getInitialSize();
+
+    /**
+     * @return <code>jruby.max.runtimes</code> (might have been resized)
+     */
+    Integer getMaximumSize();
+
+    /**
+     * @return whether the pool has enough (warmed up) applications to serve traffic
+     */
+    boolean isReady();
+
+    /**
+     * @return number of (idle) applications sitting in the pool
+     */
+    int getIdleApplications();
+
+    /**
+     * @return number of applications currently serving requests
+     */
+    int getBusyApplications();
+
+    /**
+     * @return number of (alive) applications created by the pool
+     */
+    int getCreatedApplications();
+
+    /**
+     * @return number of applications acquired (from the pool or on-demand)
+     */
+    long getAcquireCount();
+
+    /**
+     * @return number of acquire attempts that timed out
+     */
+    long getAcquireTimeouts();
+
+    /**
+     * @return number of threads handed the application they used last (affinity)
+     */
+    long getAffinityHits();
+
+    /**
+     * @return number of threads not getting the application they used last (affinity)
+     */
+    long getAffinityMisses();
+
+    /**
+     * @return number of applications created on-demand (the pool was empty)
+     */
+    long getOnDemandCreations();
+
+    /**
+     * @return number of applications destroyed after failing a health check
+     */
+    long getHealthCheckEvictions();
+
+    /**
+     * @return number of runtimes reported as leaked (held beyond the threshold)
+     */
+    long getLeaseLeaks();
+
+    /**
+     * @return descriptions of runtimes currently handed out (busy)
+     */
+    String[] getActiveLeases();
+
+    /**
+     * @return upper (exclusive) bounds in milliseconds for the acquire wait
+     * histogram buckets, the last bucket (not listed) has no upper bound
+     */
+    long[] getAcquireWaitHistogramBounds();
+
+    /**
+     * @return acquire counts per wait time bucket
+     * @see #getAcquireWaitHistogramBounds()
+     */
+    long[] getAcquireWaitHistogram();
+
+    /**
+     * @return number of requests served by each (alive) application
+     */
+    Map<String, Integer> getApplicationRequestCounts();
+
+    /**
+     * Resizes the pool (at runtime), newly required applications are created
+     * in the background while (idle) applications above the maximum are
+     * destroyed, busy ones once they are returned to the pool.
+     * @param initialSize the new initial (minimum) size
+     * @param maximumSize the new maximum size
+     */
+    void resize(int initialSize, int maximumSize);
+
+    /**
+     * @return the pool generation, incremented on every (successful) reload
+     */
+    int getGeneration();
+
+    /**
+     * Reloads the pool (from the current rackup) without dropping requests,
+     * new applications are booted in the background and replace the current
+     * ones once all of them are ready.
+     */
+    void reload();
+
+}
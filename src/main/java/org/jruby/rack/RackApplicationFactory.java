@@ -17,6 +17,11 @@ public interface RackApplicationFactory {
     
     String RACK_CONTEXT = "rack.context";
     String FACTORY = "rack.factory";
+    /**
+     * Context attribute (a boolean) published by factories tracking readiness,
+     * no attribute means the factory is ready once initialized.
+     */
+    String READY = "rack.factory.ready";
 
     /** 
      * Initialize the factory (using the given context).
@@ -40,6 +45,18 @@ public interface RackApplicationFactory {
      * @return the application
      */
     RackApplication getApplication() throws RackException;
+
+    /**
+     * Retrieve an application that is ready to use for the given request.
+     * Factories might chose an application based on the request, by default
+     * the same as {@link #getApplication()}.
+     *
+     * @param request the request
+     * @return the application
+     */
+    default RackApplication getApplication(RackEnvironment request) throws RackException {
+        return getApplication();
+    }
     
     /** 
      * Return the application to the factory after processing. 
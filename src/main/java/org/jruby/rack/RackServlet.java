@@ -35,7 +35,7 @@ public class RackServlet extends AbstractServlet {
     public void init(ServletConfig config) {
         if (dispatcher == null) {
             context = (RackContext) config.getServletContext().getAttribute(RackApplicationFactory.RACK_CONTEXT);
-            dispatcher = new DefaultRackDispatcher(context);
+            dispatcher = AsyncRackDispatcher.decorateIfEnabled(new DefaultRackDispatcher(context), context);
         }
     }
 
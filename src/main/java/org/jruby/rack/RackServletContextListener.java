@@ -72,6 +72,9 @@ public class RackServletContextListener implements ServletContextListener {
 
         final RackApplicationFactory factory = getRealRackApplicationFactoryImpl();
         if (useSharedApplication((config))) {
+            if (HybridRackApplicationFactory.isConfigured(config)) {
+                return new HybridRackApplicationFactory(factory);
+            }
             return new SharedRackApplicationFactory(factory);
         } 
         else {
@@ -23,14 +23,23 @@ public class SerialPoolingRackApplicationFactory extends PoolingRackApplicationF
         super(factory);
     }
 
+    protected SerialPoolingRackApplicationFactory(RackApplicationFactory factory, String poolName) {
+        super(factory, poolName);
+    }
+
+    @Override
+    protected PoolingRackApplicationFactory newSubPool(final String name) {
+        return new SerialPoolingRackApplicationFactory(getDelegate(), name);
+    }
+
     @Override
     protected void launchInitialization(final Queue<RackApplication> apps) {
         while ( ! apps.isEmpty() ) {
             final RackApplication app = apps.remove();
             try {
                 app.init();
-                applicationPool.add(app);
-                log(INFO, "added application to pool, size now = " + applicationPool.size());
+                warmUpApplication(app);
+                putApplicationToPool(app);
             }
             catch (RackInitializationException e) {
                 log(ERROR, "unable to initialize application", e);
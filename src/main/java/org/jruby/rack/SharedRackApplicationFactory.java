@@ -10,6 +10,8 @@ package org.jruby.rack;
 import java.util.Collection;
 import java.util.Collections;
 
+import javax.management.ObjectName;
+
 import static org.jruby.rack.RackLogger.Level.INFO;
 
 /**
@@ -18,6 +20,10 @@ import static org.jruby.rack.RackLogger.Level.INFO;
  * memory consumption but the underlying Ruby code in the application is assumed
  * to be thread-safe. If you're using a Rails application make sure it is
  * configured as <code>config.threadsafe!</code>.
+ * <p>
+ * The number of requests concurrently executing in the shared runtime might
+ * be limited (and adapted based on latency), see {@link ConcurrencyLimiter}.
+ * Slots are held (by the dispatcher) while processing a request.
  *
  * @author nicksieger
  */
@@ -25,6 +31,9 @@ public class SharedRackApplicationFactory extends RackApplicationFactoryDecorato
 
     private volatile RackApplication application;
 
+    private volatile ConcurrencyLimiter limiter;
+    private volatile ObjectName objectName;
+
     public SharedRackApplicationFactory(RackApplicationFactory delegate) {
         super(delegate);
     }
@@ -34,6 +43,11 @@ public class SharedRackApplicationFactory extends RackApplicationFactoryDecorato
         super.doInit();
         log(INFO, "using a shared (thread-safe) runtime");
         application = getDelegate().getApplication();
+        limiter = ConcurrencyLimiter.newInstance(getContext());
+        if ( limiter != null && ManagedBeans.isEnabled() ) {
+            objectName = ManagedBeans.register(getContext(), "ConcurrencyLimiter", null,
+                    limiter, ConcurrencyLimiterMXBean.class);
+        }
     }
 
     @Override
@@ -41,6 +55,13 @@ public class SharedRackApplicationFactory extends RackApplicationFactoryDecorato
         return application;
     }
 
+    /**
+     * @return the shared application (null if not initialized)
+     */
+    protected RackApplication getSharedApplication() {
+        return application;
+    }
+
     /**
      * We do not create any new applications since we're sharing.
      * @see #getApplication()
@@ -56,8 +77,27 @@ public class SharedRackApplicationFactory extends RackApplicationFactoryDecorato
         /* NOOP we keep the shared application until #destroy() */
     }
 
+    /**
+     * @return the concurrency limiter (null if not configured)
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * @param request the request to be processed
+     * @return the limiter to hold a slot from while processing the request
+     * (null if the request is not limited)
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter(final RackEnvironment request) {
+        return limiter;
+    }
+
     @Override
     public void destroy() {
+        final ObjectName name = objectName;
+        objectName = null;
+        ManagedBeans.unregister(getContext(), name);
         if (application != null) {
             synchronized(this) {
                 if (application != null) {
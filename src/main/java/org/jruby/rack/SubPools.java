@@ -0,0 +1,148 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.jruby.rack.RackLogger.Level.*;
+
+/**
+ * The (named) sub-pools of the default pool, configured using
+ * <code>jruby.runtime.pool.names</code>, and the requests they serve.
+ */
+final class SubPools {
+
+    private final PoolingRackApplicationFactory pool; // the default pool
+    private volatile List<SubPool> pools = Collections.emptyList();
+
+    SubPools(final PoolingRackApplicationFactory pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Creates and initializes the configured sub-pools.
+     * @param config the configuration
+     */
+    void init(final RackConfig config) throws RackInitializationException {
+        final String names = config.getProperty("jruby.runtime.pool.names");
+        if ( names == null ) return;
+        final List<SubPool> pools = new ArrayList<>();
+        for ( String name : names.split(",") ) {
+            if ( (name = name.trim()).isEmpty() ) continue;
+            final String prefix = "jruby.runtime.pool." + name + '.';
+            final String path = config.getProperty(prefix + "path");
+            final String pattern = config.getProperty(prefix + "pattern");
+            if ( path == null && pattern == null ) {
+                pool.log(WARN, "no path (nor pattern) configured for runtime pool '" + name + "' (ignoring pool)");
+                continue;
+            }
+            final PoolingRackApplicationFactory factory = pool.newSubPool(name);
+            factory.init(pool.getContext());
+            pools.add( new SubPool(factory, path, pattern == null ? null : Pattern.compile(pattern)) );
+        }
+        this.pools = pools;
+    }
+
+    /**
+     * @param request the request
+     * @return the sub-pool serving the request, null if none matches
+     */
+    PoolingRackApplicationFactory route(final RackEnvironment request) {
+        final List<SubPool> pools = this.pools;
+        if ( pools.isEmpty() ) return null;
+        final String path = request.getPathInfo();
+        if ( path == null ) return null;
+        for ( final SubPool pool : pools ) {
+            if ( pool.matches(path) ) return pool.factory;
+        }
+        return null;
+    }
+
+    /**
+     * @param app an application being returned
+     * @return the sub-pool the application belongs to, null if none
+     */
+    PoolingRackApplicationFactory ownerOf(final RackApplication app) {
+        for ( final SubPool pool : pools ) {
+            if ( pool.factory.isPooling(app) ) return pool.factory;
+        }
+        return null;
+    }
+
+    List<PoolingRackApplicationFactory> getFactories() {
+        final List<SubPool> pools = this.pools;
+        final List<PoolingRackApplicationFactory> factories = new ArrayList<>(pools.size());
+        for ( SubPool pool : pools ) factories.add(pool.factory);
+        return factories;
+    }
+
+    /**
+     * @return (idle) applications of all sub-pools
+     */
+    Collection<RackApplication> getManagedApplications() {
+        final Collection<RackApplication> managed = new ArrayList<>();
+        for ( SubPool pool : pools ) {
+            final Collection<RackApplication> apps = pool.factory.getManagedApplications();
+            if ( apps != null ) managed.addAll(apps);
+        }
+        return managed;
+    }
+
+    /**
+     * Reloads all sub-pools (one after the other).
+     */
+    void reload() {
+        for ( SubPool pool : pools ) pool.factory.reloadPool();
+    }
+
+    /**
+     * Stops handing out applications (in all sub-pools).
+     */
+    void stop() {
+        for ( SubPool pool : pools ) pool.factory.stopPool();
+    }
+
+    /**
+     * Waits for busy applications (of all sub-pools) to be returned.
+     * @param deadline the (shared) drain deadline
+     */
+    void drain(final long deadline) {
+        for ( SubPool pool : pools ) pool.factory.drainPool(deadline);
+    }
+
+    /**
+     * Destroys the (idle) applications of all sub-pools.
+     */
+    void destroy() {
+        // NOTE: pools are kept - applications returned late still get routed
+        // to their sub-pool (and accounted for in there)
+        for ( SubPool pool : pools ) pool.factory.destroyPool();
+    }
+
+    /**
+     * A (named) sub-pool and the requests it serves.
+     */
+    private static final class SubPool {
+
+        final PoolingRackApplicationFactory factory;
+        final String path;
+        final Pattern pattern;
+
+        SubPool(PoolingRackApplicationFactory factory, String path, Pattern pattern) {
+            this.factory = factory; this.path = path; this.pattern = pattern;
+        }
+
+        boolean matches(final String requestPath) {
+            if ( path != null && requestPath.startsWith(path) ) return true;
+            return pattern != null && pattern.matcher(requestPath).matches();
+        }
+
+    }
+
+}
@@ -75,7 +75,7 @@ public class UnmappedRackFilter extends AbstractFilter {
     public void init(FilterConfig config) throws ServletException {
         this.context = (RackContext)
             config.getServletContext().getAttribute(RackApplicationFactory.RACK_CONTEXT);
-        this.dispatcher = new DefaultRackDispatcher(this.context);
+        this.dispatcher = AsyncRackDispatcher.decorateIfEnabled(new DefaultRackDispatcher(this.context), this.context);
 
         // true / false / "buffer"
         String value = config.getInitParameter("resetUnhandledResponse");
@@ -0,0 +1,233 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A synthetic (no servlet request behind it) Rack environment, used to replay
+ * warm-up requests against a freshly booted application before it starts
+ * serving real requests.
+ * <p>
+ * Warm-up requests are parsed from a (HTTP alike) plain text format, a request
+ * line followed by (optional) header lines, requests are separated by a blank
+ * line. Lines starting with a <code>#</code> are ignored :
+ * <pre>
+ * GET /
+ *
+ * GET /products?page=2
+ * Accept: text/html
+ * Cookie: locale=en
+ * </pre>
+ *
+ * @see PoolingRackApplicationFactory
+ */
+public class WarmupRackEnvironment implements RackEnvironment {
+
+    private final RackContext context;
+    private final String method;
+    private final String path;
+    private final String queryString;
+    private final Map<String, String> headers;
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    public WarmupRackEnvironment(final RackContext context,
+        final String method, final String uri, final Map<String, String> headers) {
+        this.context = context;
+        this.method = method;
+        final int query = uri.indexOf('?');
+        this.path = query == -1 ? uri : uri.substring(0, query);
+        this.queryString = query == -1 ? null : uri.substring(query + 1);
+        this.headers = headers == null ? Collections.emptyMap() : headers;
+    }
+
+    /**
+     * Copies a (parsed) request, each replay should use a fresh environment.
+     * @param request the request to copy
+     */
+    public WarmupRackEnvironment(final WarmupRackEnvironment request) {
+        this.context = request.context;
+        this.method = request.method;
+        this.path = request.path;
+        this.queryString = request.queryString;
+        this.headers = request.headers;
+    }
+
+    /**
+     * Parses warm-up requests (see the class documentation for the format).
+     * @param context the context
+     * @param input the input
+     * @return parsed requests
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException on an invalid request line
+     */
+    public static List<WarmupRackEnvironment> parse(final RackContext context, final Reader input)
+        throws IOException {
+        final List<WarmupRackEnvironment> requests = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(input);
+        String method = null, uri = null; Map<String, String> headers = null;
+        String line;
+        while ( (line = reader.readLine()) != null ) {
+            line = line.trim();
+            if ( line.startsWith("#") ) continue;
+            if ( line.isEmpty() ) {
+                if ( method != null ) {
+                    requests.add( new WarmupRackEnvironment(context, method, uri, headers) );
+                    method = null;
+                }
+                continue;
+            }
+            if ( method == null ) { // request line e.g. "GET /path?query"
+                final String[] parts = line.split("\\s+");
+                if ( parts.length < 2 || ! parts[1].startsWith("/") ) {
+                    throw new IllegalArgumentException("invalid warm-up request line: '" + line + "'");
+                }
+                method = parts[0].toUpperCase(); uri = parts[1];
+                headers = new LinkedHashMap<>();
+            }
+            else {
+                final int colon = line.indexOf(':');
+                if ( colon <= 0 ) {
+                    throw new IllegalArgumentException("invalid warm-up header line: '" + line + "'");
+                }
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        if ( method != null ) {
+            requests.add( new WarmupRackEnvironment(context, method, uri, headers) );
+        }
+        return requests;
+    }
+
+    public static List<WarmupRackEnvironment> parse(final RackContext context, final InputStream input)
+        throws IOException {
+        try ( Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8) ) {
+            return parse(context, reader);
+        }
+    }
+
+    @Override
+    public RackContext getContext() {
+        return context;
+    }
+
+    @Override
+    public InputStream getInput() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public String getScriptName() {
+        return "";
+    }
+
+    @Override
+    public String getPathInfo() {
+        return path;
+    }
+
+    @Override
+    public String getRequestURI() {
+        return queryString == null ? path : path + '?' + queryString;
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+    }
+
+    @Override
+    public Object getAttribute(String key) {
+        return attributes.get(key);
+    }
+
+    @Override
+    public void setAttribute(String key, Object value) {
+        if ( value == null ) attributes.remove(key);
+        else attributes.put(key, value);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(headers.keySet());
+    }
+
+    @Override
+    public String getHeader(String name) {
+        for ( Map.Entry<String, String> header : headers.entrySet() ) {
+            if ( header.getKey().equalsIgnoreCase(name) ) return header.getValue();
+        }
+        return null;
+    }
+
+    @Override
+    public String getScheme() {
+        return "http";
+    }
+
+    @Override
+    public String getContentType() {
+        return getHeader("Content-Type");
+    }
+
+    @Override
+    public int getContentLength() {
+        return 0;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getQueryString() {
+        return queryString;
+    }
+
+    @Override
+    public String getServerName() {
+        return "localhost";
+    }
+
+    @Override
+    public int getServerPort() {
+        return 80;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return "localhost";
+    }
+
+    @Override
+    public String getRemoteAddr() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public String getRemoteUser() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return method + ' ' + getRequestURI();
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.ext;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jruby.Ruby;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.api.Access;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Visibility;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * A lazy cookie Hash (<code>rack.request.cookie_hash</code>) backed by the raw
+ * <code>Cookie</code> header, parsed the same as {@link Cookies}.
+ * <p>
+ * Looking up (or deleting) a cookie only parses the looked up name, the name
+ * is remembered thus the header is scanned at most once per name. Any other
+ * method parses all (remaining) cookies first: those are wrapped (from Ruby)
+ * as they get defined by Hash, Java code reading the Hash (e.g. when passed
+ * to <code>Hash#merge</code> or <code>Marshal.dump</code>) goes through
+ * {@link #visitAll(ThreadContext, RubyHash.VisitorWithState, Object)}, {@link #dupFast(ThreadContext)}
+ * or {@link #size()}.
+ * <p>
+ * Available in Ruby as <code>Rack::Handler::Servlet::CookieHash</code>.
+ */
+@SuppressWarnings("serial")
+@JRubyClass(name="Rack::Handler::Servlet::CookieHash", parent="Hash")
+public class CookieHash extends RubyHash {
+
+    static final ObjectAllocator ALLOCATOR = CookieHash::new;
+
+    private static final int INITIAL_CAPACITY = 11; // RubyHash's MRI_INITIAL_CAPACITY
+    private static final int INITIAL_THRESHOLD = 6;
+
+    private RubyString header; // null once all cookies are parsed
+    private Set<ByteList> resolved; // names looked up (parsed) so far
+
+    protected CookieHash(Ruby runtime, RubyClass metaClass) {
+        // same (empty) table as RubyHash(Ruby, RubyClass) allocates, that one is deprecated (for removal)
+        super(runtime, metaClass, UNDEF, new RubyHashEntry[INITIAL_CAPACITY], INITIAL_THRESHOLD);
+    }
+
+    /**
+     * @param context the current thread context
+     * @param header the (raw) Cookie header
+     * @return a new (lazy) cookie hash
+     */
+    static CookieHash newCookieHash(final ThreadContext context, final RubyString header) {
+        final RubyClass klass = Access.getClass(context, "Rack", "Handler", "Servlet", "CookieHash");
+        final CookieHash cookies = new CookieHash(context.runtime, klass);
+        cookies.header = header;
+        return cookies;
+    }
+
+    @JRubyMethod(optional = 1, visibility = Visibility.PRIVATE)
+    public IRubyObject initialize(final ThreadContext context, final IRubyObject[] args, final Block block) {
+        super.initialize(context, Block.NULL_BLOCK);
+        if ( args.length > 0 && ! args[0].isNil() ) this.header = args[0].convertToString();
+        return this;
+    }
+
+    @JRubyMethod(visibility = Visibility.PRIVATE)
+    @Override
+    public RubyHash initialize_copy(final ThreadContext context, final IRubyObject original) {
+        if ( original instanceof CookieHash ) ((CookieHash) original).populate(context);
+        return super.initialize_copy(context, original);
+    }
+
+    /**
+     * Parses all (not yet parsed) cookies.
+     * @param context the current thread context
+     * @return self
+     */
+    @JRubyMethod
+    public IRubyObject populate(final ThreadContext context) {
+        final RubyString header = this.header;
+        if ( header != null ) {
+            this.header = null;
+            Cookies.parse(context, header, this, null, resolved);
+            this.resolved = null;
+        }
+        return this;
+    }
+
+    @JRubyMethod(name = "[]", required = 1)
+    @Override
+    public IRubyObject op_aref(final ThreadContext context, final IRubyObject key) {
+        resolve(context, key); return super.op_aref(context, key);
+    }
+
+    @JRubyMethod(name = { "key?", "has_key?", "include?", "member?" }, required = 1)
+    @Override
+    public RubyBoolean has_key_p(final ThreadContext context, final IRubyObject key) {
+        resolve(context, key); return super.has_key_p(context, key);
+    }
+
+    @JRubyMethod(name = "fetch", required = 1, optional = 1)
+    @Override
+    public IRubyObject fetch(final ThreadContext context, final IRubyObject[] args, final Block block) {
+        resolve(context, args[0]); return super.fetch(context, args, block);
+    }
+
+    @JRubyMethod(name = "dig", required = 1, rest = true)
+    @Override
+    public IRubyObject dig(final ThreadContext context, final IRubyObject[] args) {
+        resolve(context, args[0]); return super.dig(context, args);
+    }
+
+    @JRubyMethod(name = "delete", required = 1)
+    @Override
+    public IRubyObject delete(final ThreadContext context, final IRubyObject key, final Block block) {
+        resolve(context, key); return super.delete(context, key, block);
+    }
+
+    @JRubyMethod(name = "freeze")
+    @Override
+    public IRubyObject freeze(final ThreadContext context) {
+        populate(context); return super.freeze(context);
+    }
+
+    // Java (native) code reading the Hash :
+
+    @Override
+    @SuppressWarnings("rawtypes") // raw in RubyHash
+    public <T> void visitAll(final ThreadContext context, final VisitorWithState visitor, final T state) {
+        populate(context); super.visitAll(context, visitor, state);
+    }
+
+    @Override
+    public <T> void visitAll(final ThreadContext context, final VisitorWithStateI visitor) {
+        populate(context); super.visitAll(context, visitor);
+    }
+
+    @Override // used for **cookies (keyword arguments), expected to be a plain Hash
+    public RubyHash dupFast(final ThreadContext context) {
+        populate(context);
+        final RubyHash hash = super.dupFast(context);
+        hash.setMetaClass(Access.hashClass(context));
+        return hash;
+    }
+
+    @Override
+    public int size() {
+        if ( header != null ) populate(getRuntime().getCurrentContext());
+        return super.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public RubyBoolean empty_p(final ThreadContext context) {
+        populate(context); return super.empty_p(context);
+    }
+
+    /**
+     * Parses the looked up cookie (unless looked up previously).
+     */
+    private void resolve(final ThreadContext context, final IRubyObject key) {
+        if ( header == null || ! ( key instanceof RubyString ) ) return;
+        final ByteList name = ((RubyString) key).getByteList();
+        if ( resolved == null ) resolved = new HashSet<>();
+        else if ( resolved.contains(name) ) return;
+        resolved.add(name.dup());
+        Cookies.parse(context, header, this, name, null);
+    }
+
+}
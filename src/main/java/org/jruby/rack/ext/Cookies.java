@@ -0,0 +1,113 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.ext;
+
+import java.util.Set;
+
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.anno.JRubyModule;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Parses the cookie Hash (<code>rack.request.cookie_hash</code>) from the raw
+ * <code>Cookie</code> header, compatible with Rack's (2.2)
+ * <code>Rack::Utils.parse_cookies_header</code>.
+ * <p>
+ * <code>parse_cookies_header</code> parses the header (in a single pass) into a
+ * plain Hash, the env uses a lazy {@link CookieHash} instead.
+ * Available in Ruby as <code>Rack::Handler::Servlet::Cookies</code>.
+ */
+@JRubyModule(name = "Rack::Handler::Servlet::Cookies")
+public class Cookies {
+
+    /**
+     * Parses cookies, same as <code>Rack::Utils.parse_cookies_header</code>.
+     * @param context the current thread context
+     * @param self the module
+     * @param header the (raw) Cookie header
+     * @return cookies hash
+     */
+    @JRubyMethod(meta = true, required = 1)
+    public static IRubyObject parse_cookies_header(final ThreadContext context, final IRubyObject self,
+        final IRubyObject header) {
+        if ( header.isNil() ) return RubyHash.newHash(context.runtime);
+        return parse(context, header.convertToString());
+    }
+
+    /**
+     * Parses cookies from the header (the first cookie wins when there are
+     * more with the same name).
+     * @param context the current thread context
+     * @param header the (raw) Cookie header
+     * @return cookies hash
+     */
+    static RubyHash parse(final ThreadContext context, final RubyString header) {
+        final RubyHash cookies = RubyHash.newHash(context.runtime);
+        parse(context, header, cookies, null, null);
+        return cookies;
+    }
+
+    /**
+     * Parses cookies from the header into the given hash, cookies already in
+     * the hash are kept (as parsed previously or set by the app).
+     * @param context the current thread context
+     * @param header the (raw) Cookie header
+     * @param cookies the hash to fill
+     * @param name the only cookie to parse (null to parse all cookies)
+     * @param skip names not to parse (might be null)
+     */
+    static void parse(final ThreadContext context, final RubyString header, final RubyHash cookies,
+        final ByteList name, final Set<ByteList> skip) {
+        final Ruby runtime = context.runtime;
+        final ByteList str = header.getByteList();
+        final byte[] bytes = str.unsafeBytes();
+        final int len = str.begin() + str.realSize();
+        int start = str.begin();
+        while ( start < len ) {
+            int end = start; int eq = -1;
+            for ( byte b; end < len && ( b = bytes[end] ) != ';'; end++ ) {
+                if ( b == '=' && eq == -1 ) eq = end;
+            }
+            if ( end > start ) {
+                final ByteList keyBytes = new ByteList(bytes, start, (eq == -1 ? end : eq) - start, false);
+                if ( name == null ? skip == null || ! skip.contains(keyBytes) : name.equal(keyBytes) ) {
+                    final RubyString key = newString(runtime, header, start, keyBytes.realSize());
+                    if ( cookies.fastARef(key) == null ) {
+                        cookies.op_aset(context, key, value(context, header, eq, end));
+                    }
+                    if ( name != null ) return;
+                }
+            }
+            start = end + 1; // separator might be followed by spaces :
+            while ( start < len && bytes[start] == ' ' ) start++;
+        }
+    }
+
+    // unescape(value) rescue value
+    private static IRubyObject value(final ThreadContext context, final RubyString header, final int eq, final int end) {
+        if ( eq == -1 ) return context.nil;
+        final byte[] bytes = header.getByteList().unsafeBytes();
+        try {
+            final ByteList value = Parameters.unescape(bytes, eq + 1, end, new ByteList(end - eq - 1));
+            value.setEncoding(UTF8Encoding.INSTANCE);
+            return RubyString.newString(context.runtime, value);
+        }
+        catch (Parameters.ParameterError e) {
+            return newString(context.runtime, header, eq + 1, end - eq - 1);
+        }
+    }
+
+    private static RubyString newString(final Ruby runtime, final RubyString header, final int start, final int length) {
+        final ByteList str = header.getByteList();
+        return RubyString.newString(runtime, new ByteList(str.unsafeBytes(), start, length, str.getEncoding(), true));
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.ext;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+
+/**
+ * (Frozen) strings used when filling a Rack env, shared across requests.
+ * <p>
+ * Well-known HTTP header names are mapped to env keys (and back) using a global
+ * table, env keys and common (constant) values are frozen (and de-duplicated)
+ * Ruby strings cached per runtime. Tables are filled upfront and never grow as
+ * header names are client supplied, other names are converted on each request.
+ *
+ * @see JavaEnv
+ */
+final class EnvStrings {
+
+    // NOTE: keep in sync with DefaultEnv::HEADERS (default_env.rb)
+    static final String[] HEADERS = {
+        "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language",
+        "Access-Control-Request-Headers", "Access-Control-Request-Method",
+        "Authorization", "Cache-Control", "Connection", "Cookie", "DNT",
+        "Forwarded", "From", "Host", "If-Match", "If-Modified-Since",
+        "If-None-Match", "If-Range", "If-Unmodified-Since", "Keep-Alive",
+        "Max-Forwards", "Origin", "Pragma", "Proxy-Authorization", "Range",
+        "Referer", "Sec-Ch-Ua", "Sec-Ch-Ua-Mobile", "Sec-Ch-Ua-Platform",
+        "Sec-Fetch-Dest", "Sec-Fetch-Mode", "Sec-Fetch-Site", "Sec-Fetch-User",
+        "TE", "Trailer", "Transfer-Encoding", "Upgrade", "Upgrade-Insecure-Requests",
+        "User-Agent", "Version", "Via", "X-CSRF-Token", "X-Forwarded-For",
+        "X-Forwarded-Host", "X-Forwarded-Port", "X-Forwarded-Proto", "X-Forwarded-Ssl",
+        "X-HTTP-Method-Override", "X-Real-IP", "X-Request-Id", "X-Requested-With"
+    };
+
+    // header name -> env key e.g. "X-Forwarded-For" -> "HTTP_X_FORWARDED_FOR"
+    private static final Map<String, String> headerKeys;
+    // env key -> header name e.g. "HTTP_X_FORWARDED_FOR" -> "X-Forwarded-For"
+    private static final Map<String, String> headerNames;
+
+    static {
+        final Map<String, String> keys = new HashMap<>(HEADERS.length * 4);
+        final Map<String, String> names = new HashMap<>(HEADERS.length * 2);
+        for ( String name : HEADERS ) {
+            final String key = toHeaderKey(name);
+            keys.put(name, key);
+            keys.put(name.toLowerCase(Locale.ENGLISH), key); // HTTP/2
+            names.put(key, name);
+        }
+        headerKeys = keys; headerNames = names;
+    }
+
+    private static final String[] VALUES = {
+        "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", // REQUEST_METHOD
+        "http", "https", "on", // rack.url_scheme, HTTPS
+        "80", "443", "8080", "8443" // SERVER_PORT
+    };
+
+    private final Ruby runtime;
+    // NOTE: filled on construction (read-only afterwards)
+    private final Map<String, RubyString> keys = new HashMap<>(256);
+    private final Map<String, RubyString> values = new HashMap<>(32);
+
+    EnvStrings(final Ruby runtime) {
+        this.runtime = runtime;
+        for ( String key : JavaEnv.BUILTINS ) keys.put(key, newFrozenString(key));
+        for ( String key : JavaEnv.VARIABLES ) keys.put(key, newFrozenString(key));
+        for ( String key : headerNames.keySet() ) keys.put(key, newFrozenString(key));
+        for ( String value : VALUES ) values.put(value, newFrozenString(value));
+    }
+
+    /**
+     * @param name the header name
+     * @return the (Rack) env key for the header e.g. <code>HTTP_ACCEPT</code>
+     */
+    static String headerKey(final String name) {
+        final String key = headerKeys.get(name);
+        return key != null ? key : toHeaderKey(name);
+    }
+
+    private static String toHeaderKey(final String name) {
+        final StringBuilder str = new StringBuilder(name.length() + 5).append("HTTP_");
+        for ( int i = 0; i < name.length(); i++ ) {
+            final char c = name.charAt(i);
+            str.append( c == '-' ? '_' : Character.toUpperCase(c) );
+        }
+        return str.toString();
+    }
+
+    /**
+     * @param key the (Rack) env key (starting with <code>HTTP_</code>)
+     * @return the (capitalized) header name e.g. <code>Accept</code>
+     */
+    static String headerName(final String key) {
+        String name = headerNames.get(key);
+        if ( name == null ) { // not cached (client supplied)
+            final StringBuilder str = new StringBuilder(key.length() - 5);
+            boolean upper = true;
+            for ( int i = 5; i < key.length(); i++ ) {
+                final char c = key.charAt(i);
+                if ( c == '_' ) {
+                    str.append('-'); upper = true;
+                }
+                else {
+                    str.append( upper ? Character.toUpperCase(c) : Character.toLowerCase(c) );
+                    upper = false;
+                }
+            }
+            name = str.toString();
+        }
+        return name;
+    }
+
+    /**
+     * @param key the env key
+     * @return a frozen string (shared for known keys)
+     */
+    RubyString key(final String key) {
+        RubyString str = keys.get(key);
+        if ( str == null ) { // NOTE: not de-duplicated (might be client supplied)
+            str = RubyString.newString(runtime, key); str.setFrozen(true);
+        }
+        return str;
+    }
+
+    /**
+     * @param value the env value
+     * @return a (shared) frozen string for common values, a new string otherwise
+     * (null for a null value)
+     */
+    RubyString value(final String value) {
+        if ( value == null ) return null;
+        final RubyString str = values.get(value);
+        return str != null ? str : RubyString.newString(runtime, value);
+    }
+
+    private RubyString newFrozenString(final String str) {
+        return runtime.freezeAndDedupString(RubyString.newString(runtime, str));
+    }
+
+}
@@ -0,0 +1,589 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.ext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.api.Access;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.rack.RackContext;
+import org.jruby.rack.RackEnvironment;
+import org.jruby.rack.servlet.RewindableInputStream;
+import org.jruby.rack.servlet.ServletRackEnvironment;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Visibility;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Native (Java) port of the (Ruby) <code>Rack::Handler::Servlet::DefaultEnv</code>,
+ * a lazy (servlet to) Rack environment Hash. Keys are resolved from the servlet
+ * request on first access, builtins, CGI variables and HTTP headers are filled
+ * in (all at once) when the env is enumerated.
+ * <p>
+ * Parameters (<code>Rack::Request#GET</code> and <code>#POST</code>) are parsed
+ * from the raw (query string and url-encoded form content) bytes on first access,
+ * filling in the same keys Rack uses to cache parsed parameters, cookies
+ * (<code>Rack::Request#cookies</code>) are a lazy {@link CookieHash} over the Cookie header.
+ * <p>
+ * Available in Ruby as <code>Rack::Handler::Servlet::JavaEnv</code> and used
+ * when <code>jruby.rack.handler.env</code> is set to <code>java</code>.
+ */
+@SuppressWarnings("serial")
+@JRubyClass(name="Rack::Handler::Servlet::JavaEnv", parent="Hash")
+public class JavaEnv extends RubyHash {
+
+
+    static final String[] BUILTINS = {
+        "rack.version", "rack.input", "rack.errors", "rack.url_scheme",
+        "rack.multithread", "rack.multiprocess", "rack.run_once", "rack.hijack?",
+        "java.servlet_request", "java.servlet_response", "java.servlet_context",
+        "jruby.rack.version"
+    };
+
+    static final String[] VARIABLES = {
+        "CONTENT_TYPE", "CONTENT_LENGTH", "PATH_INFO", "QUERY_STRING",
+        "REMOTE_ADDR", "REMOTE_HOST", "REMOTE_USER", "REQUEST_METHOD", "REQUEST_URI",
+        "SCRIPT_NAME", "SERVER_NAME", "SERVER_PORT", "SERVER_SOFTWARE"
+    };
+
+    static final String[] TRANSIENT_KEYS = {
+        "rack.input", "rack.errors",
+        "java.servlet_request", "java.servlet_response",
+        "java.servlet_context", "jruby.rack.context"
+    };
+
+    private static final String RACK_SESSION_OPTIONS = "rack.session.options";
+
+    // Rack::Request caches (parsed parameters) :
+    private static final String QUERY_STRING = "rack.request.query_string";
+    private static final String QUERY_HASH = "rack.request.query_hash";
+    private static final String FORM_INPUT = "rack.request.form_input";
+    private static final String FORM_HASH = "rack.request.form_hash";
+    private static final String COOKIE_STRING = "rack.request.cookie_string";
+    private static final String COOKIE_HASH = "rack.request.cookie_hash";
+
+    private static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
+
+    private static final int INITIAL_CAPACITY = 11; // RubyHash's MRI_INITIAL_CAPACITY
+    private static final int INITIAL_THRESHOLD = 6;
+
+    private final EnvStrings strings;
+    private RackEnvironment servletEnv;
+    private boolean populated;
+
+    protected JavaEnv(Ruby runtime, RubyClass metaClass, EnvStrings strings) {
+        // same (empty) table as RubyHash(Ruby, RubyClass) allocates, that one is deprecated (for removal)
+        super(runtime, metaClass, UNDEF, new RubyHashEntry[INITIAL_CAPACITY], INITIAL_THRESHOLD);
+        this.strings = strings;
+    }
+
+    static ObjectAllocator newAllocator(final Ruby runtime) {
+        final EnvStrings strings = new EnvStrings(runtime); // shared by all env instances
+        return (rt, klass) -> new JavaEnv(rt, klass, strings);
+    }
+
+    static void setup(final ThreadContext context, final RubyClass _JavaEnv) {
+        _JavaEnv.defineMethods(context, JavaEnv.class);
+        _JavaEnv.setConstant(context, "BUILTINS", newFrozenArray(context, BUILTINS));
+        _JavaEnv.setConstant(context, "VARIABLES", newFrozenArray(context, VARIABLES));
+    }
+
+    private static RubyArray<?> newFrozenArray(final ThreadContext context, final String[] names) {
+        final IRubyObject[] strings = new IRubyObject[names.length];
+        for ( int i = 0; i < names.length; i++ ) strings[i] = context.runtime.newDeduplicatedString(names[i]);
+        final RubyArray<?> array = RubyArray.newArray(context.runtime, strings);
+        array.setFrozen(true);
+        return array;
+    }
+
+    /**
+     * Factory method for creating the (eagerly populated) Hash.
+     * @param context the current thread context
+     * @param self the (env) class
+     * @param servlet_env the (servlet) environment
+     * @return a new populated env
+     */
+    @JRubyMethod(meta = true, required = 1)
+    public static IRubyObject create(final ThreadContext context,
+        final IRubyObject self, final IRubyObject servlet_env) {
+        if ( servlet_env.isNil() ) {
+            throw context.runtime.newArgumentError("nil servlet_env");
+        }
+        return self.callMethod(context, "new", servlet_env).callMethod(context, "populate");
+    }
+
+    /**
+     * Initialize this (Rack) environment from the servlet environment, the
+     * returned instance is lazy (keys get filled on demand).
+     * @param context the current thread context
+     * @param args the (optional) servlet environment
+     * @param block ignored
+     * @return self
+     */
+    @JRubyMethod(optional = 1, visibility = Visibility.PRIVATE)
+    public IRubyObject initialize(final ThreadContext context, final IRubyObject[] args, final Block block) {
+        super.initialize(context, Block.NULL_BLOCK);
+        // NOTE: due AS Hash extensions we shall support `self.class.new`
+        if ( args.length > 0 && ! args[0].isNil() ) {
+            this.servletEnv = args[0].toJava(RackEnvironment.class);
+            // always pre-load since they might override variables
+            loadAttributes(context);
+        }
+        return this;
+    }
+
+    @JRubyMethod(visibility = Visibility.PRIVATE)
+    @Override
+    public RubyHash initialize_copy(final ThreadContext context, final IRubyObject original) {
+        super.initialize_copy(context, original);
+        if ( original instanceof JavaEnv ) {
+            this.servletEnv = ((JavaEnv) original).servletEnv;
+            this.populated = ((JavaEnv) original).populated;
+        }
+        return this;
+    }
+
+    @JRubyMethod
+    public IRubyObject env() {
+        return this;
+    }
+
+    @JRubyMethod
+    public IRubyObject populate(final ThreadContext context) {
+        if ( ! populated ) {
+            if ( servletEnv != null ) populate_bang(context);
+            populated = true;
+        }
+        return this;
+    }
+
+    @JRubyMethod(name = "populate!")
+    public IRubyObject populate_bang(final ThreadContext context) {
+        for ( final String key : BUILTINS ) {
+            if ( ! hasKey(context, key) ) loadBuiltin(context, key);
+        }
+        for ( final String key : VARIABLES ) {
+            if ( ! hasKey(context, key) ) loadVariable(context, key);
+        }
+        loadHeaders(context);
+        return this;
+    }
+
+    @JRubyMethod(name = "[]", required = 1)
+    @Override
+    public IRubyObject op_aref(final ThreadContext context, final IRubyObject key) {
+        final IRubyObject value = internalGet(key);
+        if ( value != null ) return value;
+        final IRubyObject loaded = loadEnvKey(context, key);
+        return loaded == null ? context.nil : loaded;
+    }
+
+    @JRubyMethod(name = { "key?", "has_key?", "include?", "member?" }, required = 1)
+    @Override
+    public RubyBoolean has_key_p(final ThreadContext context, final IRubyObject key) {
+        if ( internalGet(key) != null ) return context.tru;
+        final IRubyObject loaded = loadEnvKey(context, key);
+        return loaded != null && ! loaded.isNil() ? context.tru : context.fals;
+    }
+
+    @JRubyMethod(name = "keys")
+    @Override
+    public RubyArray<?> keys(final ThreadContext context) {
+        populate(context); return super.keys(context);
+    }
+
+    @JRubyMethod(name = "values")
+    @Override
+    public RubyArray<?> values(final ThreadContext context) {
+        populate(context); return super.values(context);
+    }
+
+    @JRubyMethod(name = { "each", "each_pair" })
+    @Override
+    public IRubyObject each(final ThreadContext context, final Block block) {
+        populate(context); return super.each(context, block);
+    }
+
+    @JRubyMethod(name = "each_key")
+    @Override
+    public IRubyObject each_key(final ThreadContext context, final Block block) {
+        populate(context); return super.each_key(context, block);
+    }
+
+    @JRubyMethod(name = "each_value")
+    @Override
+    public IRubyObject each_value(final ThreadContext context, final Block block) {
+        populate(context); return super.each_value(context, block);
+    }
+
+    @JRubyMethod(name = "to_hash", optional = 1)
+    public IRubyObject to_hash(final ThreadContext context, final IRubyObject[] args) {
+        if ( args.length > 0 && args[0].isTrue() ) { // bare
+            populate(context);
+            final RubyHash hash = RubyHash.newHash(context.runtime);
+            hash.replace(context, this);
+            return hash;
+        }
+        return this;
+    }
+
+    /**
+     * If a block is given, it yields to the block if the value hasn't been set.
+     */
+    @JRubyMethod(required = 1)
+    public IRubyObject fetch_header(final ThreadContext context, final IRubyObject name, final Block block) {
+        return fetch(context, name, block);
+    }
+
+    @JRubyMethod(required = 1)
+    public IRubyObject get_header(final ThreadContext context, final IRubyObject key) {
+        return op_aref(context, key);
+    }
+
+    @JRubyMethod(required = 2)
+    public IRubyObject set_header(final ThreadContext context, final IRubyObject name, final IRubyObject value) {
+        return op_aset(context, name, value);
+    }
+
+    @JRubyMethod
+    public IRubyObject session_options(final ThreadContext context) {
+        final RubyString key = strings.key(RACK_SESSION_OPTIONS);
+        IRubyObject options = internalGet(key);
+        if ( options == null ) {
+            op_aset(context, key, options = RubyHash.newHash(context.runtime));
+        }
+        return options;
+    }
+
+    @JRubyMethod
+    public IRubyObject marshal_dump(final ThreadContext context) {
+        final RubyHash hash = (RubyHash) to_hash(context, new IRubyObject[] { context.tru });
+        for ( final String key : TRANSIENT_KEYS ) {
+            hash.delete(context, strings.key(key));
+        }
+        return hash;
+    }
+
+    @JRubyMethod(required = 1)
+    public IRubyObject marshal_load(final ThreadContext context, final IRubyObject hash) {
+        hash.convertToHash().visitAll(context, (ctx, self, key, value, index) -> op_aset(ctx, key, value));
+        this.populated = true;
+        return this;
+    }
+
+    private boolean hasKey(final ThreadContext context, final String key) {
+        return internalGet(strings.key(key)) != null;
+    }
+
+    private IRubyObject store(final ThreadContext context, final String key, final Object value) {
+        final IRubyObject rubyValue = JavaUtil.convertJavaToUsableRubyObject(context.runtime, value);
+        if ( isFrozen() ) return rubyValue; // resolve (but do not remember) keys
+        op_aset(context, strings.key(key), rubyValue);
+        return rubyValue;
+    }
+
+    private void loadAttributes(final ThreadContext context) {
+        final Enumeration<String> names = servletEnv.getAttributeNames();
+        if ( names == null ) return;
+        while ( names.hasMoreElements() ) {
+            final String name = names.nextElement();
+            final Object value = servletEnv.getAttribute(name);
+            switch ( name ) {
+                case "SERVER_PORT":
+                case "CONTENT_LENGTH":
+                    if ( toInt(value) >= 0 ) store(context, name, value == null ? "" : value.toString());
+                    break;
+                case "CONTENT_TYPE":
+                    if ( value != null ) store(context, name, value);
+                    break;
+                default:
+                    store(context, name, value);
+            }
+        }
+    }
+
+    private void loadHeaders(final ThreadContext context) {
+        // NOTE: getHeaderNames and getHeaders might return null !
+        // if the container does not allow access to header information
+        final Enumeration<String> names = servletEnv.getHeaderNames();
+        if ( names == null ) return;
+        while ( names.hasMoreElements() ) {
+            final String name = names.nextElement();
+            if ( isContentHeader(name) ) continue;
+            final String key = EnvStrings.headerKey(name);
+            if ( ! hasKey(context, key) ) store(context, key, servletEnv.getHeader(name));
+        }
+    }
+
+    /**
+     * @return the loaded value or null if the key could not be resolved
+     */
+    private IRubyObject loadEnvKey(final ThreadContext context, final IRubyObject key) {
+        if ( servletEnv == null || ! ( key instanceof RubyString ) ) return null;
+        final String name = key.asJavaString();
+        if ( name.startsWith("HTTP_") ) return loadHeader(context, name);
+        if ( name.startsWith("rack") || name.startsWith("java") || name.startsWith("jruby") ) {
+            return loadBuiltin(context, name);
+        }
+        return loadVariable(context, name);
+    }
+
+    private IRubyObject loadHeader(final ThreadContext context, final String key) {
+        final String name = EnvStrings.headerName(key);
+        if ( isContentHeader(name) ) return null;
+        final String header = servletEnv.getHeader(name);
+        // null if it does not have a header of that name
+        return header == null ? null : store(context, key, header);
+    }
+
+    private IRubyObject loadVariable(final ThreadContext context, final String key) {
+        switch ( key ) {
+            case "CONTENT_TYPE":
+                final String contentType = servletEnv.getContentType();
+                return contentType == null ? null : store(context, key, contentType);
+            case "CONTENT_LENGTH":
+                final int contentLength = servletEnv.getContentLength();
+                return contentLength < 0 ? null : store(context, key, Integer.toString(contentLength));
+            case "PATH_INFO":
+                return store(context, key, servletEnv.getPathInfo());
+            case "QUERY_STRING":
+                return store(context, key, orEmpty(servletEnv.getQueryString()));
+            case "REMOTE_ADDR":
+                return store(context, key, orEmpty(servletEnv.getRemoteAddr()));
+            case "REMOTE_HOST":
+                return store(context, key, orEmpty(servletEnv.getRemoteHost()));
+            case "REMOTE_USER":
+                return store(context, key, orEmpty(servletEnv.getRemoteUser()));
+            case "REQUEST_METHOD":
+                final String method = servletEnv.getMethod();
+                return store(context, key, strings.value(method == null ? "GET" : method));
+            case "REQUEST_URI":
+                return store(context, key, servletEnv.getRequestURI());
+            case "SCRIPT_NAME":
+                return store(context, key, servletEnv.getScriptName());
+            case "SERVER_NAME":
+                return store(context, key, orEmpty(servletEnv.getServerName()));
+            case "SERVER_PORT":
+                return store(context, key, strings.value(Integer.toString(servletEnv.getServerPort())));
+            case "SERVER_SOFTWARE":
+                final RackContext rackContext = servletEnv.getContext();
+                return store(context, key, rackContext == null ? null : rackContext.getServerInfo());
+            default:
+                // NOTE: even though we allowed for overrides and loaded all attributes
+                // up front (looping thru getAttributeNames) container "hidden" attribs
+                // might still get resolved e.g. 'org.apache.tomcat.sendfile.support'
+                final Object hidden = servletEnv.getAttribute(key);
+                return hidden == null ? null : store(context, key, hidden);
+        }
+    }
+
+    private IRubyObject loadBuiltin(final ThreadContext context, final String key) {
+        switch ( key ) {
+            case "rack.version":
+                return store(context, key, Access.getModule(context, "Rack").getConstant(context, "RELEASE"));
+            case "rack.multithread":
+                return store(context, key, Boolean.TRUE);
+            case "rack.multiprocess":
+            case "rack.run_once":
+            case "rack.hijack?":
+                return store(context, key, Boolean.FALSE);
+            case "rack.input":
+                return store(context, key, new Input(context.runtime, servletEnv));
+            case "rack.errors":
+                final IRubyObject rackContext = rackContext(context);
+                return store(context, key, rackContext.isTrue() ?
+                        Access.getClass(context, "JRuby", "Rack", "ServletLog").callMethod(context, "new", rackContext) :
+                        context.nil);
+            case "rack.url_scheme":
+                final String scheme = servletEnv.getScheme();
+                final IRubyObject value = store(context, key, strings.value(scheme));
+                if ( "https".equals(scheme) ) store(context, "HTTPS", strings.value("on"));
+                return value;
+            case "java.servlet_request":
+                return store(context, key, servletRequest());
+            case "java.servlet_response":
+                return store(context, key, servletEnv instanceof ServletRackEnvironment ?
+                        ((ServletRackEnvironment) servletEnv).getResponse() : servletEnv);
+            case "java.servlet_context":
+                return store(context, key, servletContext(context));
+            case "jruby.rack.context":
+                return store(context, key, rackContext(context));
+            case "jruby.rack.version":
+                return store(context, key, jrubyRack(context).getConstant(context, "VERSION"));
+            case QUERY_STRING:
+            case QUERY_HASH:
+                return loadQueryParameters(context, key);
+            case FORM_INPUT:
+            case FORM_HASH:
+                return loadFormParameters(context, key);
+            case COOKIE_STRING:
+            case COOKIE_HASH:
+                return loadCookies(context, key);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parses the query string, as <code>Rack::Request#GET</code> would.
+     * @return the loaded value or null if parsing is left to Rack (no query string)
+     */
+    private IRubyObject loadQueryParameters(final ThreadContext context, final String key) {
+        final IRubyObject query = op_aref(context, strings.key("QUERY_STRING"));
+        if ( ! ( query instanceof RubyString ) ) return null;
+        final ByteList bytes = ((RubyString) query).getByteList();
+        final RubyHash params = parseParameters(context, bytes.unsafeBytes(), bytes.begin(), bytes.realSize(), true, Parameters.Limits.of(context));
+        final IRubyObject queryString = store(context, QUERY_STRING, query);
+        final IRubyObject queryHash = store(context, QUERY_HASH, params);
+        return QUERY_HASH.equals(key) ? queryHash : queryString;
+    }
+
+    /**
+     * Parses (url-encoded) form content, as <code>Rack::Request#POST</code> would.
+     * The content is parsed from the (rewindable) input's buffer, without moving
+     * the input's position.
+     * @return the loaded value or null if parsing is left to Rack
+     */
+    private IRubyObject loadFormParameters(final ThreadContext context, final String key) {
+        if ( ! isFormContentType(op_aref(context, strings.key("CONTENT_TYPE"))) ) return null;
+        final IRubyObject input = op_aref(context, strings.key("rack.input"));
+        if ( ! ( input instanceof Input ) ) return null;
+        final InputStream stream = ((Input) input).getInput();
+        if ( ! ( stream instanceof RewindableInputStream ) ) return null;
+
+        final ByteBuffer content;
+        try {
+            content = ((RewindableInputStream) stream).readFully();
+        }
+        catch (IOException e) {
+            return null; // Rack fails reading the input
+        }
+        int length = content.remaining();
+        // Fix for Safari Ajax postings that always append \0 (same as Rack)
+        if ( length > 0 && content.get(content.position() + length - 1) == 0 ) length--;
+
+        final Parameters.Limits limits = Parameters.Limits.of(context);
+        final byte[] bytes; final int offset;
+        if ( content.hasArray() ) {
+            bytes = content.array(); offset = content.arrayOffset() + content.position();
+        }
+        else { // a (mapped) file buffered body, only copied once it's known to be within limits
+            try {
+                Parameters.checkBytesize(length, limits);
+            }
+            catch (Parameters.ParameterError e) {
+                throw e.toRaiseException(context);
+            }
+            bytes = new byte[length]; offset = 0;
+            content.duplicate().get(bytes);
+        }
+        final RubyHash params = parseParameters(context, bytes, offset, length, false, limits);
+        final IRubyObject formInput = store(context, FORM_INPUT, input);
+        final IRubyObject formHash = store(context, FORM_HASH, params);
+        return FORM_HASH.equals(key) ? formHash : formInput;
+    }
+
+    /**
+     * @return the loaded value or null if there's no Cookie header
+     */
+    private IRubyObject loadCookies(final ThreadContext context, final String key) {
+        final IRubyObject header = op_aref(context, strings.key("HTTP_COOKIE"));
+        if ( ! ( header instanceof RubyString ) ) return null;
+        final IRubyObject cookieString = store(context, COOKIE_STRING, header);
+        final IRubyObject cookieHash = store(context, COOKIE_HASH, CookieHash.newCookieHash(context, (RubyString) header));
+        return COOKIE_HASH.equals(key) ? cookieHash : cookieString;
+    }
+
+    private static RubyHash parseParameters(final ThreadContext context,
+        final byte[] bytes, final int offset, final int length, final boolean query, final Parameters.Limits limits) {
+        try {
+            return Parameters.parse(context, bytes, offset, length, query, limits);
+        }
+        catch (Parameters.ParameterError e) {
+            throw e.toRaiseException(context); // same as Rack::Request#GET (#POST) would
+        }
+    }
+
+    // Rack::Request#media_type == 'application/x-www-form-urlencoded'
+    private static boolean isFormContentType(final IRubyObject contentType) {
+        if ( ! ( contentType instanceof RubyString ) ) return false;
+        final String type = contentType.asJavaString();
+        int end = 0;
+        while ( end < type.length() && type.charAt(end) != ';' && type.charAt(end) != ',' ) end++;
+        return type.substring(0, end).trim().equalsIgnoreCase(FORM_URLENCODED);
+    }
+
+    private IRubyObject rackContext(final ThreadContext context) {
+        final RackContext rackContext = servletEnv.getContext();
+        if ( rackContext != null ) {
+            return JavaUtil.convertJavaToUsableRubyObject(context.runtime, rackContext);
+        }
+        return jrubyRackContext(context);
+    }
+
+    private static IRubyObject jrubyRackContext(final ThreadContext context) {
+        return jrubyRack(context).callMethod(context, "context"); // JRuby::Rack.context
+    }
+
+    private static RubyModule jrubyRack(final ThreadContext context) {
+        return (RubyModule) Access.getModule(context, "JRuby").getConstant(context, "Rack");
+    }
+
+    private Object servletRequest() {
+        return servletEnv instanceof ServletRequestWrapper ?
+                ((ServletRequestWrapper) servletEnv).getRequest() : servletEnv;
+    }
+
+    private Object servletContext(final ThreadContext context) {
+        if ( servletEnv instanceof ServletRequest ) { // @since Servlet 3.0
+            return ((ServletRequest) servletEnv).getServletContext();
+        }
+        final RackContext rackContext = servletEnv.getContext();
+        if ( rackContext instanceof ServletContext ) return rackContext;
+        final IRubyObject jrubyRackContext = jrubyRackContext(context);
+        if ( jrubyRackContext.isTrue() ) return jrubyRackContext;
+        final Object request = servletRequest();
+        return request instanceof ServletRequest ? ((ServletRequest) request).getServletContext() : null;
+    }
+
+    private static boolean isContentHeader(final String name) {
+        return "Content-Type".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name);
+    }
+
+    private static String orEmpty(final String value) {
+        return value == null ? "" : value;
+    }
+
+    private static long toInt(final Object value) { // Ruby's #to_i
+        if ( value == null ) return 0;
+        if ( value instanceof Number ) return ((Number) value).longValue();
+        try {
+            return Long.parseLong(value.toString().trim());
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,495 @@
+/*
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+package org.jruby.rack.ext;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.anno.JRubyModule;
+import org.jruby.api.Access;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Builds (nested) Rack parameters, compatible with Rack's
+ * <code>Rack::Utils.parse_nested_query</code> (<code>normalize_params</code>).
+ * <p>
+ * Used by the servlet env to fill in <code>rack.request.query_hash</code> and
+ * <code>rack.request.form_hash</code> from the servlet's parameter map, while
+ * the (Java) env parses the query string and (url-encoded) form content from
+ * raw bytes in a single pass.
+ * Available in Ruby as <code>Rack::Handler::Servlet::Parameters</code>.
+ */
+@JRubyModule(name = "Rack::Handler::Servlet::Parameters")
+public class Parameters {
+
+    /**
+     * Maximum parameter (key) nesting, same as Rack's default param_depth_limit.
+     */
+    static final int DEPTH_LIMIT = 100;
+
+    static final String QUERY_HASH = "rack.request.query_hash";
+    static final String FORM_HASH = "rack.request.form_hash";
+
+    private static final String[] EMPTY_VALUE = { "" };
+
+    /**
+     * Loads servlet (request) parameters into the (Rack) env's query and form hashes.
+     * <p>
+     * NOTE: HttpServletRequest#getParameterMap behaves differently than Rack -
+     * preserves all parameters (at least on Tomcat 6/7), nothing gets "lost" :
+     * multi values are kept even when they do not end with '[]' and if there's a
+     * query param and the same param name is in the (POST) body, both are kept
+     * as a multi-value (thus the query string is used to tell values apart).
+     *
+     * @param context the current thread context
+     * @param self the module
+     * @param servlet_env the servlet (request) env
+     * @param env the env Hash
+     * @return an error message (for broken parameters) or nil
+     */
+    @JRubyMethod(meta = true, required = 2)
+    public static IRubyObject load(final ThreadContext context, final IRubyObject self,
+        final IRubyObject servlet_env, final IRubyObject env) {
+        final HttpServletRequest request = servlet_env.toJava(HttpServletRequest.class);
+        final Ruby runtime = context.runtime;
+        // NOTE: the number of parameters is limited by the servlet container
+        final int depth = Limits.of(context).depth;
+
+        final RubyHash queryHash = RubyHash.newHash(runtime);
+        final RubyHash formHash = RubyHash.newHash(runtime);
+        final boolean getOnly = ! isPostParamMethod(request.getMethod());
+        final Map<String, List<String>> queryValues = parseQueryValues(request.getQueryString());
+
+        String error = null;
+        final Map<String, String[]> parameterMap = request.getParameterMap();
+        for ( final Map.Entry<String, String[]> param : parameterMap.entrySet() ) {
+            final String key = param.getKey();
+            String[] val = param.getValue();
+            if ( val == null || ( val.length == 1 && val[0] == null ) ) {
+                val = EMPTY_VALUE; // e.g. buggy Jetty 6
+            }
+            try {
+                final List<String> queryVals = queryValues.get(key);
+                if ( queryVals != null && queryVals.size() != val.length ) {
+                    // some are GET params some POST params
+                    final List<String> getVals = new ArrayList<>(queryVals.size());
+                    final List<String> postVals = new ArrayList<>(val.length);
+                    for ( final String v : val ) {
+                        ( queryVals.contains(v) ? getVals : postVals ).add(v);
+                    }
+                    store(context, queryHash, key, getVals, depth);
+                    store(context, formHash, key, postVals, depth);
+                }
+                else if ( queryVals != null || getOnly ) {
+                    store(context, queryHash, key, Arrays.asList(val), depth);
+                }
+                else { // POST param
+                    store(context, formHash, key, Arrays.asList(val), depth);
+                }
+            }
+            catch (ParameterError e) {
+                error = e.getMessage();
+            }
+        }
+
+        final RubyHash envHash = env.convertToHash();
+        envHash.op_aset(context, runtime.newString(QUERY_HASH), queryHash); // Rack::Request#GET
+        envHash.op_aset(context, runtime.newString(FORM_HASH), formHash); // Rack::Request#POST
+        return error == null ? context.nil : runtime.newString(error);
+    }
+
+    /**
+     * Parses a query string, same as <code>Rack::Utils.parse_nested_query</code>
+     * (using the limits of Rack's default query parser).
+     * @param context the current thread context
+     * @param self the module
+     * @param query the query string
+     * @return parameters hash
+     */
+    @JRubyMethod(meta = true, required = 1)
+    public static IRubyObject parse_nested_query(final ThreadContext context, final IRubyObject self,
+        final IRubyObject query) {
+        if ( query.isNil() ) return RubyHash.newHash(context.runtime);
+        final ByteList qs = query.convertToString().getByteList();
+        try {
+            return parse(context, qs.unsafeBytes(), qs.begin(), qs.realSize(), true, Limits.of(context));
+        }
+        catch (ParameterError e) {
+            throw e.toRaiseException(context);
+        }
+    }
+
+    /**
+     * Parses (url-encoded) parameters from raw bytes in a single pass, names
+     * and values are percent-decoded straight into (UTF-8) Ruby strings.
+     * @param semicolon whether ';' separates parameters (as in a query string)
+     * @param limits the (query parser) limits
+     * @return parameters hash
+     * @throws ParameterError for broken parameters
+     */
+    static RubyHash parse(final ThreadContext context, final byte[] bytes, final int offset, final int length,
+        final boolean semicolon, final Limits limits) throws ParameterError {
+        final int len = offset + length;
+        checkLimits(bytes, offset, len, semicolon, limits);
+
+        final Ruby runtime = context.runtime;
+        final RubyHash params = RubyHash.newHash(runtime);
+        final ByteList name = new ByteList(32); // re-used for all names
+        final int depth = limits.depth;
+        int start = offset;
+        while ( start < len ) {
+            int end = start; int eq = -1;
+            for ( byte b; end < len && ( b = bytes[end] ) != '&' && ! ( semicolon && b == ';' ); end++ ) {
+                if ( b == '=' && eq == -1 ) eq = end;
+            }
+            if ( end > start ) {
+                name.setRealSize(0);
+                unescape(bytes, start, eq == -1 ? end : eq, name);
+                final IRubyObject value = eq == -1 ? context.nil :
+                        newString(runtime, unescape(bytes, eq + 1, end, new ByteList(end - eq - 1)));
+                if ( isPlainName(name) ) { // no need to normalize e.g. "foo=bar"
+                    params.op_aset(context, newString(runtime, new ByteList(name.unsafeBytes(), name.begin(), name.realSize(), true)), value);
+                }
+                else if ( name.realSize() > 0 ) {
+                    normalize(context, params, decodeStrict(name), value, depth);
+                }
+            }
+            start = end + 1; // separator(s) might be followed by spaces :
+            while ( start < len && bytes[start] == ' ' ) start++;
+        }
+        return params;
+    }
+
+    // non-empty (ASCII) name without any brackets
+    private static boolean isPlainName(final ByteList name) {
+        final byte[] bytes = name.unsafeBytes();
+        final int end = name.begin() + name.realSize();
+        for ( int i = name.begin(); i < end; i++ ) {
+            final byte b = bytes[i];
+            if ( b < 0 || b == '[' || b == ']' ) return false;
+        }
+        return name.realSize() > 0;
+    }
+
+    // Rack::QueryParser#check_query_string (Rack 2.2.14+)
+    private static void checkLimits(final byte[] bytes, final int offset, final int end,
+        final boolean semicolon, final Limits limits) throws ParameterError {
+        checkBytesize(end - offset, limits);
+        if ( limits.params == Integer.MAX_VALUE ) return;
+        int count = 0;
+        for ( int i = offset; i < end; i++ ) {
+            final byte b = bytes[i];
+            if ( b == '&' || ( semicolon && b == ';' ) ) count++;
+        }
+        if ( count >= limits.params ) {
+            throw new ParameterError("total number of query parameters (" + (count + 1) + ") exceeds limit (" + limits.params + ")", Kind.LIMIT);
+        }
+    }
+
+    static void checkBytesize(final long length, final Limits limits) throws ParameterError {
+        if ( length > limits.bytesize ) {
+            throw new ParameterError("total query size (" + length + ") exceeds limit (" + limits.bytesize + ")", Kind.LIMIT);
+        }
+    }
+
+    private static void store(final ThreadContext context, final RubyHash hash,
+        final String key, final List<String> values, final int depth) {
+        for ( final String value : values ) {
+            normalize(context, hash, key, RubyString.newUnicodeString(context.runtime, value), depth);
+        }
+    }
+
+    /**
+     * A port of Rack's (2.2) <code>Rack::QueryParser#normalize_params</code>.
+     * @return the params (or nil/an array for nested array parameters)
+     */
+    static IRubyObject normalize(final ThreadContext context, final RubyHash params,
+        final String name, final IRubyObject v, final int depth) {
+        if ( depth <= 0 ) throw new ParameterError("parameters nested too deep", Kind.TOO_DEEP);
+
+        // name =~ %r(\A[\[\]]*([^\[\]]+)\]*)
+        final int len = name.length(); int i = 0;
+        while ( i < len && isBracket(name.charAt(i)) ) i++;
+        final int start = i;
+        while ( i < len && ! isBracket(name.charAt(i)) ) i++;
+        if ( i == start ) { // no key
+            if ( ! v.isNil() && "[]".equals(name) ) return RubyArray.newArray(context.runtime, v);
+            return context.nil;
+        }
+        final String k = name.substring(start, i);
+        while ( i < len && name.charAt(i) == ']' ) i++;
+        final String after = name.substring(i);
+
+        final Ruby runtime = context.runtime;
+        final RubyString key = RubyString.newUnicodeString(runtime, k);
+        final String childKey;
+        if ( after.isEmpty() ) {
+            params.op_aset(context, key, v);
+        }
+        else if ( after.equals("[") ) {
+            params.op_aset(context, RubyString.newUnicodeString(runtime, name), v);
+        }
+        else if ( after.equals("[]") ) {
+            arrayParam(context, params, key, k).append(context, v);
+        }
+        else if ( ( childKey = arrayChildKey(after) ) != null ) {
+            final RubyArray<?> array = arrayParam(context, params, key, k);
+            final IRubyObject last = array.isEmpty() ? null : array.eltInternal(array.size() - 1);
+            if ( last instanceof RubyHash && ! hasKey((RubyHash) last, childKey) ) {
+                normalize(context, (RubyHash) last, childKey, v, depth - 1);
+            }
+            else {
+                array.append(context, normalize(context, RubyHash.newHash(runtime), childKey, v, depth - 1));
+            }
+        }
+        else {
+            IRubyObject hash = params.fastARef(key);
+            if ( hash == null || ! hash.isTrue() ) {
+                params.op_aset(context, key, hash = RubyHash.newHash(runtime));
+            }
+            if ( ! ( hash instanceof RubyHash ) ) {
+                throw new ParameterError("expected Hash (got " + className(context, hash) + ") for param `" + k + "'");
+            }
+            params.op_aset(context, key, normalize(context, (RubyHash) hash, after, v, depth - 1));
+        }
+        return params;
+    }
+
+    private static RubyArray<?> arrayParam(final ThreadContext context, final RubyHash params,
+        final RubyString key, final String k) {
+        IRubyObject array = params.fastARef(key);
+        if ( array == null || ! array.isTrue() ) {
+            params.op_aset(context, key, array = RubyArray.newArray(context));
+        }
+        if ( ! ( array instanceof RubyArray ) ) {
+            throw new ParameterError("expected Array (got " + className(context, array) + ") for param `" + k + "'");
+        }
+        return (RubyArray<?>) array;
+    }
+
+    // %r(^\[\]\[([^\[\]]+)\]$) || %r(^\[\](.+)$)
+    private static String arrayChildKey(final String after) {
+        if ( after.length() <= 2 || ! after.startsWith("[]") ) return null;
+        if ( after.length() > 4 && after.charAt(2) == '[' && after.charAt(after.length() - 1) == ']' ) {
+            final String child = after.substring(3, after.length() - 1);
+            if ( child.indexOf('[') == -1 && child.indexOf(']') == -1 ) return child;
+        }
+        return after.substring(2);
+    }
+
+    // Rack's params_hash_has_key?
+    private static boolean hasKey(final RubyHash hash, final String key) {
+        if ( key.contains("[]") ) return false;
+        IRubyObject h = hash;
+        for ( final String part : key.split("[\\[\\]]+") ) {
+            if ( part.isEmpty() ) continue;
+            if ( ! ( h instanceof RubyHash ) ) return false;
+            h = ((RubyHash) h).fastARef(RubyString.newUnicodeString(hash.getRuntime(), part));
+            if ( h == null ) return false;
+        }
+        return true;
+    }
+
+    private static boolean isBracket(final char c) {
+        return c == '[' || c == ']';
+    }
+
+    private static boolean isPostParamMethod(final String method) {
+        return "POST".equals(method) || "PUT".equals(method) || "DELETE".equals(method);
+    }
+
+    private static String className(final ThreadContext context, final IRubyObject value) {
+        return value.getMetaClass().getRealClass().getName(context);
+    }
+
+    /**
+     * Parses a query string into (decoded) names and values, similar to the
+     * (deprecated) <code>HttpUtils.parseQueryString</code> but lenient (and
+     * decoding as UTF-8).
+     */
+    static Map<String, List<String>> parseQueryValues(final String qs) {
+        if ( qs == null || qs.isEmpty() ) return Collections.emptyMap();
+        final Map<String, List<String>> values = new HashMap<>();
+        int start = 0; final int len = qs.length();
+        while ( start < len ) {
+            int end = qs.indexOf('&', start);
+            if ( end == -1 ) end = len;
+            if ( end > start ) {
+                int eq = qs.indexOf('=', start);
+                if ( eq == -1 || eq > end ) eq = -1;
+                final String name = decode(unescape(qs, start, eq == -1 ? end : eq));
+                final String value = eq == -1 ? "" : decode(unescape(qs, eq + 1, end));
+                values.computeIfAbsent(name, n -> new ArrayList<>(1)).add(value);
+            }
+            start = end + 1;
+        }
+        return values;
+    }
+
+    /**
+     * Percent-decodes (www-form-component) a part of the given string,
+     * invalid encoding is kept as is.
+     */
+    static ByteList unescape(final String str, final int start, final int end) {
+        final ByteList bytes = new ByteList(end - start);
+        for ( int i = start; i < end; i++ ) {
+            final char c = str.charAt(i);
+            if ( c == '+' ) bytes.append(' ');
+            else if ( c == '%' ) {
+                final int hi = i + 2 < end ? Character.digit(str.charAt(i + 1), 16) : -1;
+                final int lo = hi == -1 ? -1 : Character.digit(str.charAt(i + 2), 16);
+                if ( lo == -1 ) bytes.append('%');
+                else {
+                    bytes.append((hi << 4) + lo); i += 2;
+                }
+            }
+            else if ( c < 0x80 ) bytes.append(c);
+            else {
+                bytes.append(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Percent-decodes (www-form-component) a part of the given bytes.
+     * @throws ParameterError on invalid encoding
+     */
+    static ByteList unescape(final byte[] bytes, final int start, final int end, final ByteList into) {
+        for ( int i = start; i < end; i++ ) {
+            final byte b = bytes[i];
+            if ( b == '+' ) into.append(' ');
+            else if ( b == '%' ) {
+                final int hi = i + 2 < end ? Character.digit(bytes[i + 1], 16) : -1;
+                final int lo = hi == -1 ? -1 : Character.digit(bytes[i + 2], 16);
+                if ( lo == -1 ) {
+                    final String str = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+                    throw new ParameterError("invalid %-encoding (" + str + ")", Kind.INVALID);
+                }
+                into.append((hi << 4) + lo); i += 2;
+            }
+            else into.append(b);
+        }
+        return into;
+    }
+
+    private static String decode(final ByteList bytes) {
+        return new String(bytes.unsafeBytes(), bytes.begin(), bytes.realSize(), StandardCharsets.UTF_8);
+    }
+
+    private static String decodeStrict(final ByteList bytes) { // same as Rack (matching names)
+        try {
+            return StandardCharsets.UTF_8.newDecoder().decode(
+                    ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin(), bytes.realSize())).toString();
+        }
+        catch (CharacterCodingException e) {
+            throw new ParameterError("invalid byte sequence in UTF-8", Kind.INVALID);
+        }
+    }
+
+    private static RubyString newString(final Ruby runtime, final ByteList bytes) {
+        bytes.setEncoding(UTF8Encoding.INSTANCE);
+        return RubyString.newString(runtime, bytes);
+    }
+
+    /**
+     * Broken parameters, raised as Rack's parameter errors from Ruby.
+     */
+    @SuppressWarnings("serial")
+    static final class ParameterError extends RuntimeException {
+
+        private final Kind kind;
+
+        ParameterError(final String message) {
+            this(message, Kind.TYPE);
+        }
+
+        ParameterError(final String message, final Kind kind) {
+            super(message, null, false, false);
+            this.kind = kind;
+        }
+
+        RaiseException toRaiseException(final ThreadContext context) {
+            return context.runtime.newRaiseException(getErrorClass(context), getMessage());
+        }
+
+        RubyClass getErrorClass(final ThreadContext context) {
+            final RubyModule utils = (RubyModule) Access.getModule(context, "Rack").getConstant(context, "Utils");
+            switch ( kind ) {
+                case TYPE: return (RubyClass) utils.getConstant(context, "ParameterTypeError");
+                case INVALID: return (RubyClass) utils.getConstant(context, "InvalidParameterError");
+                default: // RangeError (sub-classes) on Rack 2.2
+                    final String name = kind == Kind.TOO_DEEP ? "ParamsTooDeepError" : "QueryLimitError";
+                    final RubyModule parser = (RubyModule) Access.getModule(context, "Rack").getConstant(context, "QueryParser");
+                    final IRubyObject error = parser.getConstantNoConstMissing(context, name);
+                    if ( error instanceof RubyClass ) return (RubyClass) error;
+                    return context.runtime.getRangeError();
+            }
+        }
+
+    }
+
+    enum Kind { TYPE, INVALID, TOO_DEEP, LIMIT }
+
+    /**
+     * Parameter limits, as configured on the (Rack) app's query parser
+     * (<code>Rack::Utils.default_query_parser</code>), so that parsing in Java
+     * limits the same as Rack::Request would.
+     */
+    static final class Limits {
+
+        final int params;
+        final int depth;
+        final long bytesize;
+
+        Limits(final int params, final int depth, final long bytesize) {
+            this.params = params; this.depth = depth; this.bytesize = bytesize;
+        }
+
+        static Limits of(final ThreadContext context) {
+            final RubyModule utils = (RubyModule) Access.getModule(context, "Rack").getConstant(context, "Utils");
+            if ( ! utils.respondsTo("default_query_parser") ) {
+                return new Limits(Integer.MAX_VALUE, DEPTH_LIMIT, Long.MAX_VALUE);
+            }
+            final IRubyObject parser = utils.callMethod(context, "default_query_parser");
+            final IRubyObject depth = limit(context, parser, "param_depth_limit");
+            final IRubyObject params = limit(context, parser, "params_limit"); // Rack 2.2.14+
+            final IRubyObject bytesize = limit(context, parser, "bytesize_limit");
+            return new Limits(
+                params.isNil() ? Integer.MAX_VALUE : (int) Math.min(params.convertToInteger().asLong(context), Integer.MAX_VALUE),
+                depth.isNil() ? DEPTH_LIMIT : (int) depth.convertToInteger().asLong(context),
+                bytesize.isNil() ? Long.MAX_VALUE : bytesize.convertToInteger().asLong(context)
+            );
+        }
+
+        private static IRubyObject limit(final ThreadContext context, final IRubyObject parser, final String name) {
+            if ( parser.respondsTo(name) ) return parser.callMethod(context, name);
+            final IRubyObject limit = parser.getInstanceVariables().getInstanceVariable('@' + name);
+            return limit == null ? context.nil : limit;
+        }
+
+    }
+
+}
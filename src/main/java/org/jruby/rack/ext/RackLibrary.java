@@ -73,6 +73,18 @@ public class RackLibrary implements Library, BasicLibraryService {
         // Rack::Handler::Servlet
         final RubyClass _Servlet = _Rack_Handler.defineClassUnder(context, "Servlet", _Object, Servlet.ALLOCATOR);
         _Servlet.defineMethods(context, Servlet.class);
+        // Rack::Handler::Servlet::JavaEnv
+        final RubyClass _JavaEnv = _Servlet.defineClassUnder(context, "JavaEnv", runtime.getHash(), JavaEnv.newAllocator(runtime));
+        JavaEnv.setup(context, _JavaEnv);
+        // Rack::Handler::Servlet::Parameters
+        final RubyModule _Parameters = _Servlet.defineModuleUnder(context, "Parameters");
+        _Parameters.defineMethods(context, Parameters.class);
+        // Rack::Handler::Servlet::Cookies
+        final RubyModule _Cookies = _Servlet.defineModuleUnder(context, "Cookies");
+        _Cookies.defineMethods(context, Cookies.class);
+        // Rack::Handler::Servlet::CookieHash
+        final RubyClass _CookieHash = _Servlet.defineClassUnder(context, "CookieHash", runtime.getHash(), CookieHash.ALLOCATOR);
+        _CookieHash.defineMethods(context, CookieHash.class);
     }
 
     @Override
@@ -12,12 +12,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 
 /**
  * Originally inspired by Kirk's RewindableInputStream ...
  * but otherwise a completely re-mastered rewinding beast.
+ * <p>
+ * NOTE: uses a lock (instead of synchronizing) thus reading does not pin
+ * virtual threads (blocking on the underlying input while holding a monitor).
  * 
  * @author kares
  */
@@ -82,6 +87,8 @@ public class RewindableInputStream extends ServletInputStream {
 
     // last remembered position (mark support)
     private long mark = -1;
+
+    private final ReentrantLock lock = new ReentrantLock();
     
     /**
      * Wrap an input stream to be king and rewind ...
@@ -117,9 +124,15 @@ public class RewindableInputStream extends ServletInputStream {
      * @see InputStream#available() 
      */
     @Override
-    public synchronized int available() throws IOException {
-        ensureOpen();
-        return input.available() + buffer.remaining();
+    public int available() throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            return input.available() + buffer.remaining();
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -134,7 +147,8 @@ public class RewindableInputStream extends ServletInputStream {
      * @see InputStream#mark(int) 
      */
     @Override
-    public synchronized void mark(int readlimit) {
+    public void mark(int readlimit) {
+        lock.lock();
         try {
             this.mark = getPosition(); //this.position;
             // to keep it simple we ensure there's enough
@@ -145,80 +159,165 @@ public class RewindableInputStream extends ServletInputStream {
             // should not happen since we're forcing
             throw new IllegalStateException(e);
         }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
      * @see InputStream#reset() 
      */
     @Override
-    public synchronized void reset() throws IOException {
-        ensureOpen();
-        
-        if (this.mark < 0) {
-            throw new IOException("The marked position is invalid");
+    public void reset() throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+
+            if (this.mark < 0) {
+                throw new IOException("The marked position is invalid");
+            }
+            setPosition(this.mark);
+        }
+        finally {
+            lock.unlock();
         }
-        setPosition(this.mark);
     }
     
     /**
      * @see InputStream#read() 
      */    
     @Override
-    public synchronized int read() throws IOException {
-        ensureOpen();
-        
-        if (fillBuffer(1) == -1) return -1;  // EOF
-        
-        return this.buffer.get() & 0xFF;
+    public int read() throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+
+            if (fillBuffer(1) == -1) return -1;  // EOF
+
+            return this.buffer.get() & 0xFF;
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
      * @see InputStream#read(byte[], int, int) 
      */
     @Override
-    public synchronized int read(byte[] buffer, final int offset, final int length) 
+    public int read(byte[] buffer, final int offset, final int length)
         throws IOException {
-        ensureOpen();
+        lock.lock();
+        try {
+            ensureOpen();
 
-        int count = 0;
-        while (count < length) {
-            final int len = fillBuffer(length - count);
-            if (len == -1) return count == 0 ? -1 : count; // EOF
+            int count = 0;
+            while (count < length) {
+                final int len = fillBuffer(length - count);
+                if (len == -1) return count == 0 ? -1 : count; // EOF
 
-            this.buffer.get(buffer, offset + count, len);
-            count += len;
-        }
+                this.buffer.get(buffer, offset + count, len);
+                count += len;
+            }
 
-        return count;
+            return count;
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
      * @see InputStream#close() 
      */
     @Override
-    public synchronized void close() throws IOException {
-        if (buffer == null) return;
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (buffer == null) return;
 
-        if (bufferFile != null) {
-            try {
-                bufferFile.close();
-            }
-            finally {
-                new File(bufferFilePath).delete();
+            if (bufferFile != null) {
+                try {
+                    bufferFile.close();
+                }
+                finally {
+                    new File(bufferFilePath).delete();
+                }
             }
-        }
 
-        super.close();
-        buffer = null;
+            super.close();
+            buffer = null;
+        }
+        finally {
+            lock.unlock();
+        }
     }
     
     /**
      * Rewind this stream (kindly) to the start.
      * @throws IOException if there's an IO exception
      */
-    public synchronized void rewind() throws IOException {
-        ensureOpen();
-        setPosition(0);
+    public void rewind() throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            setPosition(0);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the whole (remaining) content of the underlying stream, without
+     * moving the current position of this stream.
+     * <p>
+     * NOTE: unless the content got buffered into a file the returned buffer
+     * shares the (in memory) buffered content, thus must not be modified !
+     * File buffered content is not read into memory, a (read-only) mapped
+     * view of the temporary file is returned instead (which has no backing
+     * array), it should not be used once this stream is closed.
+     *
+     * @return the content (from the start of the stream)
+     * @throws IOException if there's an IO exception
+     */
+    public ByteBuffer readFully() throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+
+            final long position = getPosition();
+            try {
+                if ( ! isFileBuffered() ) {
+                    do { // fill (and grow) the buffer until EOF or switched to a file
+                        buffer.position(buffer.limit());
+                    }
+                    while ( fillBuffer(Math.max(buffer.capacity() - buffer.limit(), 1)) != -1 && ! isFileBuffered() );
+
+                    if ( ! isFileBuffered() ) {
+                        final ByteBuffer content = buffer.duplicate();
+                        content.position(0); return content;
+                    }
+                }
+                // buffer what's left (in the file) and read the content in one go :
+                final byte[] data = new byte[TMP_READ_BUFFER_SIZE]; int len;
+                bufferFile.seek(bufferFile.length());
+                while ( ( len = input.read(data) ) != -1 ) {
+                    bufferFile.write(data, 0, len);
+                }
+                final long length = bufferFile.length();
+                if ( length > Integer.MAX_VALUE ) {
+                    throw new IOException("content too large (" + length + " bytes)");
+                }
+                return bufferFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            finally {
+                setPosition(position);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     private void ensureOpen() throws IOException {
@@ -383,8 +482,8 @@ public class RewindableInputStream extends ServletInputStream {
     }
     
     long getPosition() throws IOException {
-        if ( isFileBuffered() ) {
-            return bufferFile.getFilePointer();
+        if ( isFileBuffered() ) { // the buffer holds (not yet read) data from the file
+            return bufferFile.getFilePointer() - buffer.remaining();
         }
         else {
             return this.buffer.position();
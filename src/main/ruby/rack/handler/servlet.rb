@@ -36,6 +36,19 @@ module Rack
       autoload :DefaultEnv, "rack/handler/servlet/default_env"
       autoload :ServletEnv, "rack/handler/servlet/servlet_env"
 
+      # The (Java) lazy cookie hash only parses looked up cookies, any other
+      # Hash method parses all of them (before delegating to Hash).
+      class CookieHash < ::Hash
+        # NOTE: Hash#[] calls #default on a miss, which does not need the cookies
+        ( ::Hash.public_instance_methods(false) - public_instance_methods(false) - [ :default ] ).each do |name|
+          define_method(name) { |*args, &block| populate; super(*args, &block) }
+        end
+
+        # dumped as a (plain) Hash, loaded back into an allocated CookieHash
+        def marshal_dump; to_h; end
+        def marshal_load(hash); replace(hash); end
+      end
+
       @@response = nil
       def self.response; @@response ||= JRuby::Rack::Response; end
 
@@ -165,13 +165,51 @@ module Rack
 
         @@content_header_names = /^Content-(Type|Length)$/i
 
+        # @private common (constant) values shared as frozen strings
+        VALUES = %w(GET POST PUT DELETE HEAD OPTIONS PATCH http https on
+          80 443 8080 8443).each_with_object({}) { |v, h| h[v.freeze] = v }.freeze
+
+        # @private well-known (request) header names
+        # NOTE: keep in sync with EnvStrings.HEADERS (Java)
+        HEADERS = %w(Accept Accept-Charset Accept-Encoding Accept-Language
+          Access-Control-Request-Headers Access-Control-Request-Method
+          Authorization Cache-Control Connection Cookie DNT Forwarded From Host
+          If-Match If-Modified-Since If-None-Match If-Range If-Unmodified-Since
+          Keep-Alive Max-Forwards Origin Pragma Proxy-Authorization Range Referer
+          Sec-Ch-Ua Sec-Ch-Ua-Mobile Sec-Ch-Ua-Platform Sec-Fetch-Dest
+          Sec-Fetch-Mode Sec-Fetch-Site Sec-Fetch-User TE Trailer
+          Transfer-Encoding Upgrade Upgrade-Insecure-Requests User-Agent Version
+          Via X-CSRF-Token X-Forwarded-For X-Forwarded-Host X-Forwarded-Port
+          X-Forwarded-Proto X-Forwarded-Ssl X-HTTP-Method-Override X-Real-IP
+          X-Request-Id X-Requested-With).map(&:freeze).freeze
+
+        # header name -> (frozen) env key, e.g. 'Accept' -> 'HTTP_ACCEPT' and
+        # env key -> header name, filled upfront (header names are client
+        # supplied) - other names are converted on each request
+        @@header_keys = HEADERS.each_with_object({}) do |name, keys|
+          keys[name] = "HTTP_#{name.upcase.tr('-', '_')}".freeze
+          keys[name.downcase.freeze] = keys[name] # HTTP/2
+        end.freeze
+        @@header_names = HEADERS.each_with_object({}) do |name, names|
+          names[@@header_keys[name]] = name
+        end.freeze
+
+        def self.header_key(name)
+          @@header_keys[name] || "HTTP_#{name.upcase.tr('-', '_')}".freeze
+        end
+
+        def self.header_name(key)
+          @@header_names[key] || key.sub('HTTP_', '').
+            split('_').each { |w| w.downcase!; w.capitalize! }.join('-').freeze
+        end
+
         def load_headers
           # NOTE: getHeaderNames and getHeaders might return null !
           # if the container does not allow access to header information
           return unless header_names = @servlet_env.getHeaderNames
           for name in header_names
             next if name =~ @@content_header_names
-            key = "HTTP_#{name.upcase.gsub(/-/, '_')}".freeze
+            key = DefaultEnv.header_key(name)
             @env[key] = @servlet_env.getHeader(name) unless @env.key?(key)
           end
         end
@@ -189,8 +227,7 @@ module Rack
 
         def load_header(env, key)
           return nil if @servlet_env.nil?
-          name = key.sub('HTTP_', '').
-            split('_').each { |w| w.downcase!; w.capitalize! }.join('-')
+          name = DefaultEnv.header_name(key)
           return if name =~ @@content_header_names
           if header = @servlet_env.getHeader(name)
             env[key] = header # null if it does not have a header of that name
@@ -211,11 +248,15 @@ module Rack
             when 'REMOTE_ADDR'     then env[key] = @servlet_env.getRemoteAddr || ''
             when 'REMOTE_HOST'     then env[key] = @servlet_env.getRemoteHost || ''
             when 'REMOTE_USER'     then env[key] = @servlet_env.getRemoteUser || ''
-            when 'REQUEST_METHOD'  then env[key] = @servlet_env.getMethod || 'GET'
+            when 'REQUEST_METHOD'
+              method = @servlet_env.getMethod || 'GET'
+              env[key] = VALUES[method] || method
             when 'REQUEST_URI'     then env[key] = @servlet_env.getRequestURI
             when 'SCRIPT_NAME'     then env[key] = @servlet_env.getScriptName
             when 'SERVER_NAME'     then env[key] = @servlet_env.getServerName || ''
-            when 'SERVER_PORT'     then env[key] = @servlet_env.getServerPort.to_s
+            when 'SERVER_PORT'
+              port = @servlet_env.getServerPort.to_s
+              env[key] = VALUES[port] || port
             when 'SERVER_SOFTWARE' then env[key] = rack_context.getServerInfo
             else
               # NOTE: even though we allowed for overrides and loaded all attributes
@@ -241,8 +282,9 @@ module Rack
           when 'rack.errors'          then context = rack_context
             env[key] = context ? JRuby::Rack::ServletLog.new(context) : nil
           when 'rack.url_scheme'
-            env[key] = scheme = @servlet_env ? @servlet_env.getScheme : nil
-            env['HTTPS'] = 'on' if scheme == 'https'
+            scheme = @servlet_env ? @servlet_env.getScheme : nil
+            env[key] = scheme = ( VALUES[scheme] || scheme )
+            env['HTTPS'] = VALUES['on'] if scheme == 'https'
             scheme
           when 'java.servlet_request'  then env[key] = servlet_request
           when 'java.servlet_response' then env[key] = servlet_response
@@ -540,6 +540,76 @@ describe org.jruby.rack.DefaultRackApplicationFactory do
   end
 end
 
+describe org.jruby.rack.JITProfile do
+
+  def new_runtime
+    config = org.jruby.RubyInstanceConfig.new
+    config.setJitThreshold(10)
+    config.setJitBackground(false)
+    runtime = org.jruby.Ruby.newInstance(config)
+    runtime.evalScriptlet "class JITProfiled; def hot(x); x * 2; end; def self.hot; 1; end; def cold; end; end"
+    runtime
+  end
+
+  def jitted?(runtime, name, singleton = false)
+    klass = runtime.getClass('JITProfiled')
+    klass = klass.getSingletonClass if singleton
+    ! klass.getMethods.get(name).getActualMethod.nil?
+  end
+
+  after { @runtimes.each { |runtime| runtime.tearDown(false) } if @runtimes }
+
+  it "compiles methods JIT-ed in previous runtimes eagerly in new runtimes" do
+    profile = org.jruby.rack.JITProfile.new(@rack_context)
+    @runtimes = [ runtime1 = new_runtime ]
+    expect(profile.apply(runtime1)).to eq 0
+    runtime1.evalScriptlet("o = JITProfiled.new; 100.times { |i| o.hot(i); JITProfiled.hot }")
+    expect(jitted?(runtime1, 'hot')).to be true
+    profile.record(runtime1) # warmed up
+
+    @runtimes << runtime2 = new_runtime
+    expect(profile.apply(runtime2)).to eq 2
+    expect(profile.getCompiledMethods.to_a.sort).to eq [ 'JITProfiled#hot', 'JITProfiled.hot' ]
+    expect(jitted?(runtime2, 'hot')).to be true
+    expect(jitted?(runtime2, 'hot', true)).to be true
+    expect(jitted?(runtime2, 'cold')).to be false
+  end
+
+  it "does not walk (live) runtimes while applying" do
+    profile = org.jruby.rack.JITProfile.new(@rack_context)
+    @runtimes = [ runtime1 = new_runtime ]
+    profile.apply(runtime1)
+    runtime1.evalScriptlet("o = JITProfiled.new; 100.times { |i| o.hot(i) }") # serving
+    @runtimes << runtime2 = new_runtime
+    expect(profile.apply(runtime2)).to eq 0
+    expect(profile.getCompiledMethods).to be_empty
+  end
+
+  it "records compiled methods from runtimes being destroyed" do
+    profile = org.jruby.rack.JITProfile.new(@rack_context)
+    runtime = new_runtime
+    profile.apply(runtime)
+    runtime.evalScriptlet("o = JITProfiled.new; 100.times { |i| o.hot(i) }")
+    profile.forget(runtime)
+    runtime.tearDown(false)
+    expect(profile.getCompiledMethods.to_a).to eq [ 'JITProfiled#hot' ]
+  end
+
+  it "tracks runtimes only until they are destroyed" do
+    profile = org.jruby.rack.JITProfile.new(@rack_context)
+    @runtimes = [ runtime1 = new_runtime, runtime2 = new_runtime ]
+    profile.apply(runtime1); profile.apply(runtime2)
+    expect(profile.getRuntimeCount).to eq 2
+    profile.forget(runtime1)
+    expect(profile.getRuntimeCount).to eq 1
+  end
+
+  it "is not enabled by default" do
+    expect(org.jruby.rack.JITProfile.newInstance(@rack_context)).to be nil
+  end
+
+end
+
 describe org.jruby.rack.rails.RailsRackApplicationFactory do
 
   require 'jruby/rack/rails_booter'
@@ -664,6 +734,523 @@ describe org.jruby.rack.PoolingRackApplicationFactory do
     expect(@pooling_factory.getApplicationPool.size).to eq 1
   end
 
+  it "hands out and takes back applications concurrently (without losing any)" do
+    allow(@factory).to receive(:init)
+    allow(@factory).to receive(:newApplication) { double("app").as_null_object }
+    allow(@rack_config).to receive(:getInitialRuntimes).and_return 4
+    allow(@rack_config).to receive(:getMaximumRuntimes).and_return 4
+    @pooling_factory.init(@rack_context)
+
+    threads = (1..8).map do
+      Thread.new do
+        50.times do
+          app = @pooling_factory.getApplication
+          @pooling_factory.finishedWithApplication app
+        end
+      end
+    end
+    threads.each(&:join)
+
+    expect(@pooling_factory.getApplicationPool.size).to eq 4
+    expect(@pooling_factory.getApplicationPool.to_a.uniq.size).to eq 4
+  end
+
+  it "hands out the most recently returned application first (with pool order set to lifo)" do
+    allow(@factory).to receive(:init)
+    allow(@rack_config).to receive(:getProperty) { |key| key == 'jruby.runtime.pool.order' ? 'lifo' : nil }
+    @pooling_factory.init(@rack_context)
+    expect(@pooling_factory.isLastInFirstOut).to be true
+
+    app1, app2 = double("app1"), double("app2")
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    expect(@pooling_factory.getApplication).to eq app2
+    @pooling_factory.finishedWithApplication app2
+    expect(@pooling_factory.getApplication).to eq app2
+    expect(@pooling_factory.getApplication).to eq app1
+  end
+
+  it "destroys idle applications (with pool idle timeout set)" do
+    allow(@factory).to receive(:init)
+    allow(@rack_config).to receive(:getNumberProperty) { |key| key == 'jruby.runtime.pool.idle.timeout' ? 1 : nil }
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 3
+    allow(@factory).to receive(:newApplication) { double("app").as_null_object }
+    @pooling_factory.init(@rack_context)
+    expect(@pooling_factory.getApplicationPool.size).to eq 1
+
+    apps = [ @pooling_factory.getApplication, @pooling_factory.getApplication, @pooling_factory.getApplication ]
+    apps.each { |app| @pooling_factory.finishedWithApplication app }
+    expect(@pooling_factory.getApplicationPool.size).to eq 3
+
+    destroyed = java.util.concurrent.CountDownLatch.new(2)
+    expect(@factory).to receive(:finishedWithApplication).twice { destroyed.countDown }
+    expect(destroyed.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    expect(@pooling_factory.getApplicationPool.size).to eq 1
+    @pooling_factory.destroy
+  end
+
+  it "grows the pool in the background (with pool grow threshold set)" do
+    allow(@factory).to receive(:init)
+    allow(@rack_config).to receive(:getNumberProperty) { |key| key == 'jruby.runtime.pool.grow.threshold' ? 0 : nil }
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 2
+    allow(@factory).to receive(:newApplication) do
+      app = double("app").as_null_object
+      expect(app).to receive(:init)
+      app
+    end
+    @pooling_factory.init(@rack_context)
+    expect(@pooling_factory.getGrowThreshold).to eq 0
+
+    app1 = @pooling_factory.getApplication
+    app2 = @pooling_factory.getApplication # waits for the background one
+    expect(app2).to_not be app1
+    expect(@pooling_factory.getApplicationPool.size).to eq 0
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    expect(@pooling_factory.getApplicationPool.size).to eq 2
+    @pooling_factory.destroy
+  end
+
+  it "recycles applications after a number of requests (with max requests set)" do
+    allow(@factory).to receive(:init)
+    allow(@rack_config).to receive(:getNumberProperty) { |key| key == 'jruby.runtime.max_requests' ? 2 : nil }
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 1
+    app1, app2 = double("app1").as_null_object, double("app2").as_null_object
+    expect(@factory).to receive(:newApplication).and_return app1, app2
+    @pooling_factory.init(@rack_context)
+    expect(@pooling_factory.getMaxRequests).to eq 2
+
+    replaced = java.util.concurrent.CountDownLatch.new(1)
+    allow(@rack_context).to receive(:log) { |_, message| replaced.countDown if message.to_s =~ /added application to pool/ }
+    expect(@factory).to receive(:finishedWithApplication).with(app1)
+    2.times do
+      expect(@pooling_factory.getApplication).to be app1
+      @pooling_factory.finishedWithApplication app1
+    end
+    expect(replaced.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    expect(@pooling_factory.getApplicationPool.to_a).to eq [ app2 ]
+    expect(@pooling_factory.getApplication).to be app2
+    @pooling_factory.finishedWithApplication app2
+    @pooling_factory.destroy
+  end
+
+  it "replays warm-up requests before putting applications into the pool" do
+    require 'tempfile'
+    warmup = Tempfile.new('warmup')
+    warmup << "GET /\n\nGET /status?full=1\nAccept: text/plain\n"; warmup.close
+    allow(@factory).to receive(:init)
+    allow(@rack_config).to receive(:getProperty) { |key| key == 'jruby.runtime.warmup' ? warmup.path : nil }
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    app = double("app").as_null_object
+    expect(@factory).to receive(:newApplication).and_return app
+    uris = []
+    expect(app).to receive(:call).twice { |env| uris << env.getRequestURI; nil }
+    @pooling_factory.init(@rack_context)
+    expect(uris).to eq [ '/', '/status?full=1' ]
+    expect(@pooling_factory.getApplicationPool.size).to eq 1
+  end
+
+  it "exposes pool metrics (and resizes the pool)" do
+    allow(@factory).to receive(:init)
+    allow(@factory).to receive(:newApplication) { double("app").as_null_object }
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 3
+    @pooling_factory.init(@rack_context)
+
+    app1 = @pooling_factory.getApplication
+    app2 = @pooling_factory.getApplication # on-demand
+    expect(@pooling_factory.getIdleApplications).to eq 0
+    expect(@pooling_factory.getBusyApplications).to eq 2
+    expect(@pooling_factory.getCreatedApplications).to eq 2
+    expect(@pooling_factory.getOnDemandCreations).to eq 1
+    expect(@pooling_factory.getAcquireCount).to eq 2
+    expect(@pooling_factory.getAcquireWaitHistogram.to_a.sum).to eq 2
+
+    @pooling_factory.resize(1, 1)
+    expect(@pooling_factory.getMaximumSize).to eq 1
+    @pooling_factory.finishedWithApplication app1
+    @pooling_factory.finishedWithApplication app2
+    expect(@pooling_factory.getCreatedApplications).to eq 1
+    expect(@pooling_factory.getIdleApplications).to eq 1
+    expect(@pooling_factory.getApplicationRequestCounts.values.to_a).to eq [ 1 ]
+    @pooling_factory.destroy
+  end
+
+  it "serves matching requests from (named) sub-pools" do
+    allow(@factory).to receive(:init)
+    allow(@factory).to receive(:newApplication) { double("app").as_null_object }
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 1
+    properties = {
+      'jruby.runtime.pool.names' => 'reports,api',
+      'jruby.runtime.pool.reports.path' => '/reports',
+      'jruby.runtime.pool.api.pattern' => '/api/v\\d+/.*'
+    }
+    allow(@rack_config).to receive(:getProperty) { |key| properties[key] }
+    numbers = { 'jruby.runtime.pool.reports.min' => 1, 'jruby.runtime.pool.reports.max' => 1 }
+    allow(@rack_config).to receive(:getNumberProperty) { |key| numbers[key] }
+    @pooling_factory.init(@rack_context)
+
+    reports, api = @pooling_factory.getSubPools.to_a
+    expect(reports.getPoolName).to eq 'reports'
+    expect(reports.getMaximumSize).to eq 1
+    expect(api.getPoolName).to eq 'api'
+
+    request = lambda do |path|
+      env = org.jruby.rack.RackEnvironment.impl {}
+      allow(env).to receive(:getPathInfo).and_return path
+      env
+    end
+    app = @pooling_factory.getApplication(request.call('/reports/monthly'))
+    expect(reports.getBusyApplications).to eq 1
+    expect(@pooling_factory.getBusyApplications).to eq 0
+    @pooling_factory.finishedWithApplication app
+    expect(reports.getIdleApplications).to eq 1
+
+    app = @pooling_factory.getApplication(request.call('/api/v2/users'))
+    expect(api.getCreatedApplications).to eq 1
+    @pooling_factory.finishedWithApplication app
+    expect(api.getIdleApplications).to eq 1
+
+    app = @pooling_factory.getApplication(request.call('/home'))
+    expect(@pooling_factory.getIdleApplications).to eq 0
+    @pooling_factory.finishedWithApplication app
+
+    expect(@factory).to receive(:destroy).once
+    @pooling_factory.destroy
+  end
+
+  it "does not pin virtual threads while creating (or waiting for) applications" do
+    allow(@factory).to receive(:init)
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 0
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 1
+    allow(@factory).to receive(:getApplication) do
+      java.lang.Thread.sleep(50) # "booting" parks the (virtual) thread
+      double("app").as_null_object
+    end
+    @pooling_factory.init(@rack_context)
+
+    pinned = java.util.concurrent.atomic.AtomicInteger.new
+    stream = Java::JdkJfrConsumer::RecordingStream.new
+    stream.enable('jdk.VirtualThreadPinned').withThreshold(java.time.Duration::ZERO)
+    stream.onEvent('jdk.VirtualThreadPinned') { |event| pinned.incrementAndGet }
+    stream.startAsync
+    begin
+      apps = []
+      thread = java.lang.Thread.ofVirtual.start do
+        apps << @pooling_factory.getApplication # created on demand
+        waiter = java.lang.Thread.ofVirtual.start { apps << @pooling_factory.getApplication }
+        java.lang.Thread.sleep(50)
+        @pooling_factory.finishedWithApplication apps.first
+        waiter.join
+      end
+      thread.join(5000)
+      expect(apps.size).to eq 2
+      expect(apps.last).to be apps.first
+    ensure
+      stream.stop; stream.close
+    end
+    expect(pinned.get).to eq 0
+    @pooling_factory.destroy
+  end
+
+  it "reloads the pool (with a new generation of applications) in the background" do
+    allow(@factory).to receive(:init)
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 2
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 2
+    old_apps = [ double("old1").as_null_object, double("old2").as_null_object ]
+    expect(@factory).to receive(:newApplication).and_return *old_apps
+    @pooling_factory.init(@rack_context)
+
+    new_apps = [ double("new1").as_null_object, double("new2").as_null_object ]
+    allow(@factory).to receive(:getApplication).and_return *new_apps
+    busy = @pooling_factory.getApplication
+    idle = (old_apps - [ busy ]).first
+    expect(@factory).to receive(:finishedWithApplication).with(idle)
+    reloaded = java.util.concurrent.CountDownLatch.new(1)
+    allow(@rack_context).to receive(:log) { |_, message| reloaded.countDown if message.to_s =~ /reloaded runtime pool/ }
+    @pooling_factory.reload
+    expect(reloaded.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    expect(@pooling_factory.getGeneration).to eq 1
+    expect(@pooling_factory.getApplicationPool.to_a).to match_array new_apps
+
+    expect(@factory).to receive(:finishedWithApplication).with(busy)
+    @pooling_factory.finishedWithApplication busy # destroyed (not returned)
+    expect(@pooling_factory.getApplicationPool.size).to eq 2
+    expect(@pooling_factory.getCreatedApplications).to eq 2
+    @pooling_factory.destroy
+  end
+
+  it "destroys and replaces idle applications failing the health check" do
+    allow(@factory).to receive(:init)
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 1
+    allow(@rack_config).to receive(:getProperty) { |key| key == 'jruby.runtime.health.check' ? '/health' : nil }
+    allow(@rack_config).to receive(:getNumberProperty) { |key| key == 'jruby.runtime.health.interval' ? 0.1 : nil }
+    app1, app2 = double("app1").as_null_object, double("app2").as_null_object
+    expect(app1).to receive(:call) do |env|
+      expect(env.getPathInfo).to eq '/health'
+      double("response", :getBody => nil, :getStatus => 500)
+    end
+    allow(app2).to receive(:call).and_return double("response", :getBody => nil, :getStatus => 200)
+    expect(@factory).to receive(:newApplication).and_return app1, app2
+    expect(@factory).to receive(:finishedWithApplication).with(app1)
+    pooled = java.util.concurrent.CountDownLatch.new(2) # app1 (on init) and its replacement
+    allow(@rack_context).to receive(:log) { |_, message| pooled.countDown if message.to_s =~ /added application to pool/ }
+    @pooling_factory.init(@rack_context)
+    expect(@pooling_factory.getHealthCheck).to eq '/health'
+
+    expect(pooled.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    expect(@pooling_factory.getApplicationPool.to_a).to eq [ app2 ]
+    expect(@pooling_factory.getHealthCheckEvictions).to eq 1
+    expect(@pooling_factory.getCreatedApplications).to eq 1
+    @pooling_factory.destroy
+  end
+
+  it "destroys applications timing out on the health check once their probe completes" do
+    allow(@factory).to receive(:init)
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 1
+    allow(@rack_config).to receive(:getProperty) { |key| key == 'jruby.runtime.health.check' ? '/health' : nil }
+    allow(@rack_config).to receive(:getNumberProperty) do |key| # timeout is also the grace period
+      { 'jruby.runtime.health.interval' => 0.1, 'jruby.runtime.health.timeout' => 0.5 }[key]
+    end
+    probing = java.util.concurrent.CountDownLatch.new(1)
+    proceed = java.util.concurrent.CountDownLatch.new(1)
+    app1, app2 = double("app1").as_null_object, double("app2").as_null_object
+    allow(app1).to receive(:call) do
+      probing.countDown; proceed.await
+      double("response", :getBody => nil, :getStatus => 200)
+    end
+    allow(app2).to receive(:call).and_return double("response", :getBody => nil, :getStatus => 200)
+    expect(@factory).to receive(:newApplication).and_return app1, app2
+    destroyed = java.util.concurrent.CountDownLatch.new(1)
+    allow(@factory).to receive(:finishedWithApplication) { |app| destroyed.countDown if app.equal?(app1) }
+    evicted = java.util.concurrent.CountDownLatch.new(1)
+    allow(@rack_context).to receive(:log) { |_, message| evicted.countDown if message.to_s =~ /evicting unhealthy/ }
+    @pooling_factory.init(@rack_context)
+
+    expect(probing.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    expect(evicted.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    expect(destroyed.getCount).to eq 1 # still probing
+    expect(@pooling_factory.getHealthCheckEvictions).to eq 1
+    proceed.countDown
+    expect(destroyed.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    @pooling_factory.destroy
+  end
+
+  it "interrupts hung health check probes and destroys their applications after a grace period" do
+    allow(@factory).to receive(:init)
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 1
+    allow(@rack_config).to receive(:getProperty) { |key| key == 'jruby.runtime.health.check' ? '/health' : nil }
+    allow(@rack_config).to receive(:getNumberProperty) do |key|
+      { 'jruby.runtime.health.interval' => 0.1, 'jruby.runtime.health.timeout' => 0.1 }[key]
+    end
+    interrupted = java.util.concurrent.CountDownLatch.new(1)
+    app1, app2 = double("app1").as_null_object, double("app2").as_null_object
+    allow(app1).to receive(:call) do
+      begin
+        java.util.concurrent.CountDownLatch.new(1).await # never completes
+      rescue java.lang.InterruptedException
+        interrupted.countDown; raise
+      end
+    end
+    allow(app2).to receive(:call).and_return double("response", :getBody => nil, :getStatus => 200)
+    expect(@factory).to receive(:newApplication).and_return app1, app2
+    destroyed = java.util.concurrent.CountDownLatch.new(1)
+    allow(@factory).to receive(:finishedWithApplication) { |app| destroyed.countDown if app.equal?(app1) }
+    messages = java.util.concurrent.CopyOnWriteArrayList.new
+    allow(@rack_context).to receive(:log) { |_, message| messages.add message.to_s }
+    @pooling_factory.init(@rack_context)
+
+    expect(destroyed.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    expect(interrupted.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    expect(messages.to_a.grep(/destroying application anyway/).size).to eq 1
+    expect(@pooling_factory.getHealthCheckEvictions).to eq 1
+    @pooling_factory.destroy
+  end
+
+  it "drains busy applications (and stops handing out applications) on destroy" do
+    allow(@factory).to receive(:init)
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 2
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 2
+    allow(@rack_config).to receive(:getNumberProperty) { |key| key == 'jruby.runtime.pool.drain.timeout' ? 5 : nil }
+    allow(@factory).to receive(:newApplication) { double("app").as_null_object }
+    @pooling_factory.init(@rack_context)
+    expect(@pooling_factory.getDrainTimeout).to eq 5
+
+    busy = @pooling_factory.getApplication
+    draining = java.util.concurrent.CountDownLatch.new(1)
+    allow(@rack_context).to receive(:log) { |_, message| draining.countDown if message.to_s =~ /busy application/ }
+    destroyed = []
+    allow(@factory).to receive(:finishedWithApplication) { |app| destroyed << app }
+    thread = java.lang.Thread.new { @pooling_factory.destroy }
+    thread.start
+    expect(draining.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    expect { @pooling_factory.getApplication }.to raise_error(org.jruby.rack.AcquireTimeoutException)
+    expect(destroyed).to be_empty # waiting for the busy one
+    @pooling_factory.finishedWithApplication busy
+    thread.join(5000)
+    expect(destroyed.size).to eq 2
+    expect(destroyed).to include(busy)
+  end
+
+  it "returns busy sub-pool applications to their sub-pool while destroying" do
+    allow(@factory).to receive(:init)
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 1
+    properties = { 'jruby.runtime.pool.names' => 'reports', 'jruby.runtime.pool.reports.path' => '/reports' }
+    allow(@rack_config).to receive(:getProperty) { |key| properties[key] }
+    numbers = {
+      'jruby.runtime.pool.drain.timeout' => 5,
+      'jruby.runtime.pool.reports.min' => 1, 'jruby.runtime.pool.reports.max' => 1
+    }
+    allow(@rack_config).to receive(:getNumberProperty) { |key| numbers[key] }
+    allow(@factory).to receive(:newApplication) { double("app").as_null_object }
+    @pooling_factory.init(@rack_context)
+    reports = @pooling_factory.getSubPools.to_a.first
+
+    env = org.jruby.rack.RackEnvironment.impl {}
+    allow(env).to receive(:getPathInfo).and_return '/reports/monthly'
+    busy = @pooling_factory.getApplication(env)
+    expect(reports.getBusyApplications).to eq 1
+
+    draining = java.util.concurrent.CountDownLatch.new(1)
+    allow(@rack_context).to receive(:log) { |_, message| draining.countDown if message.to_s =~ /busy application/ }
+    destroyed = []
+    allow(@factory).to receive(:finishedWithApplication) { |app| destroyed << app }
+    thread = java.lang.Thread.new { @pooling_factory.destroy }
+    thread.start
+    expect(draining.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+
+    @pooling_factory.finishedWithApplication busy
+    expect(reports.getBusyApplications).to eq 0
+    thread.join(5000)
+    expect(destroyed.size).to eq 2
+    expect(destroyed.select { |app| app.equal?(busy) }.size).to eq 1
+  end
+
+  it "drains all pools up to the same deadline and accounts applications returned late to their sub-pool" do
+    allow(@factory).to receive(:init)
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 1
+    properties = { 'jruby.runtime.pool.names' => 'reports', 'jruby.runtime.pool.reports.path' => '/reports' }
+    allow(@rack_config).to receive(:getProperty) { |key| properties[key] }
+    numbers = {
+      'jruby.runtime.pool.drain.timeout' => 0.5,
+      'jruby.runtime.pool.reports.min' => 1, 'jruby.runtime.pool.reports.max' => 1
+    }
+    allow(@rack_config).to receive(:getNumberProperty) { |key| numbers[key] }
+    allow(@factory).to receive(:newApplication) { double("app").as_null_object }
+    @pooling_factory.init(@rack_context)
+    reports = @pooling_factory.getSubPools.to_a.first
+
+    env = org.jruby.rack.RackEnvironment.impl {}
+    allow(env).to receive(:getPathInfo).and_return '/reports/monthly'
+    busy_report = @pooling_factory.getApplication(env)
+    busy = @pooling_factory.getApplication
+    destroyed = []
+    allow(@factory).to receive(:finishedWithApplication) { |app| destroyed << app }
+    allow(@rack_context).to receive(:log)
+
+    start = java.lang.System.currentTimeMillis
+    @pooling_factory.destroy # neither busy application gets returned in time
+    expect(java.lang.System.currentTimeMillis - start).to be < 1000
+    expect(destroyed.size).to eq 0
+
+    @pooling_factory.finishedWithApplication busy_report
+    expect(reports.getCreatedApplications).to eq 0
+    expect(@pooling_factory.getCreatedApplications).to eq 1
+    @pooling_factory.finishedWithApplication busy
+    expect(@pooling_factory.getCreatedApplications).to eq 0
+    expect(destroyed.size).to eq 2
+  end
+
+  it "tracks leases and logs lease holders on acquire timeout" do
+    allow(@factory).to receive(:init)
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 1
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 1
+    expect(@rack_config).to receive(:getRuntimeAcquireTimeout).and_return 0.1
+    allow(@factory).to receive(:newApplication) { double("app").as_null_object }
+    @pooling_factory.init(@rack_context)
+
+    request = org.jruby.rack.RackEnvironment.impl {}
+    allow(request).to receive(:getMethod).and_return 'GET'
+    allow(request).to receive(:getRequestURI).and_return '/slow?page=1'
+    app = @pooling_factory.getApplication(request)
+    expect(@pooling_factory.getBusyApplications).to eq 1
+    lease = @pooling_factory.getActiveLeases.to_a.first
+    expect(lease).to match(/runtime-1 held for \d+ms by thread '.*?' \(GET \/slow\?page=1\)/)
+
+    messages = []
+    allow(@rack_context).to receive(:log) { |level, msg, e| messages << msg.to_s }
+    expect { @pooling_factory.getApplication }.to raise_error(org.jruby.rack.AcquireTimeoutException)
+    dump = messages.find { |msg| msg.start_with?('1 runtime(s) held on acquire timeout') }
+    expect(dump).to include('(GET /slow?page=1)')
+
+    @pooling_factory.finishedWithApplication app
+    expect(@pooling_factory.getActiveLeases.to_a).to be_empty
+    @pooling_factory.destroy
+  end
+
+  it "creates applications on demand in parallel (never above the maximum)" do
+    allow(@factory).to receive(:init)
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 0
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 2
+    allow(@rack_config).to receive(:getNumberProperty) { |key| key == 'jruby.runtime.create.concurrency' ? 2 : nil }
+    expect(@rack_config).to receive(:getRuntimeAcquireTimeout).and_return 0.5
+    creating = java.util.concurrent.atomic.AtomicInteger.new
+    peak = java.util.concurrent.atomic.AtomicInteger.new
+    allow(@factory).to receive(:getApplication) do
+      peak.accumulateAndGet(creating.incrementAndGet) { |a, b| [ a, b ].max }
+      sleep(0.2)
+      creating.decrementAndGet
+      double("app").as_null_object
+    end
+    @pooling_factory.init(@rack_context)
+    expect(@pooling_factory.getCreationConcurrency).to eq 2
+
+    threads = 3.times.map do
+      java.lang.Thread.new { @pooling_factory.getApplication rescue nil }.tap(&:start)
+    end
+    threads.each { |thread| thread.join(5000) }
+    expect(peak.get).to eq 2
+    expect(@pooling_factory.getCreatedApplications).to eq 2
+    @pooling_factory.destroy
+  end
+
+  it "hands a thread the application it used last (affinity)" do
+    allow(@factory).to receive(:init)
+    allow(@factory).to receive(:newApplication) { double("app").as_null_object }
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 3
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 3
+    allow(@rack_config).to receive(:getProperty) { |key| key == 'jruby.runtime.pool.affinity' ? 'true' : nil }
+    @pooling_factory.init(@rack_context)
+    expect(@pooling_factory.isAffinity).to be true
+
+    apps = 4.times.map do
+      app = @pooling_factory.getApplication
+      @pooling_factory.finishedWithApplication app
+      app
+    end
+    expect(apps.uniq.size).to eq 1
+    expect(@pooling_factory.getAffinityHits).to eq 3
+    expect(@pooling_factory.getAffinityMisses).to eq 1
+
+    other = nil
+    thread = java.lang.Thread.new do
+      other = @pooling_factory.getApplication # first acquire - falls back to the pool
+      @pooling_factory.finishedWithApplication other
+    end
+    thread.start; thread.join
+    expect(@pooling_factory.getAffinityMisses).to eq 2
+    expect(@pooling_factory.getApplicationPool.size).to eq 3
+  end
+
   it "forces the maximum size to be greater or equal to the initial size" do
     allow(@factory).to receive(:init)
     allow(@factory).to receive(:newApplication) do
@@ -703,6 +1290,30 @@ describe org.jruby.rack.PoolingRackApplicationFactory do
     expect(@pooling_factory.getApplicationPool.size).to be >= 4
   end
 
+  it "becomes ready once initial runtimes are pooled (with wait set to false)" do
+    allow(@factory).to receive(:init)
+    allow(@factory).to receive(:newApplication) do
+      app = double("app").as_null_object
+      allow(app).to receive(:init) { sleep(0.1) }
+      app
+    end
+    allow(@rack_config).to receive(:getBooleanProperty).with("jruby.runtime.init.wait").and_return false
+    expect(@rack_config).to receive(:getInitialRuntimes).and_return 2
+    expect(@rack_config).to receive(:getMaximumRuntimes).and_return 2
+    attributes = {}
+    allow(@rack_context).to receive(:setAttribute) { |key, value| attributes[key] = value }
+
+    @pooling_factory.init(@rack_context)
+    expect(@pooling_factory.isReady).to be false
+    expect(attributes['rack.factory.ready']).to be false
+    expect(@pooling_factory.awaitReady(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+    expect(@pooling_factory.getApplicationPool.size).to eq 2
+    expect(attributes['rack.factory.ready']).to be true
+
+    @pooling_factory.destroy
+    expect(attributes['rack.factory.ready']).to be false
+  end
+
   it "throws an exception from getApplication when an app failed to initialize " +
      "(even when only a single application initialization fails)" do
     app_init_secs = 0.05
@@ -985,4 +1596,224 @@ describe org.jruby.rack.SharedRackApplicationFactory do
     expect(@shared_factory.getErrorApplication).to eq app
   end
 
+  describe "concurrency limit" do
+
+    before :each do
+      @limit_config = {}
+      allow(@rack_config).to receive(:getNumberProperty) do |key, default = nil|
+        @limit_config.fetch(key, default)
+      end
+      allow(@factory).to receive(:init)
+      allow(@factory).to receive(:getApplication).and_return @app = double("application")
+    end
+
+    after(:each) { @shared_factory.destroy rescue nil }
+
+    it "is not limited by default" do
+      @shared_factory.init(@rack_context)
+      expect(@shared_factory.getConcurrencyLimiter).to be nil
+    end
+
+    def dispatcher
+      allow(@rack_context).to receive(:getRackFactory).and_return @shared_factory
+      org.jruby.rack.DefaultRackDispatcher.new(@rack_context)
+    end
+
+    def respond_with(&block)
+      rack_response = double("rack response")
+      allow(rack_response).to receive(:respond)
+      allow(@app).to receive(:call) { |env| block.call(env); rack_response }
+    end
+
+    it "queues requests over the limit (while processing)" do
+      @limit_config['jruby.runtime.shared.limit'] = 2
+      @shared_factory.init(@rack_context)
+      limiter = @shared_factory.getConcurrencyLimiter
+      dispatcher = self.dispatcher
+
+      executing = java.util.concurrent.atomic.AtomicInteger.new
+      peak = java.util.concurrent.atomic.AtomicInteger.new
+      entered = java.util.concurrent.CountDownLatch.new(2)
+      proceed = java.util.concurrent.CountDownLatch.new(1)
+      respond_with do
+        peak.accumulateAndGet(executing.incrementAndGet) { |a, b| [ a, b ].max }
+        entered.countDown
+        proceed.await
+        executing.decrementAndGet
+      end
+      threads = 4.times.map do
+        java.lang.Thread.new { dispatcher.process(double("request"), double("response")) }.tap(&:start)
+      end
+      expect(entered.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+      expect(executing.get).to eq 2
+      proceed.countDown
+      threads.each { |thread| thread.join(5000) }
+
+      expect(peak.get).to eq 2
+      expect(limiter.getCompletedRequests).to eq 4
+      expect(limiter.getActiveRequests).to eq 0
+      expect(limiter.getQueuedRequests).to eq 0
+    end
+
+    it "does not take another slot for nested processing (from the same thread)" do
+      @limit_config['jruby.runtime.shared.limit'] = 1
+      @shared_factory.init(@rack_context)
+      dispatcher = self.dispatcher
+
+      calls = 0
+      respond_with do
+        calls += 1
+        dispatcher.process(double("request"), double("response")) if calls == 1 # e.g. an include
+      end
+      dispatcher.process(double("request"), double("response"))
+      expect(calls).to eq 2
+      expect(@shared_factory.getConcurrencyLimiter.getActiveRequests).to eq 0
+      expect(@shared_factory.getConcurrencyLimiter.getCompletedRequests).to eq 1
+    end
+
+    it "releases the slot when processing fails" do
+      @limit_config['jruby.runtime.shared.limit'] = 1
+      @shared_factory.init(@rack_context)
+
+      respond_with { raise 'failed' }
+      response = double("response")
+      allow(response).to receive(:isCommitted).and_return true
+      dispatcher.process(double("request"), response)
+      expect(@shared_factory.getConcurrencyLimiter.getActiveRequests).to eq 0
+    end
+
+    it "does not hold slots for applications retrieved outside the dispatcher" do
+      @limit_config['jruby.runtime.shared.limit'] = 1
+      @shared_factory.init(@rack_context)
+
+      2.times { expect(@shared_factory.getApplication).to be @app } # e.g. RackTag
+      expect(@shared_factory.getConcurrencyLimiter.getActiveRequests).to eq 0
+    end
+
+    it "rejects requests when the queue is full" do
+      @limit_config['jruby.runtime.shared.limit'] = 1
+      @limit_config['jruby.runtime.shared.queue'] = 0
+      @shared_factory.init(@rack_context)
+      dispatcher = self.dispatcher
+
+      entered = java.util.concurrent.CountDownLatch.new(1)
+      proceed = java.util.concurrent.CountDownLatch.new(1)
+      respond_with { entered.countDown; proceed.await }
+      thread = java.lang.Thread.new { dispatcher.process(double("request"), double("response")) }
+      thread.start
+      expect(entered.await(5, java.util.concurrent.TimeUnit::SECONDS)).to be true
+
+      response = double("response")
+      allow(response).to receive(:isCommitted).and_return true # only logs the error
+      dispatcher.process(double("request"), response)
+      expect(@shared_factory.getConcurrencyLimiter.getRejectedRequests).to eq 1
+      proceed.countDown; thread.join(5000)
+      expect(@shared_factory.getConcurrencyLimiter.getCompletedRequests).to eq 1
+    end
+
+  end
+
+end
+
+describe org.jruby.rack.HybridRackApplicationFactory do
+
+  before :each do
+    @factory = double "factory"
+    allow(@factory).to receive(:init)
+    @hybrid_factory = org.jruby.rack.HybridRackApplicationFactory.new @factory
+  end
+
+  def request(path)
+    env = org.jruby.rack.RackEnvironment.impl {}
+    allow(env).to receive(:getPathInfo).and_return path
+    env
+  end
+
+  it "serves isolated paths from a pool and everything else from the shared application" do
+    properties = {
+      'jruby.runtime.pool.isolated.path' => '/legacy',
+      'jruby.runtime.pool.isolated.pattern' => '/admin/.*/export'
+    }
+    allow(@rack_config).to receive(:getProperty) { |key| properties[key] }
+    numbers = { 'jruby.runtime.pool.isolated.min' => 1, 'jruby.runtime.pool.isolated.max' => 2 }
+    allow(@rack_config).to receive(:getNumberProperty) { |key, default = nil| numbers.fetch(key, default) }
+    expect(@factory).to receive(:getApplication).and_return shared_app = double("shared app")
+    allow(@factory).to receive(:newApplication) { double("isolated app").as_null_object }
+    @hybrid_factory.init(@rack_context)
+
+    pool = @hybrid_factory.getIsolatedPool
+    expect(pool.getPoolName).to eq 'isolated'
+    expect(pool.getMaximumSize).to eq 2
+
+    expect(@hybrid_factory.getApplication(request('/home'))).to be shared_app
+    @hybrid_factory.finishedWithApplication shared_app
+
+    app = @hybrid_factory.getApplication(request('/legacy/orders'))
+    expect(app).to_not be shared_app
+    expect(pool.getBusyApplications).to eq 1
+    @hybrid_factory.finishedWithApplication app
+    expect(pool.getBusyApplications).to eq 0
+
+    app = @hybrid_factory.getApplication(request('/admin/users/export'))
+    expect(app).to_not be shared_app
+    @hybrid_factory.finishedWithApplication app
+    expect(pool.getIdleApplications).to eq 1
+
+    expect(@hybrid_factory.getManagedApplications.size).to eq 2
+
+    expect(@factory).to receive(:finishedWithApplication).with(shared_app)
+    expect(@factory).to receive(:destroy).once
+    @hybrid_factory.destroy
+  end
+
+  it "works as a shared factory without isolated paths" do
+    expect(@factory).to receive(:getApplication).and_return shared_app = double("shared app")
+    @hybrid_factory.init(@rack_context)
+
+    expect(@hybrid_factory.getIsolatedPool).to be nil
+    expect(@hybrid_factory.getApplication(request('/legacy'))).to be shared_app
+    expect(@hybrid_factory.getManagedApplications.size).to eq 1
+  end
+
+end
+
+describe org.jruby.rack.ConcurrencyLimiter do
+
+  it "increases the limit (additively) while within the target latency" do
+    limiter = org.jruby.rack.ConcurrencyLimiter.new(nil, 4, 1, 8, 10, -1, 1000)
+    3.times { limiter.acquire }
+    4.times { limiter.acquire; limiter.release(1_000_000) }
+    expect(limiter.getLimit).to eq 5
+  end
+
+  it "does not increase the limit unless fully used" do
+    limiter = org.jruby.rack.ConcurrencyLimiter.new(nil, 4, 1, 8, 10, -1, 1000)
+    10.times { limiter.acquire; limiter.release(1_000_000) }
+    expect(limiter.getLimit).to eq 4
+  end
+
+  it "decreases the limit (multiplicatively) once above the target latency" do
+    limiter = org.jruby.rack.ConcurrencyLimiter.new(nil, 8, 2, 8, 10, -1, 1000)
+    sleep(0.02)
+    limiter.acquire; limiter.release(50_000_000)
+    expect(limiter.getLimit).to eq 7
+    limiter.acquire; limiter.release(50_000_000) # backed off recently
+    expect(limiter.getLimit).to eq 7
+  end
+
+  it "keeps a static limit without a target latency" do
+    limiter = org.jruby.rack.ConcurrencyLimiter.new(nil, 2, 1, 8, 0, -1, 1000)
+    limiter.acquire; limiter.acquire
+    limiter.release(1_000_000_000)
+    expect(limiter.getLimit).to eq 2
+  end
+
+  it "times out waiting for a slot" do
+    limiter = org.jruby.rack.ConcurrencyLimiter.new(nil, 1, 1, 1, 0, -1, 100)
+    limiter.acquire
+    expect { limiter.acquire }.to raise_error(org.jruby.rack.AcquireTimeoutException)
+    expect(limiter.getTimedOutRequests).to eq 1
+    expect(limiter.getQueuedRequests).to eq 0
+  end
+
 end
\ No newline at end of file
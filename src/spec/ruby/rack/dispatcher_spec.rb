@@ -41,6 +41,52 @@ describe org.jruby.rack.DefaultRackDispatcher do
       @dispatcher.process(req, res)
     end
 
+    it "does not pin virtual threads while processing a request" do
+      require 'jruby/rack/response'
+      content = "0123456789abcdef" * 4096 # above the maximum buffer size (backed by a file)
+      servlet_request = MockHttpServletRequest.new('POST', '/upload')
+      servlet_request.setContent content.to_java_bytes
+      slow_input = Class.new(javax.servlet.ServletInputStream) do
+        def initialize(input); super(); @input = input; end
+        def read(*args)
+          java.util.concurrent.locks.LockSupport.parkNanos(1000) # waiting on the client parks the (virtual) thread
+          @input.read(*args)
+        end
+      end
+      servlet_request = Class.new(javax.servlet.http.HttpServletRequestWrapper) do
+        define_method(:getInputStream) { @input ||= slow_input.new(super()) }
+      end.new(servlet_request)
+      servlet_response = MockHttpServletResponse.new
+
+      rack_app = Object.new
+      def rack_app.call(env)
+        input = JRuby::Rack::Input.new(env)
+        body = input.read; input.rewind
+        JRuby::Rack::Response.new [ 200, { 'Content-Type' => 'text/plain' }, [ "#{body.size} #{input.read == body}" ] ]
+      end
+      application = org.jruby.rack.DefaultRackApplication.new
+      application.setApplication(rack_app)
+      expect(@rack_factory).to receive(:getApplication).and_return(application)
+      expect(@rack_factory).to receive(:finishedWithApplication).with(application)
+
+      request = org.jruby.rack.servlet.ServletRackEnvironment.new(servlet_request, servlet_response, @rack_context)
+      response = org.jruby.rack.servlet.ServletRackResponseEnvironment.new(servlet_response)
+
+      pinned = java.util.concurrent.atomic.AtomicInteger.new
+      stream = Java::JdkJfrConsumer::RecordingStream.new
+      stream.enable('jdk.VirtualThreadPinned').withThreshold(java.time.Duration::ZERO)
+      stream.onEvent('jdk.VirtualThreadPinned') { |event| pinned.incrementAndGet }
+      stream.startAsync
+      begin
+        thread = java.lang.Thread.ofVirtual.start { @dispatcher.process(request, response) }
+        expect(thread.join(java.time.Duration.ofSeconds(10))).to be true
+      ensure
+        stream.stop; stream.close
+      end
+      expect(servlet_response.getContentAsString).to eq "#{content.size} true"
+      expect(pinned.get).to eq 0
+    end
+
     context 'init error' do
 
       before do
@@ -89,4 +135,170 @@ describe org.jruby.rack.DefaultRackDispatcher do
 
   end
 
-end
\ No newline at end of file
+end
+describe org.jruby.rack.DefaultRackDispatcher, "readiness" do
+
+  before :each do
+    allow(@rack_config).to receive(:getProperty) { |key| key == 'jruby.rack.ready.path' ? '/_ready' : nil }
+    @rack_factory = org.jruby.rack.RackApplicationFactory.impl {}
+    allow(@rack_context).to receive(:getRackFactory).and_return @rack_factory
+    @dispatcher = org.jruby.rack.DefaultRackDispatcher.new @rack_context
+  end
+
+  def process(ready)
+    allow(@rack_context).to receive(:getAttribute).with('rack.factory.ready').and_return ready
+    request = org.jruby.rack.RackEnvironment.impl {}
+    allow(request).to receive(:getPathInfo).and_return '/_ready'
+    response = MockHttpServletResponse.new
+    expect(@rack_factory).to_not receive(:getApplication)
+    @dispatcher.process(request, org.jruby.rack.servlet.ServletRackResponseEnvironment.new(response))
+    response
+  end
+
+  it "responds to the readiness path with 503 while not ready" do
+    response = process(false)
+    expect(response.getStatus).to eq 503
+    expect(response.getContentAsString).to eq 'not ready'
+  end
+
+  it "responds to the readiness path with 200 once ready" do
+    response = process(true)
+    expect(response.getStatus).to eq 200
+    expect(response.getContentAsString).to eq 'ready'
+  end
+
+end
+
+describe org.jruby.rack.AsyncRackDispatcher do
+
+  before :each do
+    @delegate = org.jruby.rack.RackDispatcher.impl {}
+    @executor = java.util.concurrent.Executors.newSingleThreadExecutor
+    @dispatcher = org.jruby.rack.AsyncRackDispatcher.new @delegate, @rack_context, @executor
+  end
+
+  after(:each) { @executor.shutdownNow }
+
+  def process(request, response)
+    env = org.jruby.rack.servlet.ServletRackEnvironment.new(request, response, @rack_context)
+    @dispatcher.process(env, org.jruby.rack.servlet.ServletRackResponseEnvironment.new(response))
+  end
+
+  it "processes the request on the executor (when async is supported)" do
+    request = MockHttpServletRequest.new; request.setAsyncSupported(true)
+    response = MockHttpServletResponse.new
+    thread = nil
+    expect(@delegate).to receive(:process) { thread = java.lang.Thread.currentThread }
+    process(request, response)
+    @executor.shutdown; @executor.awaitTermination(5, java.util.concurrent.TimeUnit::SECONDS)
+    expect(thread).to_not be nil
+    expect(thread).to_not eq java.lang.Thread.currentThread
+    expect(request.isAsyncStarted).to be false # completed
+  end
+
+  it "processes the request in the calling thread (when async is not supported)" do
+    request = MockHttpServletRequest.new
+    thread = nil
+    expect(@delegate).to receive(:process) { thread = java.lang.Thread.currentThread }
+    process(request, MockHttpServletResponse.new)
+    expect(thread).to eq java.lang.Thread.currentThread
+  end
+
+  it "responds with 503 when the executor rejects the request" do
+    @executor.shutdown
+    request = MockHttpServletRequest.new; request.setAsyncSupported(true)
+    response = MockHttpServletResponse.new
+    expect(@delegate).to_not receive(:process)
+    process(request, response)
+    expect(response.getStatus).to eq 503
+  end
+
+  it "sizes the executor independently of the runtime pool (with a bounded queue)" do
+    allow(@rack_config).to receive(:getMaximumRuntimes).and_return 1
+    executor = org.jruby.rack.AsyncRackDispatcher.newExecutor(@rack_config)
+    begin
+      threads = java.lang.Runtime.getRuntime.availableProcessors * 4
+      expect(executor.getMaximumPoolSize).to eq threads
+      expect(executor.getQueue.remainingCapacity).to eq threads * 16
+    ensure
+      executor.shutdownNow
+    end
+  end
+
+  it "is only enabled when configured" do
+    expect(org.jruby.rack.AsyncRackDispatcher.isEnabled(@rack_context)).to be false
+    allow(@rack_config).to receive(:getProperty) { |key| key == 'jruby.rack.dispatch.async' ? 'true' : nil }
+    expect(org.jruby.rack.AsyncRackDispatcher.isEnabled(@rack_context)).to be true
+  end
+
+end
+
+describe org.jruby.rack.AdmissionController do
+
+  let(:controller) { org.jruby.rack.AdmissionController.new @rack_context, 10, 50, 2, '/health' }
+
+  def request(path)
+    request = org.jruby.rack.RackEnvironment.impl {}
+    allow(request).to receive(:getPathInfo).and_return path
+    request
+  end
+
+  def overload!
+    controller.recordSojourn 20_000_000 # 20ms
+    sleep(0.06)
+    controller.recordSojourn 20_000_000
+  end
+
+  it "admits requests while the wait time is below the target" do
+    controller.recordSojourn 5_000_000
+    expect(controller.admit(request('/'))).to be true
+    expect(controller.isDropping).to be false
+  end
+
+  it "rejects requests once the wait time stays above the target" do
+    overload!
+    expect(controller.isDropping).to be true
+    expect(controller.admit(request('/'))).to be false
+    expect(controller.admit(request('/health/db'))).to be true
+  end
+
+  it "admits a probe request per interval while rejecting" do
+    overload!
+    expect(controller.admit(request('/'))).to be false
+    sleep(0.06)
+    expect(controller.admit(request('/'))).to be true
+    expect(controller.admit(request('/'))).to be false
+  end
+
+  it "stops rejecting once the wait time stays below the target for an interval" do
+    overload!
+    controller.recordSojourn 1_000_000
+    expect(controller.isDropping).to be true # not before the interval ends
+    sleep(0.06)
+    controller.recordSojourn 20_000_000
+    expect(controller.isDropping).to be false
+    expect(controller.admit(request('/'))).to be true
+  end
+
+  it "responds with 503 and retry after (without sending an error)" do
+    response = MockHttpServletResponse.new
+    controller.reject(org.jruby.rack.servlet.ServletRackResponseEnvironment.new(response))
+    expect(response.getStatus).to eq 503
+    expect(response.getHeader('Retry-After')).to eq '2'
+    expect(response.getErrorMessage).to be nil
+    expect(response.isCommitted).to be true
+  end
+
+  it "rejects requests in the dispatcher without acquiring an application" do
+    rack_factory = org.jruby.rack.RackApplicationFactory.impl {}
+    allow(@rack_context).to receive(:getRackFactory).and_return rack_factory
+    dispatcher = org.jruby.rack.DefaultRackDispatcher.new @rack_context
+    dispatcher.setAdmissionController controller
+    overload!
+    response = MockHttpServletResponse.new
+    expect(rack_factory).to_not receive(:getApplication)
+    dispatcher.process(request('/'), org.jruby.rack.servlet.ServletRackResponseEnvironment.new(response))
+    expect(response.getStatus).to eq 503
+  end
+
+end
@@ -0,0 +1,98 @@
+require File.expand_path('../../spec_helper', File.dirname(__FILE__))
+
+require 'rack'
+require 'rack/handler/servlet'
+
+describe Rack::Handler::Servlet::Cookies do
+
+  headers = [
+    '', 'foo=bar', 'foo=bar; bar=142', 'foo=bar; foo=142', 'a=1;b=2;;  c=3',
+    'flag', 'a=b=c', 'q=%E2%9C%93+x', 'bad=%zz', 'x =1; y', 'sid="quoted"; =none', '; ; a=1'
+  ]
+
+  headers.each do |header|
+    it "parses #{header.inspect} same as Rack" do
+      cookies = Rack::Handler::Servlet::Cookies.parse_cookies_header(header)
+      expect(cookies).to eql Rack::Utils.parse_cookies_header(header)
+      expect(cookies.keys.map(&:frozen?).uniq).to eql cookies.empty? ? [] : [ true ]
+    end
+  end
+
+  it "parses into a plain Hash" do
+    cookies = Rack::Handler::Servlet::Cookies.parse_cookies_header('foo=bar; sid=abc; foo=142')
+    expect(cookies.class).to be Hash
+    expect(cookies.freeze).to eq({ 'foo' => 'bar', 'sid' => 'abc' })
+    expect(cookies.slice('sid')).to eq({ 'sid' => 'abc' })
+    expect(Marshal.load(Marshal.dump(cookies))).to eq cookies
+  end
+
+  it "returns an empty Hash without a header" do
+    expect(Rack::Handler::Servlet::Cookies.parse_cookies_header(nil)).to eql({})
+  end
+
+  describe Rack::Handler::Servlet::CookieHash do
+
+    let(:header) { 'foo=bar; sid=abc; foo=142; q=%E2%9C%93+x; flag' }
+    let(:cookies) { Rack::Handler::Servlet::CookieHash.new(header) }
+
+    headers.each do |header|
+      it "parses #{header.inspect} same as Rack" do
+        cookies = Rack::Handler::Servlet::CookieHash.new(header)
+        expect(cookies).to eql Rack::Utils.parse_cookies_header(header)
+        expect(cookies.keys.map(&:frozen?).uniq).to eql cookies.empty? ? [] : [ true ]
+      end
+    end
+
+    it "only parses looked up cookies" do
+      parsed_size = Hash.instance_method(:size).bind(cookies) # does not parse
+      expect(cookies['foo']).to eql 'bar'
+      expect(cookies['missing']).to be nil
+      expect(parsed_size.call).to eql 1
+      expect(cookies.key?('flag')).to be true
+      expect(cookies.fetch('q')).to eql '✓ x'
+      expect(cookies.dig('sid')).to eql 'abc'
+      expect(parsed_size.call).to eql 4
+    end
+
+    it "does not parse a deleted cookie again" do
+      expect(cookies.delete('sid')).to eql 'abc'
+      expect(cookies['sid']).to be nil
+      expect(cookies.key?('sid')).to be false
+      expect(cookies.keys).to eql [ 'foo', 'q', 'flag' ]
+    end
+
+    it "keeps cookies set before being parsed" do
+      cookies['foo'] = 'mine'
+      expect(cookies['foo']).to eql 'mine'
+      expect(cookies.to_h).to eql 'foo' => 'mine', 'sid' => 'abc', 'q' => '✓ x', 'flag' => nil
+    end
+
+    it "parses all cookies when enumerated" do
+      expect(cookies.size).to eql 4
+      expect(Rack::Handler::Servlet::CookieHash.new(header).to_a.size).to eql 4
+      expect(Rack::Handler::Servlet::CookieHash.new(header).keys).to eql [ 'foo', 'sid', 'q', 'flag' ]
+      expect(Rack::Handler::Servlet::CookieHash.new(header).select { |k, _| k == 'q' }).to eql 'q' => '✓ x'
+      expect(Rack::Handler::Servlet::CookieHash.new('').empty?).to be true
+    end
+
+    it "parses all cookies when read as a Hash" do
+      expected = Rack::Utils.parse_cookies_header(header)
+      expect({}.merge(Rack::Handler::Servlet::CookieHash.new(header))).to eql expected
+      expect({}.update(Rack::Handler::Servlet::CookieHash.new(header))).to eql expected
+      expect({ **Rack::Handler::Servlet::CookieHash.new(header) }).to eql expected
+      expect(lambda { |**kwargs| kwargs }.call(**Rack::Handler::Servlet::CookieHash.new(header))).to eql expected
+      expect(expected == Rack::Handler::Servlet::CookieHash.new(header)).to be true
+      expect(Rack::Handler::Servlet::CookieHash.new(header).freeze).to eql expected
+      expect(Rack::Handler::Servlet::CookieHash.new(header).dup).to eql expected
+    end
+
+    it "marshals" do
+      cookies['sid']
+      loaded = Marshal.load(Marshal.dump(cookies))
+      expect(loaded).to be_a Rack::Handler::Servlet::CookieHash
+      expect(loaded).to eql Rack::Utils.parse_cookies_header(header)
+    end
+
+  end
+
+end
@@ -0,0 +1,125 @@
+require File.expand_path('../../spec_helper', File.dirname(__FILE__))
+
+require 'rack'
+require 'rack/handler/servlet'
+
+describe Rack::Handler::Servlet::Parameters do
+
+  queries = [
+    '', 'foo', 'foo=', 'foo=bar', 'foo="bar"', 'foo=bar&foo=quux', 'foo&foo=',
+    'foo=1&bar=2', '&foo=1&&bar=2', 'foo&bar=', 'a;b=1; c=2',
+    'my+weird+field=q1%212%22%27w%245%267%2Fz8%29%3F', 'a=b&pid%3D1234=1023',
+    '%E2%9C%93=%E2%9C%93',
+    'foo[]', 'foo[]=', 'foo[]=bar', 'foo[]=bar&foo[]', 'foo[]=bar&foo[]=',
+    'foo=bar&foo[]=', 'foo[]=1&foo[]=2', 'foo=bar&baz[]=1&baz[]=2&baz[]=3',
+    'x[y][z]=1', 'x[y][z][]=1', 'x[y][z]=1&x[y][z]=2', 'x[y][z][]=1&x[y][z][]=2',
+    'x[y][][z]=1', 'x[y][][z][]=1', 'x[y][][z]=1&x[y][][w]=2', 'x[y][][v][w]=1',
+    'x[y][][z]=1&x[y][][v][w]=2', 'x[y][][z]=1&x[y][][z]=2',
+    'x[y][][z]=1&x[y][][w]=a&x[y][][z]=2&x[y][][w]=3',
+    'x[][y]=1&x[][z][w]=a&x[][y]=2&x[][z][w]=b',
+    'x[][z][w]=a&x[][y]=1&x[][z][w]=b&x[][y]=2',
+    'data[books][][data][page]=1&data[books][][data][page]=2',
+    'foo]=0&bar[=1&baz_=2&[meh=3', 'x[]=&x[]', '[]=1', 'a[]b=1', 'x[y]z=1',
+    'foo[bar]=0&foo[baz]=1&foo[bar]=2&foo[meh[]]=x&foo[meh[]]=42&huh[1]=b&huh[0]=a'
+  ]
+
+  queries.each do |query|
+    it "parses #{query.inspect} same as Rack" do
+      params = Rack::Handler::Servlet::Parameters.parse_nested_query(query)
+      expect(params).to eq Rack::Utils.parse_nested_query(query)
+    end
+  end
+
+  [ 'x[y]=1&x[]=1', 'x=1&x[y]=1', 'foo[]=0&foo[bar]=1', 'x[][y]=1&x[][y][]=2' ].each do |query|
+    it "raises on #{query.inspect} same as Rack" do
+      expect { Rack::Utils.parse_nested_query(query) }.to raise_error(Rack::Utils::ParameterTypeError)
+      expect { Rack::Handler::Servlet::Parameters.parse_nested_query(query) }.to raise_error(
+        Rack::Utils::ParameterTypeError, /for param `\w+'/
+      )
+    end
+  end
+
+  it "raises on invalid %-encoding" do
+    expect { Rack::Handler::Servlet::Parameters.parse_nested_query('a=%') }.to raise_error(
+      Rack::Utils::InvalidParameterError
+    )
+  end
+
+  it "raises when nested too deep" do
+    query = 'a' + ( '[a]' * 120 ) + '=1'
+    expect { Rack::Handler::Servlet::Parameters.parse_nested_query(query) }.to raise_error(RangeError)
+  end
+
+  it "raises on too many parameters" do
+    query = (1..4097).map { |i| "p#{i}=#{i}" }.join('&')
+    expect { Rack::Handler::Servlet::Parameters.parse_nested_query(query) }.to raise_error(RangeError, /exceeds limit/)
+  end
+
+  it "uses the limits of Rack's default query parser" do
+    parser = Rack::Utils.default_query_parser
+    begin
+      Rack::Utils.default_query_parser = parser.class.make_default(65536, 2)
+      expect { Rack::Handler::Servlet::Parameters.parse_nested_query('a[b][c]=1') }.to raise_error(RangeError)
+      expect(Rack::Handler::Servlet::Parameters.parse_nested_query('a[b]=1')).to eq({ 'a' => { 'b' => '1' } })
+    ensure
+      Rack::Utils.default_query_parser = parser
+    end
+  end
+
+  it "parses raw (non UTF-8) values" do
+    params = Rack::Handler::Servlet::Parameters.parse_nested_query('a=%FF%FE&b[]=%E2%9C%93')
+    expect(params['a'].bytes).to eql [ 0xFF, 0xFE ]
+    expect(params['b']).to eql [ "✓" ]
+  end
+
+  describe 'load' do
+
+    before do
+      @servlet_context = org.springframework.mock.web.MockServletContext.new
+      @servlet_request = org.springframework.mock.web.MockHttpServletRequest.new(@servlet_context)
+    end
+
+    it "fills in query and form hashes" do
+      @servlet_request.setMethod 'POST'
+      @servlet_request.setQueryString 'foo=bar&age=33&x[y]=1'
+      @servlet_request.addParameter('foo', 'bar')
+      @servlet_request.addParameter('age', '33')
+      @servlet_request.addParameter('x[y]', '1')
+      @servlet_request.addParameter('age', '30')
+      @servlet_request.addParameter('name[]', 'ferko')
+      @servlet_request.addParameter('name[]', 'jozko')
+
+      env = {}
+      expect(Rack::Handler::Servlet::Parameters.load(@servlet_request, env)).to be nil
+      expect(env['rack.request.query_hash']).to eq({ 'foo' => 'bar', 'age' => '33', 'x' => { 'y' => '1' } })
+      expect(env['rack.request.form_hash']).to eq({ 'age' => '30', 'name' => [ 'ferko', 'jozko' ] })
+    end
+
+    it "treats parameters not in the query string as form parameters" do
+      @servlet_request.setMethod 'PUT'
+      @servlet_request.setQueryString 'flag&a=%E2%9C%93'
+      @servlet_request.addParameter('flag', '')
+      @servlet_request.addParameter('a', "✓")
+      @servlet_request.addParameter('b', 'body')
+
+      env = {}
+      Rack::Handler::Servlet::Parameters.load(@servlet_request, env)
+      expect(env['rack.request.query_hash']).to eq({ 'flag' => '', 'a' => "✓" })
+      expect(env['rack.request.form_hash']).to eq({ 'b' => 'body' })
+    end
+
+    it "returns an error message for broken parameters" do
+      @servlet_request.setMethod 'GET'
+      @servlet_request.setQueryString 'foo[]=0&foo[bar]=1'
+      @servlet_request.addParameter('foo[]', '0')
+      @servlet_request.addParameter('foo[bar]', '1')
+
+      env = {}
+      error = Rack::Handler::Servlet::Parameters.load(@servlet_request, env)
+      expect(error).to eql "expected Hash (got Array) for param `foo'"
+      expect(env['rack.request.query_hash']).to eq({ 'foo' => [ '0' ] })
+    end
+
+  end
+
+end
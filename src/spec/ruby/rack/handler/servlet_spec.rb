@@ -557,6 +557,21 @@ describe Rack::Handler::Servlet do
       expect(env.keys).to include('HTTP_X_SOME_REALLY_LONG_HEADER')
     end
 
+    it "reuses (frozen) header keys and common values" do
+      env1 = servlet.create_env filled_servlet_env
+      env2 = servlet.create_env filled_servlet_env
+
+      key1 = env1.keys.find { |key| key == 'HTTP_X_SOME_REALLY_LONG_HEADER' }
+      key2 = env2.keys.find { |key| key == 'HTTP_X_SOME_REALLY_LONG_HEADER' }
+      expect(key1).to be_frozen
+      expect(key1).to be key2
+
+      expect(env1['REQUEST_METHOD']).to be_frozen
+      expect(env1['REQUEST_METHOD']).to be env2['REQUEST_METHOD']
+      expect(env1['SERVER_PORT']).to be env2['SERVER_PORT']
+      expect(env1['PATH_INFO']).to eql env2['PATH_INFO']
+    end
+
     it "works correctly when frozen" do
       env = servlet.create_env filled_servlet_env
       env.freeze
@@ -654,10 +669,10 @@ describe Rack::Handler::Servlet do
       before { @context = JRuby::Rack.context; JRuby::Rack.context = nil }
       after { JRuby::Rack.context = @context }
 
-      it "is a DefaultEnv" do
+      it "is a (configured) env" do
         env = servlet.create_env filled_servlet_env
         dump = Marshal.dump(env.to_hash); env = Marshal.load(dump)
-        expect(env).to be_a Rack::Handler::Servlet::DefaultEnv
+        expect(env).to be_a Rack::Handler::Servlet.env
       end
 
       it "works (almost) as before" do
@@ -791,6 +806,18 @@ describe Rack::Handler::Servlet do
 
     it_behaves_like "hash-instance"
 
+    it "maps header names without remembering client supplied ones" do
+      env_class = Rack::Handler::Servlet::DefaultEnv
+      expect(env_class.header_key('X-Forwarded-For')).to eq 'HTTP_X_FORWARDED_FOR'
+      expect(env_class.header_key('x-forwarded-for')).to eq 'HTTP_X_FORWARDED_FOR'
+      expect(env_class.header_name('HTTP_USER_AGENT')).to eq 'User-Agent'
+      keys = env_class.class_variable_get(:@@header_keys)
+      expect(env_class.header_key('X-Custom-Thing')).to eq 'HTTP_X_CUSTOM_THING'
+      expect(env_class.header_name('HTTP_X_CUSTOM_THING')).to eq 'X-Custom-Thing'
+      expect(env_class.class_variable_get(:@@header_keys)).to equal keys
+      expect(keys).to_not have_key 'X-Custom-Thing'
+    end
+
   end
 
   describe 'lazy env' do
@@ -869,6 +896,135 @@ describe Rack::Handler::Servlet do
 
   end
 
+  describe 'java env' do
+
+    before do
+      Rack::Handler::Servlet.env = :java
+    end
+
+    after do
+      Rack::Handler::Servlet.env = nil
+    end
+
+    it_behaves_like "env"
+
+    it_behaves_like "(eager)rack-env"
+
+    it_behaves_like "hash-instance"
+
+    it "is resolved from the handler env option" do
+      expect(Rack::Handler::Servlet.env).to be Rack::Handler::Servlet::JavaEnv
+    end
+
+    it "loads keys lazily" do
+      servlet_request.setMethod('PUT')
+      servlet_request.addHeader('X-Some-Header', 'some')
+      servlet_env = org.jruby.rack.servlet.ServletRackEnvironment.new(
+        servlet_request, servlet_response, @rack_context
+      )
+      env = Rack::Handler::Servlet::JavaEnv.new(servlet_env)
+
+      expect(env.size).to eql 0
+      expect(env['REQUEST_METHOD']).to eql 'PUT'
+      expect(env['HTTP_X_SOME_HEADER']).to eql 'some'
+      expect(env.key?('HTTP_X_MISSING_HEADER')).to be false
+      expect(env.size).to eql 2
+
+      expect(env.keys).to include('rack.input', 'SERVER_NAME', 'HTTP_X_SOME_HEADER')
+      Rack::Handler::Servlet::JavaEnv::BUILTINS.each do |key|
+        expect(env.keys).to include(key)
+      end
+    end
+
+    it "keeps the servlet env when dupped" do
+      servlet_request.setMethod('PUT')
+      servlet_env = org.jruby.rack.servlet.ServletRackEnvironment.new(
+        servlet_request, servlet_response, @rack_context
+      )
+      env = Rack::Handler::Servlet::JavaEnv.new(servlet_env).dup
+
+      expect(env).to be_a Rack::Handler::Servlet::JavaEnv
+      expect(env['REQUEST_METHOD']).to eql 'PUT'
+    end
+
+    it "parses query and (url-encoded) form parameters for Rack" do
+      allow(@rack_config).to receive(:isRewindable).and_return true
+      servlet_request.setMethod 'POST'
+      servlet_request.setQueryString 'foo=bar&x[]=1;x[]=2'
+      servlet_request.setContentType 'application/x-www-form-urlencoded; charset=UTF-8'
+      servlet_request.setContent "name[]=Ferko+Suska&name[]=Jozko&formula=a+%2B+b+%3D%3D+42%25%21\0".to_java_bytes
+      servlet_env = org.jruby.rack.servlet.ServletRackEnvironment.new(
+        servlet_request, servlet_response, @rack_context
+      )
+      env = Rack::Handler::Servlet::JavaEnv.new(servlet_env)
+
+      expect(env['rack.request.query_hash']).to eq({ 'foo' => 'bar', 'x' => [ '1', '2' ] })
+      expect(env['rack.request.query_string']).to be env['QUERY_STRING']
+      expect(env['rack.input'].read(4)).to eql 'name'
+      expect(env['rack.request.form_input']).to be env['rack.input']
+      expect(env['rack.request.form_hash']).to eq({ 'name' => [ 'Ferko Suska', 'Jozko' ], 'formula' => 'a + b == 42%!' })
+      expect(env['rack.input'].read(4)).to eql '[]=F' # position kept
+
+      rack_request = Rack::Request.new(env)
+      expect(rack_request.GET).to eq({ 'foo' => 'bar', 'x' => [ '1', '2' ] })
+      expect(rack_request.POST).to eq({ 'name' => [ 'Ferko Suska', 'Jozko' ], 'formula' => 'a + b == 42%!' })
+    end
+
+    it "leaves multipart parameters to be parsed by Rack" do
+      allow(@rack_config).to receive(:isRewindable).and_return true
+      servlet_request.setMethod 'POST'
+      servlet_request.setContentType 'multipart/form-data; boundary=AaB03x'
+      servlet_env = org.jruby.rack.servlet.ServletRackEnvironment.new(
+        servlet_request, servlet_response, @rack_context
+      )
+      env = Rack::Handler::Servlet::JavaEnv.new(servlet_env)
+
+      expect(env['rack.request.form_hash']).to be nil
+      expect(env.key?('rack.request.form_input')).to be false
+    end
+
+    it "raises Rack's error for broken parameters" do
+      servlet_request.setQueryString 'foo[]=0&foo[bar]=1'
+      servlet_env = org.jruby.rack.servlet.ServletRackEnvironment.new(
+        servlet_request, servlet_response, @rack_context
+      )
+      env = Rack::Handler::Servlet::JavaEnv.new(servlet_env)
+
+      expect { Rack::Request.new(env).GET }.to raise_error(Rack::Utils::ParameterTypeError)
+    end
+
+    it "limits parsed parameters same as Rack's query parser" do
+      servlet_request.setQueryString 'a[b][c]=1'
+      servlet_env = org.jruby.rack.servlet.ServletRackEnvironment.new(
+        servlet_request, servlet_response, @rack_context
+      )
+      env = Rack::Handler::Servlet::JavaEnv.new(servlet_env)
+
+      parser = Rack::Utils.default_query_parser
+      begin
+        Rack::Utils.default_query_parser = parser.class.make_default(65536, 2)
+        expect { env['rack.request.query_hash'] }.to raise_error(RangeError)
+        expect(env.key?('rack.request.query_hash')).to be false
+      ensure
+        Rack::Utils.default_query_parser = parser
+      end
+      expect(env['rack.request.query_hash']).to eq({ 'a' => { 'b' => { 'c' => '1' } } })
+    end
+
+    it "parses cookies (on first access)" do
+      servlet_request.addHeader('Cookie', 'foo=bar; sid=abc; foo=142')
+      servlet_env = org.jruby.rack.servlet.ServletRackEnvironment.new(
+        servlet_request, servlet_response, @rack_context
+      )
+      env = Rack::Handler::Servlet::JavaEnv.new(servlet_env)
+
+      expect(env['rack.request.cookie_hash']).to eql({ 'foo' => 'bar', 'sid' => 'abc' })
+      expect(env['rack.request.cookie_string']).to be env['HTTP_COOKIE']
+      expect(Rack::Request.new(env).cookies).to eq({ 'foo' => 'bar', 'sid' => 'abc' })
+    end
+
+  end
+
   context "servlet" do
 
     before do
@@ -114,6 +114,49 @@ describe org.jruby.rack.servlet.RewindableInputStream do
     expect(stream.read).to eq -1
   end
 
+  it "should read fully without moving the position (in memory)" do
+    input = []; 100.times { |i| input << i }
+    stream = rewindable_input_stream(input.to_java(:byte), 16, 128)
+    5.times { stream.read }
+
+    content = stream.readFully
+    expect(content.remaining).to eq 100
+    100.times { |i| expect(content.get).to eq i }
+
+    expect(stream.read).to eq 5
+    expect(stream.getCurrentBufferSize).to be <= 128
+  end
+
+  it "should read fully without moving the position (temp file)" do
+    input = []; 100.times { |i| input << i }
+    stream = rewindable_input_stream(input.to_java(:byte), 8, 32)
+    40.times { stream.read }
+
+    content = stream.readFully
+    expect(content.hasArray).to be false # mapped (not copied into memory)
+    expect(content.isReadOnly).to be true
+    expect(content.remaining).to eq 100
+    100.times { |i| expect(content.get).to eq i }
+
+    60.times { |i| expect(stream.read).to eq 40 + i }
+    expect(stream.read).to eq -1
+  end
+
+  it "should reset to the mark (temp file)" do
+    input = []; 100.times { |i| input << i }
+    stream = rewindable_input_stream(input.to_java(:byte), 8, 32)
+    50.times { stream.read }
+
+    stream.mark(100)
+    3.times { stream.read }
+    stream.reset
+    expect(stream.read).to eq 50
+
+    37.times { stream.read }
+    expect(stream.readFully.remaining).to eq 100
+    expect(stream.read).to eq 88
+  end
+
   it "should read an image" do
     image = File.expand_path('../../files/image.jpg', File.dirname(__FILE__))
     file = java.io.RandomAccessFile.new(image, "r")
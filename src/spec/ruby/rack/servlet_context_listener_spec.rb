@@ -103,6 +103,15 @@ describe org.jruby.rack.RackServletContextListener do
     expect(factory).to be_a(org.jruby.rack.SharedRackApplicationFactory)
   end
 
+  it "shares a runtime with a pool for isolated paths" do
+    allow(@rack_config).to receive(:getProperty) do |key|
+      key == 'jruby.runtime.pool.isolated.path' ? '/legacy' : nil
+    end
+    factory = RackServletContextListener.new.
+      send(:newApplicationFactory, @rack_config)
+    expect(factory).to be_a(org.jruby.rack.HybridRackApplicationFactory)
+  end
+
 end
 
 describe org.jruby.rack.rails.RailsServletContextListener do
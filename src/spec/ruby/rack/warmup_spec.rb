@@ -0,0 +1,52 @@
+require File.expand_path('spec_helper', File.dirname(__FILE__) + '/..')
+
+describe org.jruby.rack.WarmupRackEnvironment do
+
+  def parse(input)
+    org.jruby.rack.WarmupRackEnvironment.parse(@rack_context, java.io.StringReader.new(input))
+  end
+
+  it "parses requests separated by blank lines" do
+    requests = parse "# warm-up\nGET /\n\nget /products?page=2\nAccept: text/html\nX-Custom:  42 \n\n\nPOST /login"
+    expect(requests.size).to eq 3
+    expect(requests[0].getMethod).to eq 'GET'
+    expect(requests[0].getPathInfo).to eq '/'
+    expect(requests[0].getQueryString).to be nil
+    expect(requests[1].getMethod).to eq 'GET'
+    expect(requests[1].getPathInfo).to eq '/products'
+    expect(requests[1].getQueryString).to eq 'page=2'
+    expect(requests[1].getRequestURI).to eq '/products?page=2'
+    expect(requests[1].getHeader('accept')).to eq 'text/html'
+    expect(requests[1].getHeader('X-Custom')).to eq '42'
+    expect(requests[1].getHeaderNames.to_a).to eq [ 'Accept', 'X-Custom' ]
+    expect(requests[2].getMethod).to eq 'POST'
+    expect(requests[2].getHeaderNames.to_a).to eq []
+  end
+
+  it "fails on an invalid request line" do
+    expect { parse "GET\n" }.to raise_error(java.lang.IllegalArgumentException)
+    expect { parse "GET /\nAccept\n" }.to raise_error(java.lang.IllegalArgumentException)
+  end
+
+  it "keeps attributes per (copied) request" do
+    request = parse("GET /").first
+    request.setAttribute 'foo', 'bar'
+    expect(request.getAttribute('foo')).to eq 'bar'
+    copy = org.jruby.rack.WarmupRackEnvironment.new(request)
+    expect(copy.getAttribute('foo')).to be nil
+    expect(copy.getPathInfo).to eq '/'
+  end
+
+  it "loads into the servlet env (leaving parameters for Rack to parse)" do
+    require 'rack/handler/servlet'
+    JRuby::Rack.context = @rack_context
+    request = parse("GET /products?page=2\nCookie: locale=en").first
+    env = Rack::Handler::Servlet::ServletEnv.new(request).populate
+    expect(env['QUERY_STRING']).to eq 'page=2'
+    expect(env).to_not have_key 'rack.request.query_hash'
+    expect(env['rack.request.cookie_hash']).to eq 'locale' => 'en'
+  ensure
+    JRuby::Rack.context = nil
+  end
+
+end